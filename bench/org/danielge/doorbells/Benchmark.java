@@ -0,0 +1,135 @@
+package org.danielge.doorbells;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * A small benchmark harness for the local JVM. JMH would be the proper tool,
+ * but the Ant build has no way to fetch it and its annotation processor, so
+ * this stands in. Each benchmark is run flat out on the calling thread: first
+ * for a while to warm up, then for a number of timed iterations, each
+ * reported as operations per second and as bytes allocated per operation
+ * (where the JVM can count them, through {@link ThreadMXBean}). Only what the
+ * calling thread allocates is counted, so a stub server's threads don't show
+ * up in it.
+ * <p>
+ * The numbers are not as trustworthy as JMH's. Every benchmark runs in the
+ * same JVM, one after the other, so what the JIT learned from one (inlining,
+ * type profiles) carries over to the next, where JMH forks a fresh JVM for
+ * each. Warming up just runs for a fixed time, with no check that
+ * compilation has settled, and nothing stops the JIT from optimizing the
+ * loop itself beyond folding each result into a hash. Use them to compare
+ * one build to the next, on the same machine, running the same benchmarks;
+ * run with a fixed heap (say {@code -Xms1g -Xmx1g}) for steadier results.
+ */
+public final class Benchmark {
+    public static final long DEFAULT_WARMUP_MILLIS = 2000;
+    public static final int DEFAULT_ITERATIONS = 5;
+    public static final long DEFAULT_ITERATION_MILLIS = 1000;
+
+    /**
+     * One operation to measure. Return whatever it computed, so that the JIT
+     * can't do away with the work.
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private static volatile int sink;
+
+    private final long warmupMillis;
+    private final int iterations;
+    private final long iterationMillis;
+    private final String filter;
+
+    /**
+     * @param filter    Only benchmarks whose names contain it are run; or
+     *                  {@code null} to run them all
+     */
+    public Benchmark (String filter) {
+        this(DEFAULT_WARMUP_MILLIS, DEFAULT_ITERATIONS, DEFAULT_ITERATION_MILLIS, filter);
+    }
+
+    public Benchmark (long warmupMillis, int iterations, long iterationMillis, String filter) {
+        this.warmupMillis = warmupMillis;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+        this.filter = (filter == null || filter.length() == 0) ? null : filter;
+    }
+
+    /**
+     * Measures an operation, and prints a line for it:
+     * <pre>
+     *     name    ops/s ± error    bytes/op
+     * </pre>
+     * where the error is the spread of the iterations (their standard
+     * deviation, times two).
+     */
+    public void run (String name, Operation operation) throws Exception {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+
+        loop(operation, warmupMillis);
+        double[] rates = new double[iterations];
+        long operations = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long count = loop(operation, iterationMillis);
+            long nanos = System.nanoTime() - start;
+            long bytes = allocatedBytes() - bytesBefore;
+
+            rates[i] = count * 1e9 / nanos;
+            operations += count;
+            allocated += bytes;
+        }
+
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / iterations;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / Math.max(iterations - 1, 1);
+        }
+        String bytesPerOp = (allocatedBytes() < 0) ? "n/a"
+                : String.format(Locale.US, "%.0f", (double) allocated / operations);
+        System.out.println(String.format(Locale.US, "%-44s %14.1f +- %10.1f ops/s %12s B/op",
+                name, mean, 2 * Math.sqrt(variance), bytesPerOp));
+    }
+
+    private static long loop (Operation operation, long millis) throws Exception {
+        long end = System.nanoTime() + millis * 1000000L;
+        long count = 0;
+        int hash = 0;
+        do {
+            // Check the clock every few operations, so that it isn't what is measured
+            for (int i = 0; i < 8; i++) {
+                Object result = operation.run();
+                hash += (result == null) ? 0 : System.identityHashCode(result);
+            }
+            count += 8;
+        } while (System.nanoTime() < end);
+        sink += hash;
+        return count;
+    }
+
+    /**
+     * @return  The bytes allocated so far by the calling thread, or {@code -1}
+     *          if the JVM doesn't count them
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported()
+                    && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,216 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.Benchmark;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.danielge.doorbells.api.ApiUtils.Params;
+
+/**
+ * Benchmarks the client's hot paths: decoding pages of messages and tags,
+ * encoding request parameters, reading a body into a String, and whole calls
+ * against an in-process {@link StubServer}.
+ * <pre>
+ *     ant -f custom_rules.xml jvm-bench [-Dbench.filter=decode]
+ * </pre>
+ */
+public final class ApiBenchmarks {
+    /** Page sizes, from the default page up to a whole history */
+    static final int[] SIZES = { 15, 100, 1000, 10000 };
+
+    private ApiBenchmarks() {}
+
+    public static void main (String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark((args.length > 0) ? args[0] : null);
+        decoding(benchmark);
+        encoding(benchmark);
+        reading(benchmark);
+        calls(benchmark);
+        // The stub server's threads don't matter here
+        System.exit(0);
+    }
+
+
+    /* JSON */
+
+    private static void decoding (Benchmark benchmark) throws Exception {
+        for (int size : SIZES) {
+            final byte[] messages = messagesPage(size).getBytes(Utils.UTF_8);
+            benchmark.run("decode.messages." + size, new Benchmark.Operation() {
+                @Override
+                public Object run() throws Exception {
+                    return JsonCodec.decode(new ByteArrayInputStream(messages), Utils.UTF_8,
+                            MessagesPage.class);
+                }
+            });
+        }
+        for (int size : SIZES) {
+            final byte[] tags = tagsPage(size).getBytes(Utils.UTF_8);
+            benchmark.run("decode.tags." + size, new Benchmark.Operation() {
+                @Override
+                public Object run() throws Exception {
+                    return JsonCodec.decode(new ByteArrayInputStream(tags), Utils.UTF_8,
+                            TagsPage.class);
+                }
+            });
+        }
+    }
+
+    private static class MessagesPage {
+        private int status;
+        private Message[] messages;
+
+        MessagesPage() {}
+    }
+
+    private static class TagsPage {
+        private int status;
+        private Tag[] tags;
+
+        TagsPage() {}
+    }
+
+
+    /* Parameters */
+
+    private static void encoding (Benchmark benchmark) throws Exception {
+        benchmark.run("params.query", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return MessageQuery.latest(50).afterId(123456).beforeId(654321)
+                        .toParams().addParam("wait", MessageStream.WAIT_SECONDS).finish();
+            }
+        });
+        benchmark.run("params.form", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                return Params.start("tag", "a3f9c2e1-front-door")
+                        .addParam("contents", "Left a package by the side gate & rang twice \u2014 "
+                                + "back at 5:30? \u2713")
+                        .finish();
+            }
+        });
+        final Params form = Params.start("tag", "a3f9c2e1-front-door")
+                .addParam("contents", "Left a package by the side gate & rang twice \u2014 "
+                        + "back at 5:30? \u2713");
+        benchmark.run("params.form.body", new Benchmark.Operation() {
+            @Override
+            public Object run() {
+                // As a POST writes it, straight into a pooled buffer. The buffer's
+                // array goes back to the pool, so the writes can't be done away with.
+                PooledBuffer body = PooledBuffer.acquire();
+                try {
+                    form.writeTo(body);
+                    return form;
+                } finally {
+                    body.release();
+                }
+            }
+        });
+    }
+
+
+    /* Bodies */
+
+    private static void reading (Benchmark benchmark) throws Exception {
+        for (int size : SIZES) {
+            final byte[] body = messagesPage(size).getBytes(Utils.UTF_8);
+            benchmark.run("inputStreamToString." + size, new Benchmark.Operation() {
+                @Override
+                public Object run() throws IOException {
+                    return Utils.inputStreamToString(new ByteArrayInputStream(body));
+                }
+            });
+        }
+    }
+
+
+    /* Whole calls */
+
+    private static void calls (Benchmark benchmark) throws Exception {
+        final String[] pages = new String[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            pages[i] = messagesPage(SIZES[i]);
+        }
+        final String tags = tagsPage(15);
+        StubServer server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/tags")) {
+                    StubServer.sendJson(exchange, 200, tags);
+                } else if (path.endsWith("/send")) {
+                    StubServer.readBody(exchange);
+                    StubServer.sendJson(exchange, 200, "{\"status\":200}");
+                } else {
+                    String limit = StubServer.param(exchange, "limit");
+                    int size = (limit == null) ? 15 : Integer.parseInt(limit);
+                    for (int i = 0; i < SIZES.length; i++) {
+                        if (SIZES[i] == size) {
+                            StubServer.sendJson(exchange, 200, pages[i]);
+                            return;
+                        }
+                    }
+                    StubServer.sendJson(exchange, 400, "{\"status\":400,\"msg\":\"bad limit\"}");
+                }
+            }
+        });
+        try {
+            final DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+            for (final int size : SIZES) {
+                benchmark.run("client.getMessages." + size, new Benchmark.Operation() {
+                    @Override
+                    public Object run() throws Exception {
+                        return client.getMessages(MessageQuery.latest(size));
+                    }
+                });
+            }
+            benchmark.run("client.getTags", new Benchmark.Operation() {
+                @Override
+                public Object run() throws Exception {
+                    return client.getTags();
+                }
+            });
+            benchmark.run("client.sendMessage", new Benchmark.Operation() {
+                @Override
+                public Object run() throws Exception {
+                    return client.sendMessage("a3f9c2e1", "Package at the door");
+                }
+            });
+        } finally {
+            server.stop();
+        }
+    }
+
+
+    /* Payloads, shaped like the server's */
+
+    static String messagesPage (int size) {
+        StringBuilder json = new StringBuilder(size * 128).append("{\"status\":200,\"messages\":[");
+        for (int i = 0; i < size; i++) {
+            int id = 1000000 - i;
+            json.append((i == 0) ? "" : ",")
+                    .append("{\"id\":").append(id)
+                    .append(",\"sender\":{\"name\":\"Visitor ").append(i % 37).append("\"}")
+                    .append(",\"contents\":\"Delivery for unit ").append(i % 12)
+                    .append(" \\u2014 left it by the \\\"side\\\" gate, ring if you need me\"")
+                    .append(",\"timestamp\":").append(1350000000 + id)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    static String tagsPage (int size) {
+        StringBuilder json = new StringBuilder(size * 96).append("{\"status\":200,\"tags\":[");
+        for (int i = 0; i < size; i++) {
+            json.append((i == 0) ? "" : ",")
+                    .append("{\"id\":\"").append(Integer.toHexString(0x5f3a0000 + i)).append('"')
+                    .append(",\"location\":\"Door ").append(i).append(", 3rd floor\"")
+                    .append(",\"user\":{\"name\":\"owner\"}}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,229 @@
+package org.danielge.doorbells;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.PowerManager;
+import android.util.Log;
+import com.google.android.gcm.GCMRegistrar;
+import org.danielge.doorbells.api.DoorbellsApiException;
+import org.danielge.doorbells.api.DoorbellsClient;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.MessageStream;
+import org.danielge.doorbells.api.TagCache;
+import org.danielge.doorbells.store.MessageStore;
+import org.danielge.doorbells.store.MessageSync;
+import org.danielge.doorbells.store.Outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * What the app's activities and services share: the local message store, the
+ * client for the signed-in user, the sync that brings pushed messages into
+ * the store, and the outbox that takes the user's changes out to the server.
+ * While the messages are on screen, they are also streamed straight into the
+ * store. Created on first use, and kept for the life of the process.
+ */
+final class AppState implements MessageSync.Listener, Outbox.Listener,
+        MessageStream.Listener {
+    public static final String TAG = AppState.class.getSimpleName();
+
+    /** Broadcast (to this app only) when new messages have been stored */
+    public static final String ACTION_MESSAGES_CHANGED =
+            "org.danielge.doorbells.action.MESSAGES_CHANGED";
+
+    static final String PREFS_NAME = "doorbells";
+    static final String PREF_AUTH_TOKEN = "auth_token";
+    private static final String STORE_FILE = "messages.store";
+    private static final String OUTBOX_FILE = "outbox.log";
+    // Long enough for a sync window and its fetches, should they hang
+    private static final long SYNC_WAKE_LOCK_MILLIS = 30 * 1000;
+
+    private static AppState instance;
+
+    private final Context context;
+    private final MessageStore store;
+    private final DoorbellsClient client;   // null if no one is signed in
+    private final MessageSync sync;         // likewise
+    private final Outbox outbox;            // likewise
+    private final PowerManager.WakeLock syncWakeLock;
+    private MessageStream stream;           // While the messages are on screen
+
+    private AppState (Context context) throws IOException {
+        this.context = context;
+        this.store = MessageStore.open(new File(context.getFilesDir(), STORE_FILE));
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String authToken = prefs.getString(PREF_AUTH_TOKEN, null);
+        if (authToken != null) {
+            // Tags are read far more than they change, and pushes say when
+            // they do
+            client = DoorbellsClient.initialize(authToken).withTagCache(new TagCache());
+            sync = new MessageSync(client, store, this);
+            outbox = Outbox.open(new File(context.getFilesDir(), OUTBOX_FILE), store, client);
+            outbox.setListener(this);
+        } else {
+            client = null;
+            sync = null;
+            outbox = null;
+        }
+
+        PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        syncWakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        syncWakeLock.setReferenceCounted(false);
+
+        if (outbox != null) {
+            // Whatever was waiting when the app last stopped goes out now, or
+            // when the network comes back
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive (Context context, Intent intent) {
+                    if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                        outbox.flushSoon();
+                    }
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            outbox.flushSoon();
+        }
+    }
+
+    static synchronized AppState get (Context context) throws IOException {
+        if (instance == null) {
+            instance = new AppState(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    MessageStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return  The client for the signed-in user, or {@code null} if there is none
+     */
+    DoorbellsClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return  The sync for the signed-in user, or {@code null} if there is none
+     */
+    MessageSync getSync() {
+        return sync;
+    }
+
+    /**
+     * @return  The outbox for the signed-in user's changes, or {@code null} if
+     *          there is no one signed in
+     */
+    Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Streams new messages into the store as they arrive, on top of whatever
+     * pushes bring in, until {@link #stopStreaming()}. Does nothing if no one
+     * is signed in, or the messages are already being streamed.
+     */
+    synchronized void startStreaming() {
+        if (client == null || (stream != null && stream.isRunning())) {
+            return;
+        }
+        List<Message> newest = store.getMessages(1);
+        stream = client.streamMessages(
+                newest.isEmpty() ? MessageStream.NONE : newest.get(0).getId(), this);
+        stream.start();
+    }
+
+    synchronized void stopStreaming() {
+        if (stream != null) {
+            stream.stop();
+            stream = null;
+        }
+    }
+
+    /**
+     * Keeps the device awake until the sync window that a push has just opened
+     * is done with. The push's own wake lock only lasts until it is handled.
+     */
+    void holdForSync() {
+        syncWakeLock.acquire(SYNC_WAKE_LOCK_MILLIS);
+    }
+
+    /**
+     * Tells the server where to push the signed-in user's messages, unless it
+     * has already been told. This makes a request, so call it off the UI thread.
+     */
+    void registerDevice (String regId) {
+        if (client == null || GCMRegistrar.isRegisteredOnServer(context)) {
+            return;
+        }
+        try {
+            client.registerDevice(regId);
+            GCMRegistrar.setRegisteredOnServer(context, true);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not register the device", e);
+        } catch (DoorbellsApiException e) {
+            Log.w(TAG, "Could not register the device", e);
+        }
+    }
+
+    @Override
+    public void onSynced (List<Message> added) {
+        if (!added.isEmpty()) {
+            Intent changed = new Intent(ACTION_MESSAGES_CHANGED);
+            changed.setPackage(context.getPackageName());
+            context.sendBroadcast(changed);
+        }
+        syncWakeLock.release();
+    }
+
+    @Override
+    public void onSyncFailed (Exception e) {
+        Log.w(TAG, "Could not fetch pushed messages", e);
+        syncWakeLock.release();
+    }
+
+    @Override
+    public void onMessage (Message message) {
+        if (store.getMessage(message.getId()) != null) {
+            return;     // A push got to it first
+        }
+        try {
+            store.putMessages(message);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store a streamed message", e);
+            return;
+        }
+        Intent changed = new Intent(ACTION_MESSAGES_CHANGED);
+        changed.setPackage(context.getPackageName());
+        context.sendBroadcast(changed);
+    }
+
+    @Override
+    public void onConnected() {
+        Log.d(TAG, "Streaming messages");
+    }
+
+    @Override
+    public void onDisconnected (Exception e, long reconnectMillis) {
+        Log.d(TAG, "Message stream lost (" + e + "); retrying in " + reconnectMillis + "ms");
+    }
+
+    @Override
+    public void onFlushed (int remaining) {
+        if (remaining > 0) {
+            Log.d(TAG, remaining + " changes are waiting for the network");
+        }
+    }
+
+    @Override
+    public void onRejected (Outbox.Operation operation, Exception e) {
+        Log.w(TAG, "The server rejected " + operation, e);
+    }
+}
@@ -4,10 +4,23 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.IBinder;
+import android.util.Log;
 import com.google.android.gcm.GCMBaseIntentService;
+import com.google.android.gcm.GCMRegistrar;
+import org.danielge.doorbells.api.TagCache;
+import org.danielge.doorbells.store.MessageSync;
 import org.danielge.doorbells.utils.Utils;
 
+import java.io.IOException;
+
 public class GCMIntentService extends GCMBaseIntentService {
+    public static final String TAG = GCMIntentService.class.getSimpleName();
+
+    // The push payload field naming the message that was left
+    static final String EXTRA_MESSAGE_ID = "message_id";
+    // ...or the tag that was changed, on another device or by the server
+    static final String EXTRA_TAG_ID = "tag_id";
+
     public GCMIntentService() {
         super(Utils.SENDER_ID);
     }
@@ -16,8 +29,45 @@ public class GCMIntentService extends GCMBaseIntentService {
         return null;
     }
 
+    /**
+     * Hands the push to the {@link MessageSync}, which fetches only the
+     * message it names, and only once however many pushes arrive in a burst.
+     * A push about a tag instead drops the tag from the client's tag cache, so
+     * that it is fetched again the next time it is needed.
+     */
     @Override
     protected void onMessage(Context context, Intent intent) {
+        AppState state;
+        try {
+            state = AppState.get(context);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the message store", e);
+            return;
+        }
+
+        MessageSync sync = state.getSync();
+        if (sync == null) {
+            return;     // No one is signed in
+        }
+
+        String tagId = intent.getStringExtra(EXTRA_TAG_ID);
+        if (tagId != null) {
+            TagCache tags = state.getClient().getTagCache();
+            if (tags != null) {
+                tags.invalidate(tagId);
+            }
+            if (intent.getStringExtra(EXTRA_MESSAGE_ID) == null) {
+                return;     // Only the tag changed
+            }
+        }
+
+        state.holdForSync();
+        String messageId = intent.getStringExtra(EXTRA_MESSAGE_ID);
+        try {
+            sync.onPush(Integer.parseInt(messageId));
+        } catch (NumberFormatException e) {     // Including a missing ID
+            sync.onPush();
+        }
     }
 
     @Override
@@ -26,6 +76,14 @@ public class GCMIntentService extends GCMBaseIntentService {
 
     @Override
     protected void onRegistered(Context context, String regId) {
+        // A new registration ID, which the server doesn't know yet
+        GCMRegistrar.setRegisteredOnServer(context, false);
+        try {
+            AppState.get(context).registerDevice(regId);
+            StartupTimer.mark(StartupTimer.PUSH_READY);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the message store", e);
+        }
     }
 
     private static class RegistrationTask extends AsyncTask<String, Void, Boolean> {
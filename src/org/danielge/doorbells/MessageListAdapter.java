@@ -0,0 +1,158 @@
+package org.danielge.doorbells;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.User;
+import org.danielge.doorbells.utils.KeyedRows;
+
+import java.util.List;
+
+/**
+ * Shows messages, newest first, with {@code message_list_item} rows.
+ * <p>
+ * Everything a row displays is worked out once per message, when the message
+ * first shows up, and kept with it; binding a recycled view only sets text,
+ * and a view already showing the right message isn't touched at all. So
+ * scrolling allocates nothing. New lists are applied with
+ * {@link #setMessages(List)}, which matches them up with the current rows by
+ * message ID, so that a push adds one row rather than redoing all of them.
+ */
+class MessageListAdapter extends BaseAdapter {
+    private static final int TIME_FLAGS = DateUtils.FORMAT_SHOW_DATE
+            | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL;
+
+    private final Context context;
+    private final LayoutInflater inflater;
+    private final KeyedRows<Message, Row> rows = new KeyedRows<Message, Row>() {
+        @Override
+        protected int idOf (Message message) {
+            return message.getId();
+        }
+
+        @Override
+        protected Row rowFor (Message message) {
+            return new Row(context, message);
+        }
+
+        @Override
+        protected boolean shows (Row row, Message message) {
+            return row.shows(message);
+        }
+    };
+
+    /**
+     * A message, along with its text as displayed.
+     */
+    private static final class Row {
+        final Message message;
+        final String sender;
+        final String time;
+
+        Row (Context context, Message message) {
+            this.message = message;
+            User user = message.getSender();
+            this.sender = (user == null) ? "" : user.getName();
+            this.time = DateUtils.formatDateTime(context,
+                    message.getTimestamp() * 1000L, TIME_FLAGS);
+        }
+
+        /**
+         * @return  {@code true} if this row already displays the message as is
+         */
+        boolean shows (Message other) {
+            if (other == message) {
+                return true;
+            }
+            User user = other.getSender();
+            return other.getTimestamp() == message.getTimestamp()
+                    && equal(other.getContents(), message.getContents())
+                    && equal((user == null) ? "" : user.getName(), sender);
+        }
+
+        private static boolean equal (String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    private static final class ViewHolder {
+        final TextView sender;
+        final TextView contents;
+        final TextView time;
+        Row bound;
+
+        ViewHolder (View view) {
+            sender = (TextView) view.findViewById(R.id.display_name);
+            contents = (TextView) view.findViewById(R.id.contents);
+            time = (TextView) view.findViewById(R.id.datetime);
+        }
+    }
+
+    MessageListAdapter (Context context) {
+        this.context = context;
+        this.inflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Replaces the list. Messages that are already shown, unchanged, keep their
+     * rows; only new or edited ones are formatted. Nothing is redrawn if the
+     * list is the same as before.
+     *
+     * @param messages  Every message to show, newest first
+     * @return  {@code true} if the list changed
+     */
+    boolean setMessages (List<Message> messages) {
+        boolean changed = rows.set(messages);
+        if (changed) {
+            notifyDataSetChanged();
+        }
+        return changed;
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public Message getItem (int position) {
+        return rows.get(position).message;
+    }
+
+    @Override
+    public long getItemId (int position) {
+        return rows.get(position).message.getId();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView (int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        ViewHolder holder;
+        if (view == null) {
+            view = inflater.inflate(R.layout.message_list_item, parent, false);
+            holder = new ViewHolder(view);
+            view.setTag(holder);
+        } else {
+            holder = (ViewHolder) view.getTag();
+        }
+
+        Row row = rows.get(position);
+        if (holder.bound != row) {
+            holder.sender.setText(row.sender);
+            holder.contents.setText(row.message.getContents());
+            holder.time.setText(row.time);
+            holder.bound = row;
+        }
+        return view;
+    }
+}
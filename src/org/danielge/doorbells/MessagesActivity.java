@@ -2,34 +2,113 @@ package org.danielge.doorbells;
 
 import android.app.Activity;
 import android.app.ListFragment;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.*;
 import android.widget.ListView;
 import com.google.android.gcm.GCMRegistrar;
+import org.danielge.doorbells.api.DoorbellsClient;
+import org.danielge.doorbells.api.Message;
 import org.danielge.doorbells.utils.Utils;
 
+import java.io.IOException;
+import java.util.List;
+
 public class MessagesActivity extends Activity {
     public static final String TAG = MessagesActivity.class.getSimpleName();
 
     /**
-     * Called when the activity is first created.
+     * Called when the activity is first created. Only the layout is done here;
+     * the stored messages are loaded by the list, and everything else that
+     * startup needs is left to a {@link StartupTask}.
      */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTimer.start();
+
+        setContentView(R.layout.messages);
+        StartupTimer.mark(StartupTimer.CONTENT_VIEW);
+
+        final ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+                StartupTimer.mark(StartupTimer.FIRST_FRAME);
+                return true;
+            }
+        });
+
+        // Off of the serial executor, so as not to hold up loading the list
+        new StartupTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * The background half of startup. The JSON adapters are built on one
+     * thread while a connection to the server is opened on another; then the
+     * device is registered for push, with GCM and then with the server.
+     */
+    private static class StartupTask extends AsyncTask<Void, Void, Void> {
+        private final Context context;
 
-        // Register application for Google Cloud Messaging
-        GCMRegistrar.checkDevice(this);
-        GCMRegistrar.checkManifest(this);   // Remove in production
-        final String regId = GCMRegistrar.getRegistrationId(this);
-        if (regId.equals("")) {
-            GCMRegistrar.register(this, Utils.SENDER_ID);
-        } else {
-            Log.v(TAG, "Already registered");
+        StartupTask(Context context) {
+            this.context = context.getApplicationContext();
         }
 
-        setContentView(R.layout.messages);
+        @Override
+        protected Void doInBackground(Void... params) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    DoorbellsClient.warmUp();
+                }
+            });
+
+            AppState state;
+            try {
+                state = AppState.get(context);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the message store", e);
+                return null;
+            }
+            if (state.getClient() != null) {
+                state.getClient().preconnect();
+            }
+            StartupTimer.mark(StartupTimer.WARMED_UP);
+
+            registerForPush(state);
+            return null;
+        }
+
+        private void registerForPush(AppState state) {
+            try {
+                GCMRegistrar.checkDevice(context);
+            } catch (UnsupportedOperationException e) {
+                Log.w(TAG, "This device can't receive push notifications", e);
+                return;
+            }
+            if (BuildConfig.DEBUG) {
+                GCMRegistrar.checkManifest(context);
+            }
+
+            String regId = GCMRegistrar.getRegistrationId(context);
+            if (regId.equals("")) {
+                // GCMIntentService.onRegistered tells the server, once there's an ID
+                GCMRegistrar.register(context, Utils.SENDER_ID);
+            } else {
+                Log.v(TAG, "Already registered");
+                state.registerDevice(regId);
+                StartupTimer.mark(StartupTimer.PUSH_READY);
+            }
+        }
     }
 
     @Override
@@ -40,11 +119,82 @@ public class MessagesActivity extends Activity {
     }
 
     public static class MessagesListFragment extends ListFragment {
+        private MessageListAdapter adapter;
+        private AppState streaming;     // Set once the list has loaded
+
+        // Reloads the list whenever a push brings in new messages
+        private final BroadcastReceiver messagesChanged = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                reload();
+            }
+        };
+
         @Override
         public void onActivityCreated(Bundle savedInstanceState) {
             super.onActivityCreated(savedInstanceState);
 
-            // setListAdapter(...)
+            adapter = new MessageListAdapter(getActivity());
+            setListAdapter(adapter);
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            getActivity().registerReceiver(messagesChanged,
+                    new IntentFilter(AppState.ACTION_MESSAGES_CHANGED));
+            reload();
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+            getActivity().unregisterReceiver(messagesChanged);
+            if (streaming != null) {
+                streaming.stopStreaming();
+                streaming = null;
+            }
+        }
+
+        private void reload() {
+            new LoadMessagesTask(getActivity()).execute();
+        }
+
+        /**
+         * Reads the stored messages off of the UI thread, then hands them to
+         * the adapter, which only redraws what changed. New messages are
+         * streamed in from then on, for as long as the list is on screen.
+         */
+        private class LoadMessagesTask extends AsyncTask<Void, Void, List<Message>> {
+            private final Context context;
+            private AppState state;
+
+            LoadMessagesTask(Context context) {
+                this.context = context.getApplicationContext();
+            }
+
+            @Override
+            protected List<Message> doInBackground(Void... params) {
+                try {
+                    state = AppState.get(context);
+                    return state.getStore().getMessages();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not open the message store", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(List<Message> messages) {
+                if (messages != null && isAdded()) {
+                    adapter.setMessages(messages);
+                    StartupTimer.mark(StartupTimer.FIRST_MESSAGES);
+                }
+                if (state != null && isResumed() && streaming == null) {
+                    state.startStreaming();
+                    streaming = state;
+                }
+            }
         }
 
         @Override
@@ -0,0 +1,67 @@
+package org.danielge.doorbells;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times a cold start: how long after {@link MessagesActivity} is first created
+ * each stage of startup is reached. Every stage is logged once, with the time
+ * since the start in milliseconds, and can be read back with
+ * {@link #get(String)}. Only the first start in the process counts.
+ */
+final class StartupTimer {
+    public static final String TAG = StartupTimer.class.getSimpleName();
+
+    /** The layout is inflated */
+    static final String CONTENT_VIEW = "contentView";
+    /** The first frame is about to be drawn */
+    static final String FIRST_FRAME = "firstFrame";
+    /** The stored messages are in the list (which may be empty) */
+    static final String FIRST_MESSAGES = "firstMessages";
+    /** A connection to the server and the JSON adapters are ready */
+    static final String WARMED_UP = "warmedUp";
+    /** The device is registered for push, with GCM and with the server */
+    static final String PUSH_READY = "pushReady";
+
+    private static long start = -1;
+    private static final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+
+    private StartupTimer() {}
+
+    /**
+     * Starts the clock, unless it was already started by an earlier start.
+     */
+    static synchronized void start() {
+        if (start < 0) {
+            start = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Records that a stage was reached, if it hasn't been already.
+     */
+    static synchronized void mark (String stage) {
+        if (start < 0 || stages.containsKey(stage)) {
+            return;
+        }
+        long elapsed = SystemClock.uptimeMillis() - start;
+        stages.put(stage, elapsed);
+        Log.i(TAG, stage + " after " + elapsed + "ms");
+    }
+
+    /**
+     * @return  How long after the start the stage was reached, in
+     *          milliseconds, or {@code -1} if it hasn't been
+     */
+    static synchronized long get (String stage) {
+        Long elapsed = stages.get(stage);
+        return (elapsed == null) ? -1 : elapsed;
+    }
+
+    static long getTimeToFirstMessagesMillis() {
+        return get(FIRST_MESSAGES);
+    }
+}
@@ -1,36 +1,46 @@
 package org.danielge.doorbells.api;
 
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 class ApiUtils {
     // FIXME: USE HTTPS
     public static final String API_URL = "http://doorbells.danielge.org/api";
 
-    public static URL endpoint (String resource) throws MalformedURLException {
-        return new URL(API_URL + resource);
-    }
-
-    static class Params {
-        private StringBuilder result = new StringBuilder("");
-        private Params() {}
+    /**
+     * Form-encoded parameters. A {@code Params} is immutable: adding a field
+     * returns a new one, so any {@code Params} can be kept, shared between
+     * threads and built on without affecting anyone else's. Adding a field
+     * doesn't copy the ones before it; each {@code Params} only holds its own
+     * field and a link to the rest. Nothing is encoded until the whole lot is
+     * written out, straight into a request body by {@link #writeTo} or into a
+     * query string by {@link #finish()}.
+     */
+    static final class Params {
+        private static final Params EMPTY = new Params(null, null, null, false);
+
+        private final Params previous;  // null only for EMPTY
+        private final String field;
+        private final String value;
+        private final boolean encoded;  // value has been through encode() already
+
+        private Params (Params previous, String field, String value, boolean encoded) {
+            this.previous = previous;
+            this.field = field;
+            this.value = value;
+            this.encoded = encoded;
+        }
 
         public Params addParam (String field, String value) {
-            if (result.length() > 0) {
-                result.append('&');
-            }
-
-            result.append(field);
-            result.append('=');
-            try {
-                result.append(URLEncoder.encode(value, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
+            return new Params(this, field, value, false);
+        }
 
-            return this;
+        /**
+         * Adds a field whose value has already been through {@link #encode(String)}.
+         */
+        public Params addEncodedParam (String field, String encodedValue) {
+            return new Params(this, field, encodedValue, true);
         }
 
         public Params addParam (String field, int value) {
@@ -38,7 +48,7 @@ class ApiUtils {
         }
 
         public static Params start() {
-            return new Params();
+            return EMPTY;
         }
 
         public static Params start (String field, String value) {
@@ -50,19 +60,108 @@ class ApiUtils {
         }
 
         public boolean isEmpty() {
-            return result.length() == 0;
+            return previous == null;
+        }
+
+        /**
+         * Form-encodes the fields, in the order they were added, onto the end
+         * of the buffer.
+         */
+        void writeTo (PooledBuffer out) {
+            if (previous == null) {
+                return;
+            }
+            previous.writeTo(out);
+            if (previous.previous != null) {
+                out.write('&');
+            }
+            out.writeUtf8(field);
+            out.write('=');
+            if (encoded) {
+                out.writeUtf8(value);
+            } else {
+                writeEncoded(out, value);
+            }
         }
 
         public String finish() {
-            return this.toString();
+            if (previous == null) {
+                return "";
+            }
+            PooledBuffer out = PooledBuffer.acquire();
+            try {
+                writeTo(out);
+                return out.toString();
+            } finally {
+                out.release();
+            }
         }
 
         @Override
         public String toString() {
-            return result.toString();
+            return finish();
+        }
+    }
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    /**
+     * Form-encodes a value as UTF-8, the same as {@code URLEncoder.encode(value,
+     * "UTF-8")}, for values that are sent over and over, such as the auth token.
+     */
+    static String encode (String value) {
+        PooledBuffer out = PooledBuffer.acquire();
+        try {
+            writeEncoded(out, value);
+            return out.toString();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Form-encodes a value as UTF-8 straight onto the end of a buffer, without
+     * the intermediate strings and charset lookup of {@code URLEncoder}.
+     */
+    static void writeEncoded (PooledBuffer out, String value) {
+        int chars = value.length();
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                out.write(c);
+            } else if (c == ' ') {
+                out.write('+');
+            } else if (c < 0x80) {
+                writeByte(out, c);
+            } else if (c < 0x800) {
+                writeByte(out, 0xc0 | (c >> 6));
+                writeByte(out, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(out, 0xf0 | (codePoint >> 18));
+                writeByte(out, 0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(out, 0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(out, 0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                writeByte(out, '?');
+            } else {
+                writeByte(out, 0xe0 | (c >> 12));
+                writeByte(out, 0x80 | ((c >> 6) & 0x3f));
+                writeByte(out, 0x80 | (c & 0x3f));
+            }
         }
     }
 
+    private static void writeByte (PooledBuffer out, int b) {
+        out.write('%');
+        out.write(HEX[(b >> 4) & 0xf]);
+        out.write(HEX[b & 0xf]);
+    }
+
     public static String concatQuery (String resource, Params query) {
         String res;
         if (query == null || query.isEmpty()) {
@@ -73,4 +172,26 @@ class ApiUtils {
 
         return res;
     }
+
+    // The last path segments that name an action rather than an ID
+    private static final Set<String> ACTIONS = new HashSet<String>(
+            Arrays.asList("create", "update", "delete", "destroy"));
+
+    /**
+     * Names the endpoint a resource belongs to, for grouping requests in
+     * {@link ClientMetrics}: the query is dropped, and any ID in the path is
+     * replaced, so that {@code "/messages/42?auth_token=..."} becomes
+     * {@code "/messages/{id}"}.
+     */
+    static String endpointOf (String resource) {
+        int query = resource.indexOf('?');
+        String path = (query < 0) ? resource : resource.substring(0, query);
+
+        // Only "/collection/something" can have an ID in it
+        int slash = path.indexOf('/', 1);
+        if (slash < 0 || ACTIONS.contains(path.substring(slash + 1))) {
+            return path;
+        }
+        return path.substring(0, slash) + "/{id}";
+    }
 }
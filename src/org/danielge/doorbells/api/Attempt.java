@@ -0,0 +1,91 @@
+package org.danielge.doorbells.api;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * One attempt at a call, run on a thread of its own, that another thread may
+ * give up on. Interrupting the thread doesn't stop it blocking on a socket, so
+ * the attempt keeps track of the connections it has open, and
+ * {@link #cancel()} disconnects them, which makes any blocked read or write
+ * fail straight away, and hands back the connection and its slot.
+ * <p>
+ * Requests find the attempt they belong to (if any) through the thread they
+ * are made on.
+ */
+final class Attempt<T> implements Callable<T> {
+    private static final ThreadLocal<Attempt<?>> CURRENT = new ThreadLocal<Attempt<?>>();
+
+    private final Callable<T> call;
+    private final Set<HttpURLConnection> open = new HashSet<HttpURLConnection>();
+    private boolean cancelled;
+
+    Attempt (Callable<T> call) {
+        this.call = call;
+    }
+
+    @Override
+    public T call() throws Exception {
+        // An attempt may be run inside another, e.g. an async call's
+        Attempt<?> outer = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return call.call();
+        } finally {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+
+    /**
+     * Disconnects whatever the attempt has open, and whatever it opens from
+     * now on.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        // Under the lock, so that a connection is never disconnected after it
+        // has been handed back to be reused
+        for (HttpURLConnection connection : open) {
+            connection.disconnect();
+        }
+        open.clear();
+    }
+
+    /**
+     * Notes a connection that the calling thread has just opened.
+     *
+     * @throws InterruptedIOException   If the attempt it belongs to has been
+     *                                  given up on
+     */
+    static void opened (HttpURLConnection connection) throws InterruptedIOException {
+        Attempt<?> attempt = CURRENT.get();
+        if (attempt == null) {
+            return;
+        }
+        synchronized (attempt) {
+            if (attempt.cancelled) {
+                throw new InterruptedIOException("the request was abandoned");
+            }
+            attempt.open.add(connection);
+        }
+    }
+
+    /**
+     * Notes that the calling thread is done with a connection, before it is
+     * handed back to the transport to be reused.
+     */
+    static void released (HttpURLConnection connection) {
+        Attempt<?> attempt = CURRENT.get();
+        if (attempt != null) {
+            synchronized (attempt) {
+                attempt.open.remove(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans the items of a batch call out over parallel requests, with at most a
+ * fixed number of them in flight at once. The calling thread works through
+ * items too, so a batch of one never leaves it; the rest run on
+ * {@link Workers#POOL}. An item given more than once is only run once.
+ * <p>
+ * If the calling thread is interrupted, no more items are started, requests
+ * still in flight on the other threads are disconnected, and the batch
+ * returns once they have wound down, with every item that didn't get to run
+ * marked {@link BatchResult.Outcome#FAILED} with an
+ * {@link InterruptedIOException}. The interrupt is left set.
+ */
+class Batch {
+    /**
+     * One request of the batch.
+     */
+    interface Item<K> {
+        /**
+         * @return  {@code true} if the server carried the item out, {@code false}
+         *          if it couldn't find what the item referred to
+         */
+        boolean run (K key) throws IOException, DoorbellsApiException;
+    }
+
+    private Batch() {}
+
+    static <K> BatchResult<K> run (List<K> keys, int concurrency, final Item<K> item) {
+        // Otherwise a duplicate is sent twice, and both land on one outcome
+        final List<K> unique = new ArrayList<K>(new LinkedHashSet<K>(keys));
+        final BatchResult<K> result = new BatchResult<K>(unique);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while (!stopped.get() && !Thread.currentThread().isInterrupted()
+                        && (i = next.getAndIncrement()) < unique.size()) {
+                    K key = unique.get(i);
+                    try {
+                        result.set(key, item.run(key));
+                    } catch (IOException e) {
+                        result.fail(key, e);
+                    } catch (DoorbellsApiException e) {
+                        result.fail(key, e);
+                    } catch (RuntimeException e) {
+                        result.fail(key, e);
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(concurrency, unique.size()) - 1;
+        final CountDownLatch done = new CountDownLatch(Math.max(helpers, 0));
+        List<Attempt<Void>> attempts = new ArrayList<Attempt<Void>>();
+        for (int i = 0; i < helpers; i++) {
+            // An attempt of its own, so that its requests can be disconnected
+            final Attempt<Void> attempt = new Attempt<Void>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    worker.run();
+                    return null;
+                }
+            });
+            attempts.add(attempt);
+            Workers.POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        attempt.call();
+                    } catch (Exception e) {
+                        // The worker records every failure itself
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        worker.run();
+        boolean interrupted = Thread.currentThread().isInterrupted();
+        if (!interrupted) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            stopped.set(true);
+            for (Attempt<Void> attempt : attempts) {
+                attempt.cancel();
+            }
+            // The helpers still write into the result until they notice
+            awaitUninterruptibly(done);
+            Thread.currentThread().interrupt();
+            result.failUnfinished(new InterruptedIOException("the batch was interrupted"));
+        }
+        return result;
+    }
+
+    private static void awaitUninterruptibly (CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting; the caller restores the interrupt
+            }
+        }
+    }
+}
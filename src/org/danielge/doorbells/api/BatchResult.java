@@ -0,0 +1,107 @@
+package org.danielge.doorbells.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of every item in a batch call such as
+ * {@link DoorbellsClient#deleteMessages(int...)}. Items fail independently, so
+ * one bad item doesn't hide what happened to the others.
+ *
+ * @param <K>   What identifies an item, e.g. a message or tag ID
+ */
+public class BatchResult<K> {
+    public enum Outcome {
+        /** The server carried the item out */
+        SUCCEEDED,
+        /** The server could not find what the item referred to */
+        NOT_FOUND,
+        /**
+         * The request for the item failed, or never went out because the
+         * batch was interrupted; see {@link #getFailure(Object)}
+         */
+        FAILED
+    }
+
+    private final Map<K, Outcome> outcomes;
+    private final Map<K, Exception> failures = new HashMap<K, Exception>();
+
+    BatchResult (List<K> keys) {
+        // Filled in up front, so that results come back in request order
+        outcomes = new LinkedHashMap<K, Outcome>(keys.size() * 2);
+        for (K key : keys) {
+            outcomes.put(key, null);
+        }
+    }
+
+    synchronized void set (K key, boolean found) {
+        outcomes.put(key, found ? Outcome.SUCCEEDED : Outcome.NOT_FOUND);
+    }
+
+    synchronized void fail (K key, Exception e) {
+        outcomes.put(key, Outcome.FAILED);
+        failures.put(key, e);
+    }
+
+    /**
+     * Fails every item that doesn't have an outcome yet, e.g. because the
+     * batch was interrupted before they were run.
+     */
+    synchronized void failUnfinished (Exception e) {
+        for (Map.Entry<K, Outcome> entry : outcomes.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.setValue(Outcome.FAILED);
+                failures.put(entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * @return  What happened to the item, or {@code null} if it wasn't part of
+     *          the batch
+     */
+    public synchronized Outcome getOutcome (K key) {
+        return outcomes.get(key);
+    }
+
+    /**
+     * @return  The {@code IOException} or {@code DoorbellsApiException} that the
+     *          item failed with, or {@code null} if it didn't fail
+     */
+    public synchronized Exception getFailure (K key) {
+        return failures.get(key);
+    }
+
+    /**
+     * @return  Every item in the batch, in the order they were first given,
+     *          each only once
+     */
+    public synchronized Set<K> keys() {
+        return Collections.unmodifiableSet(outcomes.keySet());
+    }
+
+    /** @return  The items whose outcome was {@code outcome} */
+    public synchronized List<K> keysWith (Outcome outcome) {
+        List<K> result = new ArrayList<K>();
+        for (Map.Entry<K, Outcome> entry : outcomes.entrySet()) {
+            if (entry.getValue() == outcome) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    public synchronized boolean allSucceeded() {
+        for (Outcome outcome : outcomes.values()) {
+            if (outcome != Outcome.SUCCEEDED) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
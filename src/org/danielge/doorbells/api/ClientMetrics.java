@@ -0,0 +1,66 @@
+package org.danielge.doorbells.api;
+
+/**
+ * Listens to what a {@link DoorbellsClient} does on the network. Install one
+ * with {@link DoorbellsClient#withMetrics(ClientMetrics)};
+ * {@link ClientMetricsRecorder} is a ready-made one that keeps latency
+ * histograms and counters.
+ * <p>
+ * Endpoints are named by their path with any ID replaced, e.g.
+ * {@code "/messages/{id}"}, so that they group well. Durations are in
+ * nanoseconds. Methods are called on whichever thread made the request, often
+ * several at once, and should return quickly.
+ */
+public interface ClientMetrics {
+    /** Ignores everything; the default */
+    ClientMetrics NONE = new ClientMetrics() {
+        @Override
+        public void onResponse (String endpoint, int status, long connectNanos,
+                                long ttfbNanos, long readNanos, long decodeNanos,
+                                long bytesSent, long bytesReceived) {
+        }
+
+        @Override
+        public void onFailure (String endpoint, Exception e) {
+        }
+
+        @Override
+        public void onRetry (String endpoint) {
+        }
+
+        @Override
+        public void onCacheHit (String endpoint) {
+        }
+    };
+
+    /**
+     * Called once a response has been dealt with and closed. The arguments are
+     * passed one by one, rather than as an object, so that nothing is allocated
+     * per request.
+     *
+     * @param status    The HTTP status code
+     * @param connectNanos  Time spent connecting (next to nothing for a reused
+     *                      connection)
+     * @param ttfbNanos Time from being connected to getting the status line,
+     *                  including sending the request body
+     * @param readNanos Time spent waiting on the network for the body
+     * @param decodeNanos   Time spent decompressing and decoding the body, not
+     *                      counting the time waiting on the network
+     * @param bytesSent The request body size on the wire
+     * @param bytesReceived The response body size on the wire
+     */
+    void onResponse (String endpoint, int status, long connectNanos, long ttfbNanos,
+                     long readNanos, long decodeNanos, long bytesSent, long bytesReceived);
+
+    /**
+     * Called when a request fails, whether with an {@code IOException} or with
+     * the {@link DoorbellsApiException} an error response turned into.
+     */
+    void onFailure (String endpoint, Exception e);
+
+    /** Called before a failed request is retried */
+    void onRetry (String endpoint);
+
+    /** Called when a request is answered from a cache instead of a full response */
+    void onCacheHit (String endpoint);
+}
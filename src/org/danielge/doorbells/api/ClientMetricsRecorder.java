@@ -0,0 +1,217 @@
+package org.danielge.doorbells.api;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The standard {@link ClientMetrics}: keeps, for every endpoint, a latency
+ * histogram for each phase of a request, along with byte counts, status codes,
+ * exception types, retries and cache hits. Recording a response is a handful
+ * of atomic increments and never allocates once an endpoint has been seen.
+ * (Recording a failure may, but a failure has already allocated an exception.)
+ * <p>
+ * {@link #snapshot()} renders everything as text, ready to be logged or
+ * attached to a bug report.
+ */
+public class ClientMetricsRecorder implements ClientMetrics {
+    private static final int MIN_STATUS = 100, MAX_STATUS = 599;
+
+    private final ConcurrentMap<String, EndpointStats> endpoints =
+            new ConcurrentHashMap<String, EndpointStats>();
+
+    /**
+     * A histogram of durations in power-of-two buckets of microseconds: bucket
+     * {@code i} counts durations under {@code 2^i} microseconds. Percentiles
+     * are only as precise as the buckets, i.e. to within a factor of two.
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong sumMicros = new AtomicLong();
+
+        void record (long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            total.incrementAndGet();
+            sumMicros.addAndGet(micros);
+        }
+
+        long count() {
+            return total.get();
+        }
+
+        /**
+         * @return  The upper bound, in microseconds, of the bucket that the
+         *          given fraction of durations falls under
+         */
+        long percentileMicros (double fraction) {
+            long n = total.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        long meanMicros() {
+            long n = total.get();
+            return (n == 0) ? 0 : sumMicros.get() / n;
+        }
+
+        @Override
+        public String toString() {
+            return "mean " + meanMicros() + "us, p50 <" + percentileMicros(0.5)
+                    + "us, p95 <" + percentileMicros(0.95)
+                    + "us, p99 <" + percentileMicros(0.99) + "us";
+        }
+    }
+
+    static class EndpointStats {
+        final Histogram connect = new Histogram();
+        final Histogram ttfb = new Histogram();
+        final Histogram read = new Histogram();
+        final Histogram decode = new Histogram();
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong cacheHits = new AtomicLong();
+        // By status code, from MIN_STATUS; a map would box most codes
+        final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS - MIN_STATUS + 1);
+        final AtomicLong otherStatuses = new AtomicLong();
+        final ConcurrentMap<String, AtomicLong> failures =
+                new ConcurrentHashMap<String, AtomicLong>();
+    }
+
+    private EndpointStats stats (String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        if (stats == null) {
+            EndpointStats fresh = new EndpointStats();
+            stats = endpoints.putIfAbsent(endpoint, fresh);
+            if (stats == null) {
+                stats = fresh;
+            }
+        }
+        return stats;
+    }
+
+    private static <K> void increment (ConcurrentMap<K, AtomicLong> counters, K key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong fresh = new AtomicLong();
+            counter = counters.putIfAbsent(key, fresh);
+            if (counter == null) {
+                counter = fresh;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    @Override
+    public void onResponse (String endpoint, int status, long connectNanos, long ttfbNanos,
+                            long readNanos, long decodeNanos,
+                            long bytesSent, long bytesReceived) {
+        EndpointStats stats = stats(endpoint);
+        stats.connect.record(connectNanos);
+        stats.ttfb.record(ttfbNanos);
+        stats.read.record(readNanos);
+        stats.decode.record(decodeNanos);
+        stats.bytesSent.addAndGet(bytesSent);
+        stats.bytesReceived.addAndGet(bytesReceived);
+        if (status >= MIN_STATUS && status <= MAX_STATUS) {
+            stats.statuses.incrementAndGet(status - MIN_STATUS);
+        } else {
+            stats.otherStatuses.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onFailure (String endpoint, Exception e) {
+        increment(stats(endpoint).failures, e.getClass().getSimpleName());
+    }
+
+    @Override
+    public void onRetry (String endpoint) {
+        stats(endpoint).retries.incrementAndGet();
+    }
+
+    @Override
+    public void onCacheHit (String endpoint) {
+        stats(endpoint).cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        endpoints.clear();
+    }
+
+    /**
+     * @return  Everything recorded so far, one endpoint at a time, e.g.
+     * <pre>
+     * /tags: 12 responses, 4 cache hits, 1 retries, sent 0B, received 5321B
+     *   status {200=11, 304=1}, failures {SocketTimeoutException=1}
+     *   connect mean 210us, p50 &lt;256us, p95 &lt;1024us, p99 &lt;1024us
+     *   ...
+     * </pre>
+     */
+    public String snapshot() {
+        StringBuilder out = new StringBuilder();
+        Map<String, EndpointStats> sorted = new TreeMap<String, EndpointStats>(endpoints);
+        for (Map.Entry<String, EndpointStats> entry : sorted.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            out.append(entry.getKey()).append(": ")
+               .append(stats.ttfb.count()).append(" responses, ")
+               .append(stats.cacheHits.get()).append(" cache hits, ")
+               .append(stats.retries.get()).append(" retries, sent ")
+               .append(stats.bytesSent.get()).append("B, received ")
+               .append(stats.bytesReceived.get()).append("B\n");
+            out.append("  status ");
+            appendStatuses(out, stats);
+            out.append(", failures ").append(new TreeMap<String, AtomicLong>(stats.failures))
+               .append('\n');
+            out.append("  connect ").append(stats.connect).append('\n');
+            out.append("  ttfb    ").append(stats.ttfb).append('\n');
+            out.append("  read    ").append(stats.read).append('\n');
+            out.append("  decode  ").append(stats.decode).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendStatuses (StringBuilder out, EndpointStats stats) {
+        out.append('{');
+        String separator = "";
+        for (int i = 0; i < stats.statuses.length(); i++) {
+            long count = stats.statuses.get(i);
+            if (count > 0) {
+                out.append(separator).append(MIN_STATUS + i).append('=').append(count);
+                separator = ", ";
+            }
+        }
+        long other = stats.otherStatuses.get();
+        if (other > 0) {
+            out.append(separator).append("other=").append(other);
+        }
+        out.append('}');
+    }
+
+    @Override
+    public String toString() {
+        return snapshot();
+    }
+}
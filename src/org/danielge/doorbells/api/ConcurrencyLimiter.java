@@ -0,0 +1,109 @@
+package org.danielge.doorbells.api;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many requests are in flight to each host at once. A request over
+ * the cap queues, first come first served, until one of the others is done
+ * with its connection, or until it runs out of time waiting, in which case it
+ * fails with a {@link DeadlineExceededException}.
+ * <p>
+ * This keeps a busy client (the UI, the push service and the sync all sharing
+ * one) from opening more sockets than the transport will keep alive, and
+ * keeps any one of them from starving the others. A limiter is thread-safe,
+ * and may be shared by several clients.
+ * <p>
+ * A {@link MessageStream}'s connection is not counted: it stays open for as
+ * long as the app is on screen, so counting it would take a slot away from
+ * every other request for all that time, or, with a limit of one, stop them
+ * altogether.
+ */
+public final class ConcurrencyLimiter {
+    /** As many as {@link KeepAliveTransport} keeps idle connections for */
+    public static final int DEFAULT_MAX_PER_HOST = KeepAliveTransport.DEFAULT_MAX_IDLE_CONNECTIONS;
+    public static final int UNLIMITED = 0;
+
+    static final ConcurrencyLimiter NONE = new ConcurrencyLimiter(UNLIMITED);
+
+    private final int maxPerHost;
+    private final ConcurrentMap<String, Semaphore> hosts =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * @param maxPerHost    The most requests to have in flight to one host, or
+     *                      {@link #UNLIMITED}
+     */
+    public ConcurrencyLimiter (int maxPerHost) {
+        if (maxPerHost < 0) {
+            throw new IllegalArgumentException("maxPerHost must be non-negative");
+        }
+        this.maxPerHost = maxPerHost;
+    }
+
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * @return  How many requests are waiting for a slot to the host
+     */
+    public int getQueueLength (String host) {
+        Semaphore slots = hosts.get(host);
+        return (slots == null) ? 0 : slots.getQueueLength();
+    }
+
+    /**
+     * Waits for a slot to the host.
+     *
+     * @param timeoutMillis The longest to wait, or {@code 0} for no limit
+     * @return  The slot, to be handed back to {@link #release(Semaphore)}; or
+     *          {@code null} if there is no limit, in which case there is
+     *          nothing to hand back
+     * @throws DeadlineExceededException    If no slot came free in time
+     * @throws InterruptedIOException   If the thread was interrupted while
+     *                                  waiting; the interrupt is left set
+     */
+    Semaphore acquire (String host, long timeoutMillis)
+            throws DeadlineExceededException, InterruptedIOException {
+        if (maxPerHost == UNLIMITED) {
+            return null;
+        }
+
+        Semaphore slots = hosts.get(host);
+        if (slots == null) {
+            Semaphore created = new Semaphore(maxPerHost, true);
+            slots = hosts.putIfAbsent(host, created);
+            if (slots == null) {
+                slots = created;
+            }
+        }
+
+        try {
+            if (timeoutMillis > 0) {
+                if (!slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new DeadlineExceededException("timed out after " + timeoutMillis
+                            + "ms waiting for one of " + maxPerHost + " connections to " + host);
+                }
+            } else {
+                slots.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a connection to " + host);
+        }
+        return slots;
+    }
+
+    /**
+     * Hands back a slot from {@link #acquire(String, long)}.
+     */
+    static void release (Semaphore slot) {
+        if (slot != null) {
+            slot.release();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.danielge.doorbells.api;
+
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last decoded response to each GET, along with the
+ * {@code ETag} and {@code Last-Modified} validators the server sent with it.
+ * A {@link DoorbellsClient} with a cache (see
+ * {@link DoorbellsClient#withCache(ConditionalCache)}) sends those validators
+ * back as {@code If-None-Match} and {@code If-Modified-Since}, and when the
+ * server answers {@code 304 Not Modified} it returns the cached object instead
+ * of downloading and decoding the body again.
+ * <p>
+ * The cache holds at most a fixed number of responses, evicting the least
+ * recently used one when it is full. If it is given a directory, entries are
+ * also written there (as JSON) so that they survive a restart.
+ * <p>
+ * Responses are only good for the user they were made for, so a cache holds
+ * one user's at a time. {@link #setUser(String)} drops whatever was cached
+ * for anyone else, on disk too; a persistent cache remembers whose entries
+ * it has across restarts. {@link DoorbellsClient#invalidate()} clears the
+ * client's cache on the way out.
+ * <p>
+ * The client copies the arrays it returns, so callers can't change what is
+ * cached for the next one; the decoded objects themselves are immutable. All
+ * methods are thread-safe.
+ */
+public class ConditionalCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private final int maxEntries;
+    private final File directory;   // null if the cache is memory-only
+    private final LinkedHashMap<String, CachedResponse> entries;
+    private String user;    // Whose responses are cached, or null if not known
+
+    private int hits, misses;
+
+    static class CachedResponse {
+        final String etag;
+        final String lastModified;
+        final Object value;
+
+        CachedResponse (String etag, String lastModified, Object value) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+
+    public ConditionalCache() {
+        this(DEFAULT_MAX_ENTRIES, null, null);
+    }
+
+    public ConditionalCache (int maxEntries) {
+        this(maxEntries, null, null);
+    }
+
+    /**
+     * @param maxEntries    The most responses to hold at once
+     * @param directory     Where to persist entries, or {@code null} to keep
+     *                      them in memory only
+     * @param user          Whose responses are to be cached, as for
+     *                      {@link #setUser(String)}
+     */
+    public ConditionalCache (int maxEntries, File directory, String user) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.directory = directory;
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, CachedResponse> eldest) {
+                if (size() > ConditionalCache.this.maxEntries) {
+                    deleteFile(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (directory != null) {
+            directory.mkdirs();
+            this.user = readUser();
+        }
+        setUser(user);
+    }
+
+    /**
+     * Scopes the cache to one user, e.g. whoever just signed in. If it holds
+     * responses for someone else (or for no one in particular), they are
+     * dropped first.
+     *
+     * @param user  Anything that tells users apart, such as their email
+     */
+    public synchronized void setUser (String user) {
+        if (user == null ? this.user == null : user.equals(this.user)) {
+            return;
+        }
+        clear();
+        this.user = user;
+        if (directory != null) {
+            writeUser();
+        }
+    }
+
+    public synchronized String getUser() {
+        return user;
+    }
+
+    /**
+     * @param key   The request, without any auth token
+     * @param type  What the response body decodes to
+     * @return  The cached entry, or {@code null} if there is none
+     */
+    synchronized CachedResponse get (String key, Class<?> type) {
+        CachedResponse entry = entries.get(key);
+        if (entry == null && directory != null) {
+            entry = readFile(key, type);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a response. Responses without any validators are not worth
+     * keeping, since there is no way to revalidate them.
+     */
+    synchronized void put (String key, String etag, String lastModified, Object value) {
+        if (etag == null && lastModified == null) {
+            remove(key);
+            return;
+        }
+
+        CachedResponse entry = new CachedResponse(etag, lastModified, value);
+        entries.put(key, entry);
+        if (directory != null) {
+            writeFile(key, entry);
+        }
+    }
+
+    synchronized void remove (String key) {
+        entries.remove(key);
+        deleteFile(key);
+    }
+
+    synchronized void recordHit() {
+        hits++;
+    }
+
+    synchronized void recordMiss() {
+        misses++;
+    }
+
+    /** @return  How many requests were answered with a 304 */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /** @return  How many cacheable requests had to download a full body */
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops every entry, including the ones on disk that haven't been read
+     * back yet.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        if (directory == null) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".json")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    /* Disk persistence: the key, the validators, then the value as JSON */
+
+    private File userFile() {
+        return new File(directory, "user");
+    }
+
+    private String readUser() {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(userFile()), Utils.UTF_8));
+            try {
+                return in.readLine();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Nobody's yet (or unreadable): whatever is there gets dropped
+            return null;
+        }
+    }
+
+    private void writeUser() {
+        File file = userFile();
+        if (user == null) {
+            file.delete();
+            return;
+        }
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), Utils.UTF_8);
+            try {
+                out.write(user + '\n');
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Then the next start won't know whose the entries are, and drops them
+            file.delete();
+        }
+    }
+
+    private File fileFor (String key) {
+        return new File(directory, Integer.toHexString(key.hashCode()) + ".json");
+    }
+
+    private void writeFile (String key, CachedResponse entry) {
+        File file = fileFor(key);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), Utils.UTF_8);
+            try {
+                out.write(key + '\n');
+                out.write((entry.etag == null ? "" : entry.etag) + '\n');
+                out.write((entry.lastModified == null ? "" : entry.lastModified) + '\n');
+                JsonCodec.GSON.toJson(entry.value, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // The cache is only an optimization; just don't persist this one
+            file.delete();
+        } catch (RuntimeException e) {  // Gson's JsonIOException
+            file.delete();
+        }
+    }
+
+    private CachedResponse readFile (String key, Class<?> type) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), Utils.UTF_8));
+            try {
+                if (!key.equals(in.readLine())) {
+                    return null;    // A different request with the same hash
+                }
+                String etag = in.readLine();
+                String lastModified = in.readLine();
+                Object value = JsonCodec.GSON.fromJson(in, type);
+                if (value == null) {
+                    return null;
+                }
+                return new CachedResponse(etag.length() == 0 ? null : etag,
+                        lastModified.length() == 0 ? null : lastModified, value);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        } catch (RuntimeException e) {  // Gson's JsonParseException, or a truncated file
+            file.delete();
+            return null;
+        }
+    }
+
+    private void deleteFile (String key) {
+        if (directory != null) {
+            fileFor(key).delete();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.danielge.doorbells.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it, and the time spent waiting on them.
+ * Optionally refuses to read more than a given number of bytes.
+ */
+class CountingInputStream extends FilterInputStream {
+    private static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private final long limit;
+    private long count;
+    private long readNanos;
+
+    CountingInputStream (InputStream in) {
+        this(in, NO_LIMIT);
+    }
+
+    /**
+     * @param limit The most bytes to read before failing with a
+     *              {@link ResponseTooLargeException}
+     */
+    CountingInputStream (InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getReadNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        readNanos += System.nanoTime() - start;
+        if (b != -1) {
+            count++;
+            checkLimit();
+        }
+        return b;
+    }
+
+    @Override
+    public int read (byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int read = super.read(buffer, offset, length);
+        readNanos += System.nanoTime() - start;
+        if (read > 0) {
+            count += read;
+            checkLimit();
+        }
+        return read;
+    }
+
+    @Override
+    public long skip (long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = super.skip(n);
+        readNanos += System.nanoTime() - start;
+        count += skipped;
+        checkLimit();
+        return skipped;
+    }
+
+    private void checkLimit() throws ResponseTooLargeException {
+        if (count > limit) {
+            throw new ResponseTooLargeException("body is larger than " + limit + " bytes");
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces a {@link Timeouts} on one connection. The connect and read
+ * timeouts are handed to the connection itself; the total timeout is enforced
+ * by a watchdog that disconnects the connection out from under whoever is
+ * using it, which makes any blocked read or write fail.
+ * <p>
+ * The total timeout covers a whole call, not just one request of it: every
+ * request made by a {@link Retrier} on behalf of one call (retries and hedges
+ * included) counts from when the call started, so later attempts only get
+ * what the earlier ones left. Requests find the call they belong to through
+ * the thread they are made on, as they find their {@link Attempt}.
+ */
+final class Deadline {
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "doorbells-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // When the call that the thread's requests belong to started, if any
+    private static final ThreadLocal<Long> CALL_STARTED = new ThreadLocal<Long>();
+
+    private final HttpURLConnection connection;
+    private final Timeouts timeouts;
+    private final String resource;
+    private final long startedAt = callStartedAt();
+    private volatile boolean expired;
+    private ScheduledFuture<?> watchdog;
+
+    private Deadline (HttpURLConnection connection, Timeouts timeouts, String resource) {
+        this.connection = connection;
+        this.timeouts = timeouts;
+        this.resource = resource;
+    }
+
+    /**
+     * @return  When the call that requests made on this thread belong to
+     *          started, by {@link System#nanoTime()}, or now if there is none
+     */
+    static long callStartedAt() {
+        Long started = CALL_STARTED.get();
+        return (started == null) ? System.nanoTime() : started;
+    }
+
+    /**
+     * Counts the total timeout of every request made on this thread from
+     * {@code startedAt}, until {@link #exitCall(Long)}.
+     *
+     * @return  The call this thread was in before, to hand to {@code exitCall}
+     */
+    static Long enterCall (long startedAt) {
+        Long outer = CALL_STARTED.get();
+        CALL_STARTED.set(startedAt);
+        return outer;
+    }
+
+    static void exitCall (Long outer) {
+        if (outer == null) {
+            CALL_STARTED.remove();
+        } else {
+            CALL_STARTED.set(outer);
+        }
+    }
+
+    /**
+     * @return  How long is left of the total timeout of a call that started
+     *          at {@code startedAt}, or {@link Long#MAX_VALUE} if there is none
+     */
+    static long remainingMillis (Timeouts timeouts, long startedAt) {
+        long total = timeouts.getTotalMillis();
+        if (total <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return total - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Starts the clock on a connection that hasn't been connected yet. It
+     * isn't cut off until {@link #arm()}, so that it can wait for a slot to
+     * its host (see {@link #remainingMillis()}) in the meantime.
+     */
+    static Deadline start (HttpURLConnection connection, Timeouts timeouts,
+                           String resource) {
+        connection.setConnectTimeout(timeouts.getConnectMillis());
+        connection.setReadTimeout(timeouts.getReadMillis());
+
+        // Leave the query (and the auth token in it) out of error messages
+        int query = resource.indexOf('?');
+        return new Deadline(connection, timeouts,
+                (query < 0) ? resource : resource.substring(0, query));
+    }
+
+    /**
+     * Cuts the connection off once whatever is left of the total timeout runs
+     * out. Call this just before connecting.
+     *
+     * @throws DeadlineExceededException    If it has already run out
+     */
+    void arm() throws DeadlineExceededException {
+        long left = remainingMillis();
+        if (left > 0) {
+            watchdog = WATCHDOG.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired = true;
+                    connection.disconnect();
+                }
+            }, left, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return  How long is left of the total timeout, or {@code 0} if there
+     *          is none
+     * @throws DeadlineExceededException    If it has already run out
+     */
+    long remainingMillis() throws DeadlineExceededException {
+        long total = timeouts.getTotalMillis();
+        if (total <= 0) {
+            return 0;
+        }
+        long left = remainingMillis(timeouts, startedAt);
+        if (left <= 0 || expired) {
+            throw new DeadlineExceededException("request to " + resource
+                    + " took longer than " + total + "ms");
+        }
+        return left;
+    }
+
+    /**
+     * Stops the clock, once the connection is done with.
+     */
+    void cancel() {
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Turns the exception that a timed-out connection failed with into a
+     * {@link DeadlineExceededException}. Any other exception is returned as-is.
+     */
+    IOException translate (IOException e) {
+        if (e instanceof DeadlineExceededException) {
+            return e;
+        }
+        if (expired) {
+            return new DeadlineExceededException("request to " + resource
+                    + " took longer than " + timeouts.getTotalMillis() + "ms", e);
+        }
+        if (e instanceof SocketTimeoutException) {
+            return new DeadlineExceededException("request to " + resource
+                    + " timed out (" + timeouts + ")", e);
+        }
+        return e;
+    }
+}
@@ -0,0 +1,28 @@
+package org.danielge.doorbells.api;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a request runs out of the time given to it by its
+ * {@link Timeouts}. It is an {@code IOException}, so code that already treats
+ * a failure to reach the server as an {@code IOException} handles it as such.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+    public DeadlineExceededException() {
+        super();
+    }
+
+    public DeadlineExceededException(Throwable tr) {
+        super(tr == null ? null : tr.toString());
+        initCause(tr);
+    }
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    public DeadlineExceededException(String message, Throwable tr) {
+        super(message);
+        initCause(tr);
+    }
+}
@@ -0,0 +1,456 @@
+package org.danielge.doorbells.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the calls of a {@link DoorbellsClient} on a bounded pool of background
+ * threads. Every call returns a {@code Future}, and optionally reports back to a
+ * {@link Callback}, so independent calls (e.g. {@link #getMessages()} and
+ * {@link #getTags()}) can be in flight at the same time.
+ * <p>
+ * Cancelling a future stops a call that hasn't started yet. Cancelling it
+ * with {@code mayInterruptIfRunning} also cuts off a call that is already
+ * talking to the server: its connection is disconnected, since interrupting
+ * the thread alone wouldn't stop a blocked read, and the call fails straight
+ * away and hands back its thread. Other callers that were sharing that request
+ * (see {@link DoorbellsClient}) see it fail too.
+ * <p>
+ * If the pool is busy and its queue is full, calls are rejected with a
+ * {@code RejectedExecutionException} rather than queued without bound.
+ */
+public class DoorbellsAsyncClient {
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final DoorbellsClient client;
+    private final ExecutorService executor;
+    // Submitted and not yet done, so that shutting down can cut them off
+    private final Set<CallbackTask<?>> tasks = new HashSet<CallbackTask<?>>();
+
+    /**
+     * Receives the outcome of a call. Both methods are called on the worker
+     * thread that ran the call, and neither is called if the call was cancelled.
+     */
+    public interface Callback<T> {
+        void onSuccess (T result);
+
+        /**
+         * @param e An {@code IOException} or {@code DoorbellsApiException} thrown
+         *          by the call, or a {@code RuntimeException} if something else
+         *          went wrong
+         */
+        void onFailure (Exception e);
+    }
+
+    public DoorbellsAsyncClient (DoorbellsClient client) {
+        this(client, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param threads   The most calls that may run at the same time
+     * @param queueCapacity The most calls that may wait for a thread
+     */
+    public DoorbellsAsyncClient (DoorbellsClient client, int threads, int queueCapacity) {
+        this(client, newBoundedExecutor(threads, queueCapacity));
+    }
+
+    /**
+     * Runs calls on the given executor. The executor is shut down along with
+     * this client.
+     */
+    public DoorbellsAsyncClient (DoorbellsClient client, ExecutorService executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    public DoorbellsClient getClient() {
+        return client;
+    }
+
+    /**
+     * Stops accepting new calls, and cancels the ones waiting or in flight as
+     * {@code cancel(true)} would.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        List<CallbackTask<?>> pending;
+        synchronized (tasks) {
+            pending = new ArrayList<CallbackTask<?>>(tasks);
+        }
+        for (CallbackTask<?> task : pending) {
+            task.cancel(true);
+        }
+    }
+
+    private static ExecutorService newBoundedExecutor (int threads, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread (Runnable r) {
+            Thread thread = new Thread(r, "doorbells-client-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private <T> Future<T> submit (Callable<T> call, Callback<T> callback) {
+        CallbackTask<T> task = new CallbackTask<T>(new Attempt<T>(call), callback);
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            synchronized (tasks) {
+                tasks.remove(task);
+            }
+            throw e;
+        }
+        return task;
+    }
+
+    private class CallbackTask<T> extends FutureTask<T> {
+        private final Attempt<T> attempt;
+        private final Callback<T> callback;
+
+        CallbackTask (Attempt<T> attempt, Callback<T> callback) {
+            super(attempt);
+            this.attempt = attempt;
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel (boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning) {
+                attempt.cancel();
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (tasks) {
+                tasks.remove(this);
+            }
+            if (callback == null || isCancelled()) {
+                return;
+            }
+
+            try {
+                callback.onSuccess(get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    callback.onFailure((Exception) cause);
+                } else {
+                    callback.onFailure(new RuntimeException(cause));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /* API for authorization */
+
+    public Future<Boolean> invalidate() {
+        return invalidate(null);
+    }
+
+    public Future<Boolean> invalidate (Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.invalidate();
+            }
+        }, callback);
+    }
+
+
+    /* API for GCM registration */
+
+    public Future<Void> registerDevice (String regId) {
+        return registerDevice(regId, null);
+    }
+
+    public Future<Void> registerDevice (final String regId, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                client.registerDevice(regId);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> unregisterDevice (String regId) {
+        return unregisterDevice(regId, null);
+    }
+
+    public Future<Boolean> unregisterDevice (final String regId,
+                                             Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.unregisterDevice(regId);
+            }
+        }, callback);
+    }
+
+
+    /* API for messages */
+
+    public Future<Message> getMessage (int id) {
+        return getMessage(id, null);
+    }
+
+    public Future<Message> getMessage (final int id, Callback<Message> callback) {
+        return submit(new Callable<Message>() {
+            @Override
+            public Message call() throws Exception {
+                return client.getMessage(id);
+            }
+        }, callback);
+    }
+
+    public Future<Message[]> getMessages() {
+        return getMessages((Callback<Message[]>) null);
+    }
+
+    public Future<Message[]> getMessages (Callback<Message[]> callback) {
+        return submit(new Callable<Message[]>() {
+            @Override
+            public Message[] call() throws Exception {
+                return client.getMessages();
+            }
+        }, callback);
+    }
+
+    public Future<Message[]> getMessages (MessageQuery query) {
+        return getMessages(query, null);
+    }
+
+    public Future<Message[]> getMessages (final MessageQuery query,
+                                         Callback<Message[]> callback) {
+        return submit(new Callable<Message[]>() {
+            @Override
+            public Message[] call() throws Exception {
+                return client.getMessages(query);
+            }
+        }, callback);
+    }
+
+    public Future<List<Message>> getMessageHistory (int pageSize, int maxMessages) {
+        return getMessageHistory(pageSize, maxMessages, null);
+    }
+
+    /**
+     * Loads the newest {@code maxMessages} of the user's message history (see
+     * {@link DoorbellsClient#getMessageHistory(int)}), {@code pageSize} at a
+     * time. A page that fails to load fails the call with what it failed with.
+     */
+    public Future<List<Message>> getMessageHistory (final int pageSize, final int maxMessages,
+                                                    Callback<List<Message>> callback) {
+        return submit(new Callable<List<Message>>() {
+            @Override
+            public List<Message> call() throws Exception {
+                List<Message> messages = new ArrayList<Message>();
+                try {
+                    Iterator<Message> history = client.getMessageHistory(pageSize).iterator();
+                    // Checked first, so that no page is fetched just to be dropped
+                    while (messages.size() < maxMessages && history.hasNext()) {
+                        messages.add(history.next());
+                    }
+                } catch (MessageHistory.FetchException e) {
+                    throw (Exception) e.getCause();
+                }
+                return messages;
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> sendMessage (String tagId, String message) {
+        return sendMessage(tagId, message, null);
+    }
+
+    public Future<Boolean> sendMessage (final String tagId, final String message,
+                                        Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.sendMessage(tagId, message);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> deleteMessage (int msgId) {
+        return deleteMessage(msgId, null);
+    }
+
+    public Future<Boolean> deleteMessage (final int msgId, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.deleteMessage(msgId);
+            }
+        }, callback);
+    }
+
+
+    public Future<BatchResult<String>> sendMessage (Collection<String> tagIds,
+                                                    String message) {
+        return sendMessage(tagIds, message, null);
+    }
+
+    public Future<BatchResult<String>> sendMessage (final Collection<String> tagIds,
+                                                    final String message,
+                                                    Callback<BatchResult<String>> callback) {
+        return submit(new Callable<BatchResult<String>>() {
+            @Override
+            public BatchResult<String> call() {
+                return client.sendMessage(tagIds, message);
+            }
+        }, callback);
+    }
+
+    public Future<BatchResult<Integer>> deleteMessages (int... msgIds) {
+        return deleteMessages(null, msgIds);
+    }
+
+    public Future<BatchResult<Integer>> deleteMessages (Callback<BatchResult<Integer>> callback,
+                                                        final int... msgIds) {
+        return submit(new Callable<BatchResult<Integer>>() {
+            @Override
+            public BatchResult<Integer> call() {
+                return client.deleteMessages(msgIds);
+            }
+        }, callback);
+    }
+
+
+    /* API for tags */
+
+    public Future<Tag> getTag (String tagId) {
+        return getTag(tagId, null);
+    }
+
+    public Future<Tag> getTag (final String tagId, Callback<Tag> callback) {
+        return submit(new Callable<Tag>() {
+            @Override
+            public Tag call() throws Exception {
+                return client.getTag(tagId);
+            }
+        }, callback);
+    }
+
+    public Future<Tag[]> getTags() {
+        return getTags(null);
+    }
+
+    public Future<Tag[]> getTags (Callback<Tag[]> callback) {
+        return submit(new Callable<Tag[]>() {
+            @Override
+            public Tag[] call() throws Exception {
+                return client.getTags();
+            }
+        }, callback);
+    }
+
+    public Future<Tag> createTag (String location) {
+        return createTag(location, null);
+    }
+
+    public Future<Tag> createTag (final String location, Callback<Tag> callback) {
+        return submit(new Callable<Tag>() {
+            @Override
+            public Tag call() throws Exception {
+                return client.createTag(location);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> updateTag (String tagId, String newLocation) {
+        return updateTag(tagId, newLocation, null);
+    }
+
+    public Future<Boolean> updateTag (final String tagId, final String newLocation,
+                                      Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.updateTag(tagId, newLocation);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> destroyTag (String tagId) {
+        return destroyTag(tagId, null);
+    }
+
+    public Future<Boolean> destroyTag (final String tagId, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.destroyTag(tagId);
+            }
+        }, callback);
+    }
+
+    public Future<BatchResult<String>> updateTags (Map<String, String> newLocations) {
+        return updateTags(newLocations, null);
+    }
+
+    public Future<BatchResult<String>> updateTags (final Map<String, String> newLocations,
+                                                   Callback<BatchResult<String>> callback) {
+        return submit(new Callable<BatchResult<String>>() {
+            @Override
+            public BatchResult<String> call() {
+                return client.updateTags(newLocations);
+            }
+        }, callback);
+    }
+
+    public Future<BatchResult<String>> destroyTags (String... tagIds) {
+        return destroyTags(null, tagIds);
+    }
+
+    public Future<BatchResult<String>> destroyTags (Callback<BatchResult<String>> callback,
+                                                    final String... tagIds) {
+        return submit(new Callable<BatchResult<String>>() {
+            @Override
+            public BatchResult<String> call() {
+                return client.destroyTags(tagIds);
+            }
+        }, callback);
+    }
+}
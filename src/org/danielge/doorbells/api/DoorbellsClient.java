@@ -1,30 +1,283 @@
 package org.danielge.doorbells.api;
 
+import com.google.gson.annotations.SerializedName;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.danielge.doorbells.api.ApiUtils.Params;
 
+/**
+ * A client for the Doorbells API, signed in as one user.
+ * <p>
+ * A client is immutable, and safe to share between threads: one instance can
+ * serve the UI, the push service and the background sync at once, with no
+ * synchronization around it. Configuring it ({@code withCache},
+ * {@code withTimeouts} and the like) returns a new client rather than changing
+ * this one, and nothing passed to a call (a {@link MessageQuery}, say) is
+ * changed by it, so those can be shared too. Clients derived from one another
+ * share their {@link Session}, connections, transfer stats and the limit on
+ * concurrent requests (see {@link #withMaxConcurrentRequests(int)}). They also
+ * share in-flight GETs, unless they were given timeouts or a retry policy of
+ * their own, so that a GET never waits on one made under other terms.
+ * <p>
+ * Every call blocks on the network, so make them off the UI thread, or use a
+ * {@link DoorbellsAsyncClient}.
+ */
 public class DoorbellsClient {
     public static final String TAG = DoorbellsClient.class.getSimpleName();
 
     private static final int HTTP_OK = 200,
                              HTTP_BAD_REQUEST = 400,
+                             HTTP_NOT_MODIFIED = 304,
                              HTTP_UNAUTHORIZED = 401,
                              HTTP_NOT_FOUND = 404,
                              HTTP_SERVER_ERROR = 500;
 
-    private String authToken;   // Guaranteed never to be null
+    /** The most requests a batch call keeps in flight at once */
+    public static final int BATCH_CONCURRENCY = 4;
+
+    private static Transport defaultTransport;
+
+    private final RequestContext context;
+    private final Session session;
+    private final ConditionalCache cache;   // null if responses aren't cached
+    private final TagCache tagCache;        // null if tags aren't cached
+    private final RetryPolicy retryPolicy;
+    private final SingleFlight inFlight;
+    private final Retrier retrier;
+
+    private DoorbellsClient (RequestContext context, Session session) {
+        this(context, session, null, null, RetryPolicy.DEFAULT, new SingleFlight(),
+                new Retrier());
+    }
+
+    private DoorbellsClient (RequestContext context, Session session,
+                             ConditionalCache cache, TagCache tagCache,
+                             RetryPolicy retryPolicy, SingleFlight inFlight, Retrier retrier) {
+        this.context = context;
+        this.session = session;
+        this.cache = cache;
+        this.tagCache = tagCache;
+        this.retryPolicy = retryPolicy;
+        this.inFlight = inFlight;
+        this.retrier = retrier;
+    }
+
+    // Derived clients share the session, tag cache, in-flight GETs, transfer
+    // stats and latency history
+    private DoorbellsClient with (RequestContext context, ConditionalCache cache,
+                                  RetryPolicy retryPolicy) {
+        return new DoorbellsClient(context, session, cache, tagCache, retryPolicy,
+                inFlight, retrier);
+    }
+
+    // ...except that a client with its own deadlines or retries must not join
+    // a GET that runs under someone else's
+    private DoorbellsClient withOwnFlights (RequestContext context, RetryPolicy retryPolicy) {
+        return new DoorbellsClient(context, session, cache, tagCache, retryPolicy,
+                new SingleFlight(), retrier);
+    }
+
+    /**
+     * Returns the {@link KeepAliveTransport} to the production server that is
+     * shared by every client not given a transport of its own.
+     */
+    public static synchronized Transport getDefaultTransport() {
+        if (defaultTransport == null) {
+            defaultTransport = new KeepAliveTransport();
+        }
+        return defaultTransport;
+    }
+
+    public Transport getTransport() {
+        return context.transport;
+    }
 
-    private DoorbellsClient (String authToken) {
-        this.authToken = authToken;
+    /**
+     * @return  How many bytes this client (and any client derived from it) has
+     *          sent and received, on the wire and before compression
+     */
+    public TransferStats getTransferStats() {
+        return context.stats;
     }
 
+    /**
+     * @return  The session's token as it is now. It may be replaced at any time
+     *          if the session can re-authenticate.
+     */
     public String getAuthToken() {
-        return authToken;
+        return session.getToken().getValue();
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Returns a client for the same session that revalidates its GETs against
+     * the given cache, instead of downloading responses that haven't changed.
+     * Several clients may share one cache, as long as they are all for the
+     * user it is scoped to (see {@link ConditionalCache#setUser(String)}).
+     *
+     * @param cache The cache to use, or {@code null} to stop caching
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withCache (ConditionalCache cache) {
+        return with(context, cache, retryPolicy);
+    }
+
+    public ConditionalCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns a client for the same session that answers {@link #getTag(String)}
+     * and {@link #getTags()} from the given cache while it holds them, and
+     * writes its own tag changes through to it. Clients derived from the new
+     * one share the cache.
+     *
+     * @param tagCache  The cache to use, or {@code null} to stop caching tags
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withTagCache (TagCache tagCache) {
+        return new DoorbellsClient(context, session, cache, tagCache, retryPolicy,
+                inFlight, retrier);
+    }
+
+    public TagCache getTagCache() {
+        return tagCache;
+    }
+
+    /**
+     * Returns a client for the same session whose requests are bounded by the
+     * given timeouts (by default, {@link Timeouts#DEFAULT}). Since this is
+     * cheap, it can also be used for a single call:
+     * <pre>
+     *     client.withTimeouts(new Timeouts(5000, 5000, 10000)).getTags();
+     * </pre>
+     *
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withTimeouts (Timeouts timeouts) {
+        return withOwnFlights(context.withTimeouts(timeouts), retryPolicy);
+    }
+
+    public Timeouts getTimeouts() {
+        return context.timeouts;
+    }
+
+    /**
+     * Returns a client for the same session that retries failed GETs (and
+     * sends with an idempotency key) according to the given policy. By
+     * default, clients use {@link RetryPolicy#DEFAULT}, which makes up to 3
+     * attempts; {@link RetryPolicy#NONE} makes only one, as clients did
+     * before retries were added. Retries run within the total timeout.
+     *
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withRetryPolicy (RetryPolicy retryPolicy) {
+        return withOwnFlights(context, retryPolicy);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Returns a client for the same session that gzips request bodies of at
+     * least {@code minBytes} bytes. Only use this if the server accepts
+     * {@code Content-Encoding: gzip} requests. Responses are always
+     * negotiated with {@code Accept-Encoding: gzip}, whatever this is set to.
+     *
+     * @param minBytes  The smallest body worth compressing, or a negative number
+     *                  to never compress
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withRequestCompression (int minBytes) {
+        return with(context.withGzipRequestsOver(
+                (minBytes < 0) ? RequestContext.NEVER : minBytes), cache, retryPolicy);
+    }
+
+    /**
+     * Returns a client for the same session that reports every request it
+     * makes to the given metrics, e.g. a {@link ClientMetricsRecorder}:
+     * <pre>
+     *     ClientMetricsRecorder metrics = new ClientMetricsRecorder();
+     *     client = client.withMetrics(metrics);
+     *     ...
+     *     Log.d(TAG, metrics.snapshot());
+     * </pre>
+     *
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withMetrics (ClientMetrics metrics) {
+        return with(context.withMetrics(
+                (metrics == null) ? ClientMetrics.NONE : metrics), cache, retryPolicy);
+    }
+
+    public ClientMetrics getMetrics() {
+        return context.metrics;
+    }
+
+    /**
+     * Returns a client for the same session that has at most
+     * {@code maxPerHost} requests in flight to the server at once; any more
+     * queue until one of those is done, or until their total timeout runs out.
+     * By default, clients allow {@link ConcurrencyLimiter#DEFAULT_MAX_PER_HOST}.
+     * Clients derived from this one share its limit. A {@link MessageStream}'s
+     * connection is on top of the limit, not counted in it.
+     *
+     * @param maxPerHost    The most requests at once, or
+     *                      {@link ConcurrencyLimiter#UNLIMITED}
+     * @return  A new {@code DoorbellsClient}; this one is left as it was
+     */
+    public DoorbellsClient withMaxConcurrentRequests (int maxPerHost) {
+        return withConcurrencyLimiter(new ConcurrencyLimiter(maxPerHost));
+    }
+
+    /**
+     * Same as {@link #withMaxConcurrentRequests(int)}, except that the limit is
+     * shared with every other client using the same limiter.
+     */
+    public DoorbellsClient withConcurrencyLimiter (ConcurrencyLimiter limiter) {
+        return with(context.withLimiter((limiter == null) ? ConcurrencyLimiter.NONE : limiter),
+                cache, retryPolicy);
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return context.limiter;
+    }
+
+    /**
+     * Builds the JSON type adapters for every response the client knows how to
+     * decode. This is optional, and only saves the first request from doing it;
+     * it is safe to call from any thread.
+     */
+    public static void warmUp() {
+        JsonCodec.warmUp(AuthData.class, JsonStatusResponse.class, Message.class,
+                GetMessagesResponse.class, Tag.class, GetTagsResponse.class);
+    }
+
+    /**
+     * Gets a connection to the server ready ahead of the first request, if
+     * the client's transport is a {@link KeepAliveTransport}. This blocks, so
+     * call it off the UI thread.
+     */
+    public void preconnect() {
+        if (context.transport instanceof KeepAliveTransport) {
+            ((KeepAliveTransport) context.transport).preconnect();
+        }
     }
 
     private static class AuthData {
         private String token;
+        @SerializedName("expires_in")
+        private long expiresIn;     // Seconds; 0 if the server didn't say
 
         AuthData() {}
     }
@@ -57,24 +310,64 @@ public class DoorbellsClient {
      */
     public static DoorbellsClient authorize (String email, String password)
             throws DoorbellsApiException, IOException {
-        String params = Params.start("email", email)
-                              .addParam("password", password)
-                              .finish();
-        JsonResponse response = PostJsonResponse.makeRequest("/auth", params);
+        return authorize(getDefaultTransport(), email, password);
+    }
+
+    /**
+     * Same as {@link #authorize(String, String)}, except that the returned client
+     * (and the authorization request itself) goes through the given transport.
+     */
+    public static DoorbellsClient authorize (Transport transport,
+                                             String email,
+                                             String password)
+            throws DoorbellsApiException, IOException {
+        return new DoorbellsClient(new RequestContext(transport),
+                new Session(requestToken(transport, email, password), null, null));
+    }
 
-        if (response.getResponseCode() == HTTP_OK) {
-            AuthData auth = response.fromJson(AuthData.class);
-            return new DoorbellsClient(auth.token);
-        }
+    /**
+     * Authenticates the user as {@link #authorize(String, String)} does, but
+     * only returns the new token, e.g. for a {@link Session.Authenticator}
+     * that signs the user back in when their session lapses:
+     * <pre>
+     *     Session session = new Session(token, new Session.Authenticator() {
+     *         public Session.Token authenticate() throws ... {
+     *             return DoorbellsClient.requestToken(transport, email, password);
+     *         }
+     *     }, listener);
+     *     DoorbellsClient client = DoorbellsClient.initialize(transport, session);
+     * </pre>
+     *
+     * @throws UnauthorizedException    if authorization fails
+     */
+    public static Session.Token requestToken (Transport transport,
+                                              String email,
+                                              String password)
+            throws DoorbellsApiException, IOException {
+        Params params = Params.start("email", email)
+                              .addParam("password", password);
+        RequestContext context = new RequestContext(transport);
+        JsonResponse response = PostJsonResponse.makeRequest(context, "/auth", params);
 
-        JsonStatusResponse status = response.fromJson(JsonStatusResponse.class);
-        switch (status.status) {
-            case HTTP_BAD_REQUEST:
-                throw new UnauthorizedException(status.msg);
-            case HTTP_UNAUTHORIZED:
-                throw new UnauthorizedException(status.msg);
-            default:
-                throw new DoorbellsApiException(status.msg);
+        try {
+            if (response.getResponseCode() == HTTP_OK) {
+                AuthData auth = response.fromJson(AuthData.class);
+                return new Session.Token(auth.token, (auth.expiresIn > 0)
+                        ? System.currentTimeMillis() + auth.expiresIn * 1000
+                        : Session.Token.NEVER_EXPIRES);
+            }
+
+            JsonStatusResponse status = response.fromJson(JsonStatusResponse.class);
+            switch (status.status) {
+                case HTTP_BAD_REQUEST:
+                    throw new UnauthorizedException(status.msg);
+                case HTTP_UNAUTHORIZED:
+                    throw new UnauthorizedException(status.msg);
+                default:
+                    throw new DoorbellsApiException(status.msg);
+            }
+        } finally {
+            response.close();
         }
     }
 
@@ -88,14 +381,51 @@ public class DoorbellsClient {
      * @return  An instantiated {@code DoorbellsClient} object.
      */
     public static DoorbellsClient initialize (String authToken) {
-        return new DoorbellsClient(authToken);
+        return initialize(getDefaultTransport(), authToken);
+    }
+
+    /**
+     * Same as {@link #initialize(String)}, except that the client talks to the
+     * server through the given transport.
+     */
+    public static DoorbellsClient initialize (Transport transport, String authToken) {
+        return initialize(transport, new Session(authToken));
+    }
+
+    /**
+     * Same as {@link #initialize(Transport, String)}, except that the client
+     * signs its requests with the session's token, and when the server turns
+     * that away, gets a new one from the session and tries again.
+     */
+    public static DoorbellsClient initialize (Transport transport, Session session) {
+        return new DoorbellsClient(new RequestContext(transport), session);
     }
 
+    /**
+     * Signs the user out, ending the session on the server. This client's
+     * caches are cleared whether or not the server could be reached, so that
+     * nothing cached for this user is served to whoever signs in next.
+     *
+     * @return  {@code true} if the server ended the session
+     */
     public boolean invalidate() throws IOException {
-        JsonResponse response =
-                PostJsonResponse.makeAuthRequest("/auth/destroy", authToken, null, null);
+        try {
+            JsonResponse response = PostJsonResponse.makeAuthRequest(
+                    context, "/auth/destroy", session.getToken().getEncoded(), null, null);
 
-        return response.getResponseCode() == HTTP_OK;
+            try {
+                return response.getResponseCode() == HTTP_OK;
+            } finally {
+                response.close();
+            }
+        } finally {
+            if (cache != null) {
+                cache.clear();
+            }
+            if (tagCache != null) {
+                tagCache.invalidateAll();
+            }
+        }
     }
 
 
@@ -116,14 +446,17 @@ public class DoorbellsClient {
     public void registerDevice (String regId)
             throws IOException, DoorbellsApiException {
         Params params = Params.start("id", regId);
-        JsonResponse response = PostJsonResponse.makeAuthRequest("/register",
-                authToken, params, null);
+        JsonResponse response = authorizedPost("/register", params, null);
 
-        if (response.getResponseCode() == HTTP_OK) {
-            return;
-        }
+        try {
+            if (response.getResponseCode() == HTTP_OK) {
+                return;
+            }
 
-        defaultErrorHandler(response);
+            defaultErrorHandler(response);
+        } finally {
+            response.close();
+        }
     }
 
     /**
@@ -140,17 +473,20 @@ public class DoorbellsClient {
     public boolean unregisterDevice (String regId)
             throws IOException, DoorbellsApiException {
         Params params = Params.start("id", regId);
-        JsonResponse response = PostJsonResponse.makeAuthRequest("/unregister",
-                authToken, params, null);
-
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return true;
-            case HTTP_NOT_FOUND:
-                return false;
-            default:
-                defaultErrorHandler(response);
-                return false;   // satisfy the compiler
+        JsonResponse response = authorizedPost("/unregister", params, null);
+
+        try {
+            switch (response.getResponseCode()) {
+                case HTTP_OK:
+                    return true;
+                case HTTP_NOT_FOUND:
+                    return false;
+                default:
+                    defaultErrorHandler(response);
+                    return false;   // satisfy the compiler
+            }
+        } finally {
+            response.close();
         }
     }
 
@@ -167,183 +503,606 @@ public class DoorbellsClient {
      * @throws DoorbellsApiException    If a server error occurs
      */
     public Message getMessage (int id) throws IOException, DoorbellsApiException {
-        JsonResponse response = GetJsonResponse.makeAuthRequest(
-                "/messages/" + id, authToken, null);
-
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return response.fromJson(Message.class);
-            case HTTP_NOT_FOUND:
-                return null;
-            default:
-                defaultErrorHandler(response);
-                return null;    // satisfy the compiler
-        }
+        return get("/messages/" + id, null, Message.class, true);
     }
 
     /**
      * Returns a list of Messages stored on the server for the specified user.
      * Currently, this returns 15 messages.
      *
-     * @return  An array of Messages
+     * @return  An array of Messages, empty (never {@code null}) if there are none
      * @throws IOException  If the client fails to connect to the server
      * @throws DoorbellsApiException    If a server error occurs
      */
     public Message[] getMessages() throws IOException, DoorbellsApiException {
-        JsonResponse response = GetJsonResponse.makeAuthRequest(
-                "/messages", authToken, null);
+        return get("/messages", null, GetMessagesResponse.class, false).messages();
+    }
+
+    /**
+     * Returns one page of the Messages stored on the server for the specified
+     * user, newest first.
+     *
+     * @param query The size of the page, and where in the history it starts
+     * @return  An array of at most {@code query.getLimit()} Messages, empty (never
+     *          {@code null}) if there are none
+     * @throws IOException  If the client fails to connect to the server
+     * @throws DoorbellsApiException    If a server error occurs
+     */
+    public Message[] getMessages (MessageQuery query)
+            throws IOException, DoorbellsApiException {
+        return get("/messages", query.toParams(), GetMessagesResponse.class, false).messages();
+    }
 
+    /**
+     * Returns the user's whole message history, newest first. Pages of
+     * {@code pageSize} messages are only fetched as the history is iterated
+     * over, so stopping early never loads more than is needed.
+     *
+     * @param pageSize  How many messages to fetch at a time
+     * @return  A lazily-fetched view of every message
+     */
+    public MessageHistory getMessageHistory (int pageSize) {
+        return new MessageHistory(this, MessageQuery.latest(pageSize));
+    }
+
+    /**
+     * Returns a stream of the user's messages as they arrive, starting with
+     * any after {@code afterId}; see {@link MessageStream}. It isn't started
+     * until {@link MessageStream#start()}.
+     *
+     * @param afterId   The newest message already seen, or
+     *                  {@link MessageStream#NONE} to start with the newest page
+     */
+    public MessageStream streamMessages (int afterId, MessageStream.Listener listener) {
+        return new MessageStream(this, afterId, listener);
+    }
+
+    /**
+     * Opens a long-lived GET for a {@link MessageStream}. Unlike other GETs it
+     * isn't cached, retried or shared, has no total timeout (only a read
+     * timeout, which the server's heartbeats keep from running out), and
+     * doesn't take up one of the host's slots in the concurrency limiter: it
+     * would hold the slot for as long as the stream is open, which with a
+     * small limit would hold up every other request, or with a limit of one,
+     * stop them.
+     *
+     * @return  A 200 response, whose body is yet to be read
+     */
+    JsonResponse openStream (String resource, Params query, Map<String, String> headers,
+                             int readTimeoutMillis)
+            throws IOException, DoorbellsApiException {
+        RequestContext streaming = context
+                .withTimeouts(new Timeouts(context.timeouts.getConnectMillis(),
+                        readTimeoutMillis, 0))
+                .withLimiter(ConcurrencyLimiter.NONE);
+        JsonResponse response = with(streaming, null, retryPolicy)
+                .authorizedGet(resource, query, headers);
         if (response.getResponseCode() == HTTP_OK) {
-            return response.fromJson(GetMessagesResponse.class).messages;
+            return response;
         }
 
-        defaultErrorHandler(response);
-        return null;    // satisfy compiler
+        try {
+            defaultErrorHandler(response);
+            return null;    // satisfy the compiler
+        } finally {
+            response.close();
+        }
     }
 
     private static class GetMessagesResponse {
+        private static final Message[] NONE = new Message[0];
+
         private int status;
         private Message[] messages;
 
         GetMessagesResponse() {}
+
+        // The server leaves the field out (or sends null) when there are none.
+        // A copy, since the response may be cached or shared with other callers
+        Message[] messages() {
+            return (messages == null) ? NONE : messages.clone();
+        }
     }
 
 
+    /**
+     * Sends a message to the owner of a tag. Since sending twice would deliver
+     * the message twice, a failed send is never retried; see
+     * {@link #sendMessage(String, String, String)} for one that is.
+     *
+     * @return  {@code true} if the message was sent, {@code false} if there is
+     *          no such tag
+     */
     public boolean sendMessage (String tagId, String message)
             throws IOException, DoorbellsApiException {
-        Params urlParams = Params.start("tag", tagId);
-        String contents = Params.start("contents", message).finish();
-        JsonResponse response = PostJsonResponse.makeAuthRequest(
-                "/send", authToken, urlParams, contents);
+        return send(tagId, message, null);
+    }
 
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return true;
-            case HTTP_NOT_FOUND:
-                return false;
-            default:
-                defaultErrorHandler(response);
-                return false;   // satisfy compiler
+    /**
+     * Sends a message to the owner of a tag, retrying according to this client's
+     * {@link RetryPolicy} if the send fails. The idempotency key is sent along
+     * with every attempt as an {@code Idempotency-Key} header, so that the
+     * server can recognize a repeat of a send it already carried out.
+     *
+     * @param idempotencyKey    A key unique to this message, e.g. a random UUID
+     * @return  {@code true} if the message was sent, {@code false} if there is
+     *          no such tag
+     */
+    public boolean sendMessage (final String tagId, final String message,
+                                final String idempotencyKey)
+            throws IOException, DoorbellsApiException {
+        return retrier.execute(retryPolicy, context, new SingleFlight.Call<Boolean>() {
+            @Override
+            public Boolean call() throws IOException, DoorbellsApiException {
+                return send(tagId, message, idempotencyKey);
+            }
+        }, false, "/send");
+    }
+
+    private boolean send (String tagId, String message, String idempotencyKey)
+            throws IOException, DoorbellsApiException {
+        Params urlParams = Params.start("tag", tagId);
+        Params contents = Params.start("contents", message);
+        Map<String, String> headers = null;
+        if (idempotencyKey != null) {
+            headers = new HashMap<String, String>();
+            headers.put("Idempotency-Key", idempotencyKey);
         }
+        JsonResponse response = authorizedPost("/send", urlParams, contents, headers);
 
+        try {
+            switch (response.getResponseCode()) {
+                case HTTP_OK:
+                    return true;
+                case HTTP_NOT_FOUND:
+                    return false;
+                default:
+                    defaultErrorHandler(response);
+                    return false;   // satisfy compiler
+            }
+        } finally {
+            response.close();
+        }
     }
 
     public boolean deleteMessage (int msgId)
             throws IOException, DoorbellsApiException {
         Params params = Params.start("id", msgId);
-        JsonResponse response = PostJsonResponse.makeAuthRequest(
-                "/messages/delete", authToken, params, null);
+        JsonResponse response = authorizedPost("/messages/delete", params, null);
 
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return true;
-            case HTTP_NOT_FOUND:
-                return false;
-            default:
-                defaultErrorHandler(response);
-                return false;   // satisfy compiler
+        try {
+            switch (response.getResponseCode()) {
+                case HTTP_OK:
+                    return true;
+                case HTTP_NOT_FOUND:
+                    return false;
+                default:
+                    defaultErrorHandler(response);
+                    return false;   // satisfy compiler
+            }
+        } finally {
+            response.close();
         }
     }
 
+    /**
+     * Deletes several messages. The server has no batch endpoint, so this makes
+     * up to {@link #BATCH_CONCURRENCY} {@link #deleteMessage(int)} requests in
+     * parallel and blocks until all of them are done.
+     *
+     * @param msgIds    The IDs of the messages to delete
+     * @return  The outcome for each message ID
+     */
+    public BatchResult<Integer> deleteMessages (int... msgIds) {
+        List<Integer> keys = new ArrayList<Integer>(msgIds.length);
+        for (int id : msgIds) {
+            keys.add(id);
+        }
+
+        return Batch.run(keys, BATCH_CONCURRENCY, new Batch.Item<Integer>() {
+            @Override
+            public boolean run (Integer msgId) throws IOException, DoorbellsApiException {
+                return deleteMessage(msgId);
+            }
+        });
+    }
+
+    /**
+     * Sends the same message to several tags, making up to
+     * {@link #BATCH_CONCURRENCY} {@link #sendMessage(String, String)} requests
+     * in parallel.
+     *
+     * @return  The outcome for each tag ID
+     */
+    public BatchResult<String> sendMessage (Collection<String> tagIds,
+                                            final String message) {
+        return Batch.run(new ArrayList<String>(tagIds), BATCH_CONCURRENCY,
+                new Batch.Item<String>() {
+                    @Override
+                    public boolean run (String tagId)
+                            throws IOException, DoorbellsApiException {
+                        return sendMessage(tagId, message);
+                    }
+                });
+    }
+
 
     /* API for tags */
 
+    /**
+     * @return  The tag, from the tag cache if this client has one that holds
+     *          it, or {@code null} if there is no such tag
+     */
     public Tag getTag (String tagId) throws IOException, DoorbellsApiException {
-        JsonResponse response = GetJsonResponse.makeAuthRequest(
-                "/tags/" + tagId, authToken, null);
+        if (tagCache == null) {
+            return get("/tags/" + tagId, null, Tag.class, true);
+        }
 
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return response.fromJson(Tag.class);
-            case HTTP_NOT_FOUND:
-                return null;
-            default:
-                defaultErrorHandler(response);
-                return null;
+        Tag tag = tagCache.get(tagId);
+        if (tag == null) {
+            long generation = tagCache.getGeneration();
+            tag = get("/tags/" + tagId, null, Tag.class, true);
+            tagCache.put(tag, generation);
         }
+        return tag;
     }
 
+    /**
+     * @return  All of the user's tags, from the tag cache if this client has
+     *          one that holds them
+     */
     public Tag[] getTags() throws IOException, DoorbellsApiException {
-        JsonResponse response = GetJsonResponse.makeAuthRequest(
-                "/tags", authToken, null);
-
-
-        if (response.getResponseCode() == HTTP_OK) {
-            return response.fromJson(GetTagsResponse.class).tags;
+        if (tagCache == null) {
+            return get("/tags", null, GetTagsResponse.class, false).tags();
         }
 
-        defaultErrorHandler(response);
-        return null;
+        Tag[] tags = tagCache.getAll();
+        if (tags == null) {
+            long generation = tagCache.getGeneration();
+            tags = get("/tags", null, GetTagsResponse.class, false).tags();
+            tagCache.putAll(tags, generation);
+        }
+        return tags;
     }
 
     private static class GetTagsResponse {
+        private static final Tag[] NONE = new Tag[0];
+
         private int status;
         private Tag[] tags;
 
         GetTagsResponse() {}
+
+        // Likewise
+        Tag[] tags() {
+            return (tags == null) ? NONE : tags.clone();
+        }
     }
 
+    /**
+     * Creates a tag. Since creating twice would make two tags, a failed create
+     * is never retried; see {@link #createTag(String, String)} for one that is.
+     *
+     * @return  The new tag
+     */
     public Tag createTag (String location) throws IOException, DoorbellsApiException {
-        String contents = Params.start("location", location).finish();
-        JsonResponse response = PostJsonResponse.makeAuthRequest(
-                "/tags/create", authToken, null, contents);
+        return create(location, null);
+    }
 
-        if (response.getResponseCode() == 200) {
-            return response.fromJson(Tag.class);
+    /**
+     * Creates a tag, retrying according to this client's {@link RetryPolicy}
+     * if the create fails. The idempotency key is sent along with every
+     * attempt as an {@code Idempotency-Key} header, so that the server can
+     * recognize a repeat of a create it already carried out.
+     *
+     * @param idempotencyKey    A key unique to this tag, e.g. a random UUID
+     * @return  The new tag
+     */
+    public Tag createTag (final String location, final String idempotencyKey)
+            throws IOException, DoorbellsApiException {
+        return retrier.execute(retryPolicy, context, new SingleFlight.Call<Tag>() {
+            @Override
+            public Tag call() throws IOException, DoorbellsApiException {
+                return create(location, idempotencyKey);
+            }
+        }, false, "/tags/create");
+    }
+
+    private Tag create (String location, String idempotencyKey)
+            throws IOException, DoorbellsApiException {
+        Params contents = Params.start("location", location);
+        Map<String, String> headers = null;
+        if (idempotencyKey != null) {
+            headers = new HashMap<String, String>();
+            headers.put("Idempotency-Key", idempotencyKey);
         }
+        JsonResponse response = authorizedPost("/tags/create", null, contents, headers);
 
-        defaultErrorHandler(response);
-        return null;
+        try {
+            if (response.getResponseCode() == 200) {
+                Tag tag = response.fromJson(Tag.class);
+                if (tagCache != null && tag != null) {
+                    tagCache.onCreated(tag);
+                }
+                return tag;
+            }
+
+            defaultErrorHandler(response);
+            return null;
+        } finally {
+            response.close();
+        }
     }
 
     public boolean updateTag (String tagId, String newLocation)
             throws IOException, DoorbellsApiException {
-        String contents = Params.start("location", newLocation).finish();
+        Params contents = Params.start("location", newLocation);
         Params urlParams = Params.start("id", tagId);
-        JsonResponse response = PostJsonResponse.makeAuthRequest(
-                "/tags/update", authToken, urlParams, contents);
+        JsonResponse response;
+        try {
+            response = authorizedPost("/tags/update", urlParams, contents);
+        } catch (IOException e) {
+            forgetTag(tagId);   // It may or may not have been moved
+            throw e;
+        }
 
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return true;
-            case HTTP_NOT_FOUND:
-                return false;
-            default:
-                defaultErrorHandler(response);
-                return false;
+        try {
+            switch (response.getResponseCode()) {
+                case HTTP_OK:
+                    if (tagCache != null) {
+                        tagCache.onUpdated(tagId, newLocation);
+                    }
+                    return true;
+                case HTTP_NOT_FOUND:
+                    if (tagCache != null) {
+                        tagCache.onDestroyed(tagId);
+                    }
+                    return false;
+                default:
+                    forgetTag(tagId);
+                    defaultErrorHandler(response);
+                    return false;
+            }
+        } finally {
+            response.close();
         }
     }
 
     public boolean destroyTag (String tagId) throws IOException, DoorbellsApiException {
         Params params = Params.start("id", tagId);
+        JsonResponse response;
+        try {
+            response = authorizedPost("/tags/delete", params, null);
+        } catch (IOException e) {
+            forgetTag(tagId);   // It may or may not be gone
+            throw e;
+        }
+
+        try {
+            switch (response.getResponseCode()) {
+                case HTTP_OK:
+                case HTTP_NOT_FOUND:
+                    if (tagCache != null) {
+                        tagCache.onDestroyed(tagId);
+                    }
+                    return response.getResponseCode() == HTTP_OK;
+                default:
+                    forgetTag(tagId);
+                    defaultErrorHandler(response);
+                    return false;
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    // When a change to a tag may or may not have gone through, the cache can
+    // only be kept right by fetching the tag again
+    private void forgetTag (String tagId) {
+        if (tagCache != null) {
+            tagCache.invalidate(tagId);
+        }
+    }
+
+    /**
+     * Moves several tags, making up to {@link #BATCH_CONCURRENCY}
+     * {@link #updateTag(String, String)} requests in parallel.
+     *
+     * @param newLocations  The new location for each tag, by tag ID
+     * @return  The outcome for each tag ID
+     */
+    public BatchResult<String> updateTags (final Map<String, String> newLocations) {
+        return Batch.run(new ArrayList<String>(newLocations.keySet()), BATCH_CONCURRENCY,
+                new Batch.Item<String>() {
+                    @Override
+                    public boolean run (String tagId)
+                            throws IOException, DoorbellsApiException {
+                        return updateTag(tagId, newLocations.get(tagId));
+                    }
+                });
+    }
+
+    /**
+     * Destroys several tags, making up to {@link #BATCH_CONCURRENCY}
+     * {@link #destroyTag(String)} requests in parallel.
+     *
+     * @return  The outcome for each tag ID
+     */
+    public BatchResult<String> destroyTags (String... tagIds) {
+        List<String> keys = new ArrayList<String>(tagIds.length);
+        for (String id : tagIds) {
+            keys.add(id);
+        }
+
+        return Batch.run(keys, BATCH_CONCURRENCY, new Batch.Item<String>() {
+            @Override
+            public boolean run (String tagId) throws IOException, DoorbellsApiException {
+                return destroyTag(tagId);
+            }
+        });
+    }
+
+    /**
+     * Makes a GET request for a resource and decodes the response body, going
+     * through the cache if this client has one, and retrying according to the
+     * retry policy. Concurrent calls for the same resource and query share a
+     * single request (including its retries) and its decoded result.
+     *
+     * @param query The query parameters, not including the auth token
+     * @param notFoundIsNull    {@code true} if a 404 means there is nothing to
+     *                          return, rather than an error
+     * @return  The decoded response body, or {@code null} on a 404 if
+     *          {@code notFoundIsNull} is set
+     */
+    private <T> T get (final String resource, final Params query, final Class<T> type,
+                       final boolean notFoundIsNull)
+            throws IOException, DoorbellsApiException {
+        final String key = ApiUtils.concatQuery(resource, query);
+        final SingleFlight.Call<T> fetch = new SingleFlight.Call<T>() {
+            @Override
+            public T call() throws IOException, DoorbellsApiException {
+                return fetch(key, resource, query, type, notFoundIsNull);
+            }
+        };
+        return inFlight.execute(key, new SingleFlight.Call<T>() {
+            @Override
+            public T call() throws IOException, DoorbellsApiException {
+                return retrier.execute(retryPolicy, context, fetch, true,
+                        ApiUtils.endpointOf(resource));
+            }
+        });
+    }
+
+    private <T> T fetch (String key, String resource, Params query, Class<T> type,
+                         boolean notFoundIsNull)
+            throws IOException, DoorbellsApiException {
+        ConditionalCache.CachedResponse cached = (cache == null) ? null : cache.get(key, type);
+
+        Map<String, String> headers = null;
+        if (cached != null) {
+            headers = new HashMap<String, String>();
+            if (cached.etag != null) {
+                headers.put("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                headers.put("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        JsonResponse response = authorizedGet(resource, query, headers);
+
+        try {
+            switch (response.getResponseCode()) {
+                case HTTP_OK:
+                    if (cache == null) {
+                        return response.fromJson(type);
+                    }
+                    String etag = response.getHeader("ETag");
+                    String lastModified = response.getHeader("Last-Modified");
+                    T value = response.fromJson(type);
+                    cache.put(key, etag, lastModified, value);
+                    cache.recordMiss();
+                    return value;
+                case HTTP_NOT_MODIFIED:
+                    if (cached != null) {
+                        cache.recordHit();
+                        context.metrics.onCacheHit(response.getEndpoint());
+                        return type.cast(cached.value);
+                    }
+                    throw new DoorbellsApiException("unexpected 304 for " + resource);
+                case HTTP_NOT_FOUND:
+                    if (notFoundIsNull) {
+                        if (cache != null) {
+                            cache.remove(key);
+                        }
+                        return null;
+                    }
+                    // fall through
+                default:
+                    defaultErrorHandler(response);
+                    return null;    // satisfy the compiler
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private JsonResponse authorizedPost (String resource, Params urlParams, Params contents)
+            throws IOException, DoorbellsApiException {
+        return authorizedPost(resource, urlParams, contents, null);
+    }
+
+    /**
+     * Makes a POST request with the session's token. If the server turns the
+     * token away and the session can get a new one, the request is made again
+     * with that; a 401 means the server didn't act on it the first time.
+     */
+    private JsonResponse authorizedPost (String resource, Params urlParams, Params contents,
+                                         Map<String, String> headers)
+            throws IOException, DoorbellsApiException {
+        Session.Token token = session.current();
         JsonResponse response = PostJsonResponse.makeAuthRequest(
-                "/tags/delete", authToken, params, null);
+                context, resource, token.getEncoded(), urlParams, contents, headers);
+        if (!shouldReauthorize(response)) {
+            return response;
+        }
 
-        switch (response.getResponseCode()) {
-            case HTTP_OK:
-                return true;
-            case HTTP_NOT_FOUND:
-                return false;
-            default:
-                defaultErrorHandler(response);
-                return false;
+        token = session.refresh(token);
+        return PostJsonResponse.makeAuthRequest(
+                context, resource, token.getEncoded(), urlParams, contents, headers);
+    }
+
+    /**
+     * Makes a GET request with the session's token, getting a new one if the
+     * server turns it away, as {@link #authorizedPost} does.
+     */
+    private JsonResponse authorizedGet (String resource, Params query,
+                                        Map<String, String> headers)
+            throws IOException, DoorbellsApiException {
+        Session.Token token = session.current();
+        JsonResponse response = GetJsonResponse.makeAuthRequest(
+                context, resource, token.getEncoded(), query, headers);
+        if (!shouldReauthorize(response)) {
+            return response;
+        }
+
+        token = session.refresh(token);
+        return GetJsonResponse.makeAuthRequest(
+                context, resource, token.getEncoded(), query, headers);
+    }
+
+    /**
+     * Closes the response if it is a 401 that a new token could get past.
+     */
+    private boolean shouldReauthorize (JsonResponse response) {
+        if (response.getResponseCode() != HTTP_UNAUTHORIZED || !session.canRefresh()) {
+            return false;
         }
+        response.close();
+        return true;
     }
 
     private void defaultErrorHandler (JsonResponse response)
-            throws DoorbellsApiException {
+            throws IOException, DoorbellsApiException {
         JsonStatusResponse status = response.fromJson(JsonStatusResponse.class);
 
+        DoorbellsApiException e;
         switch (status.status) {
             case HTTP_BAD_REQUEST:
-                throw new BadRequestException(status.msg);
+                e = new BadRequestException(status.msg);
+                break;
             case HTTP_UNAUTHORIZED:
-                throw new UnauthorizedException(status.msg);
+                e = new UnauthorizedException(status.msg);
+                break;
             case HTTP_SERVER_ERROR:
-                throw new InternalServerException(status.msg);
+                e = new InternalServerException(status.msg);
+                break;
             default:
-                throw new DoorbellsApiException(status.msg);
+                e = new DoorbellsApiException(status.msg);
+                break;
         }
+        context.metrics.onFailure(response.getEndpoint(), e);
+        throw e;
     }
 
     public static void main (String[] args) throws IOException, DoorbellsApiException {
@@ -2,51 +2,89 @@ package org.danielge.doorbells.api;
 
 import org.danielge.doorbells.utils.Utils;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import static org.danielge.doorbells.api.ApiUtils.Params;
 
 class GetJsonResponse extends JsonResponse {
-    public GetJsonResponse(int responseCode, String body) {
-        super(responseCode, body);
+    private GetJsonResponse(RequestContext context,
+                            HttpURLConnection connection,
+                            Deadline deadline,
+                            Semaphore slot,
+                            String endpoint,
+                            long connectNanos,
+                            long connectedAt) throws IOException {
+        super(context, connection, deadline, slot, endpoint, connectNanos, connectedAt, 0);
     }
 
-    public static GetJsonResponse makeRequest (String resource)
+    public static GetJsonResponse makeRequest (RequestContext context,
+                                               String resource,
+                                               Map<String, String> headers)
             throws IOException {
-        HttpURLConnection connection =
-                (HttpURLConnection) ApiUtils.endpoint(resource).openConnection();
+        String endpoint = ApiUtils.endpointOf(resource);
+        HttpURLConnection connection = context.transport.openConnection(resource);
+        // Started first, so that waiting for a slot counts against it
+        Deadline deadline = Deadline.start(connection, context.timeouts, resource);
+        Semaphore slot = acquireSlot(context, connection, deadline, endpoint);
 
         try {
+            deadline.arm();
+            Attempt.opened(connection);
             connection.setRequestProperty("Accept", Utils.MIME_JSON);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
 
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            String responseBody = Utils.inputStreamToString(in);
-            in.close();
+            long start = System.nanoTime();
+            connection.connect();
+            long connectedAt = System.nanoTime();
 
-            return new GetJsonResponse(connection.getResponseCode(), responseBody);
-        } finally {
-            connection.disconnect();
+            return new GetJsonResponse(context, connection, deadline, slot,
+                    endpoint, connectedAt - start, connectedAt);
+        } catch (IOException e) {
+            deadline.cancel();
+            Attempt.released(connection);
+            context.transport.releaseConnection(connection, false);
+            ConcurrencyLimiter.release(slot);
+            IOException failure = deadline.translate(e);
+            context.metrics.onFailure(endpoint, failure);
+            throw failure;
         }
     }
 
-    public static GetJsonResponse makeRequest (String resource,
-                                               Params urlParams) throws IOException {
-        return makeRequest(ApiUtils.concatQuery(resource, urlParams));
+    public static GetJsonResponse makeRequest (RequestContext context,
+                                               String resource,
+                                               Params urlParams,
+                                               Map<String, String> headers)
+            throws IOException {
+        return makeRequest(context, ApiUtils.concatQuery(resource, urlParams), headers);
     }
 
-    public static GetJsonResponse makeAuthRequest(String resource,
-                                                  String token,
+    /**
+     * @param encodedToken    The auth token, already form-encoded by
+     *                        {@link ApiUtils#encode(String)}
+     */
+    public static GetJsonResponse makeAuthRequest(RequestContext context,
+                                                  String resource,
+                                                  String encodedToken,
                                                   Params urlParams) throws IOException {
+        return makeAuthRequest(context, resource, encodedToken, urlParams, null);
+    }
 
-        if (urlParams == null) {
-            Params params = Params.start("auth_token", token);
-            return makeRequest(resource, params);
-        } else {
-            urlParams.addParam("auth_token", token);
-            return makeRequest(resource, urlParams);
-        }
+    public static GetJsonResponse makeAuthRequest(RequestContext context,
+                                                  String resource,
+                                                  String encodedToken,
+                                                  Params urlParams,
+                                                  Map<String, String> headers)
+            throws IOException {
+        Params params = (urlParams == null) ? Params.start() : urlParams;
+        params = params.addEncodedParam("auth_token", encodedToken);
+        return makeRequest(context, resource, params, headers);
     }
 }
@@ -0,0 +1,80 @@
+package org.danielge.doorbells.api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+/**
+ * Holds the one {@code Gson} instance shared by the whole client. Gson is
+ * thread-safe and caches the reflective type adapter for every class it has
+ * seen, so building it once means that work is only ever done once.
+ */
+final class JsonCodec {
+    static final Gson GSON = new Gson();
+
+    private JsonCodec() {}
+
+    /**
+     * Decodes a JSON document straight off of a stream, without copying it
+     * into a String first. The stream is read as UTF-8 and is not closed.
+     */
+    static <T> T decode (InputStream in, Class<T> type)
+            throws IOException, InternalServerException {
+        return decode(in, Utils.UTF_8, type);
+    }
+
+    static <T> T decode (InputStream in, Charset charset, Class<T> type)
+            throws IOException, InternalServerException {
+        return decode(new InputStreamReader(in, charset), type);
+    }
+
+    static <T> T decode (String json, Class<T> type)
+            throws IOException, InternalServerException {
+        return decode(new StringReader(json), type);
+    }
+
+    private static <T> T decode (Reader in, Class<T> type)
+            throws IOException, InternalServerException {
+        return decode(new JsonReader(in), type);
+    }
+
+    /**
+     * Decodes the next value of a document that is being read bit by bit,
+     * e.g. one element of an array.
+     */
+    static <T> T decode (JsonReader in, Class<T> type)
+            throws IOException, InternalServerException {
+        try {
+            return GSON.fromJson(in, type);
+        } catch (JsonSyntaxException e) {
+            // Gson reports a failed read as a syntax error, but it isn't one
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException && !(cause instanceof MalformedJsonException)) {
+                throw (IOException) cause;
+            }
+            throw new InternalServerException("server did not return JSON", e);
+        } catch (JsonIOException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Builds (and caches) the type adapters for the given classes ahead of time,
+     * so that the first real response doesn't pay for the reflection.
+     */
+    static void warmUp (Class<?>... types) {
+        for (Class<?> type : types) {
+            GSON.getAdapter(type);
+        }
+    }
+}
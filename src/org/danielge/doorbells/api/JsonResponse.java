@@ -1,31 +1,311 @@
 package org.danielge.doorbells.api;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A response from the server whose body has not been read yet. The body is
+ * decoded directly from the connection by {@link #fromJson(Class)}, and can
+ * only be consumed once. Always {@link #close()} a response when done with it.
+ * <p>
+ * A gzipped body is decompressed on the fly as it is decoded, in the charset
+ * named by its {@code Content-Type} (UTF-8 if there is none). Error responses
+ * have their bodies read the same way, so that the server's JSON status can be
+ * decoded from them. A body that decodes to more than
+ * {@link #MAX_BODY_BYTES} fails with a {@link ResponseTooLargeException}.
+ * <p>
+ * How long each phase of the exchange took is reported to the context's
+ * {@link ClientMetrics} when the response is closed. An open response also
+ * holds one of the slots its host is limited to, until it is closed.
+ */
+public class JsonResponse implements Closeable {
+    // Anything left over past this is not worth reading just to save the socket
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    // Far more than the API ever sends; anything bigger is a broken server or a gzip bomb
+    public static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
 
-public class JsonResponse {
     protected int responseCode;
-    protected String body;
+    private RequestContext context;
+    private volatile HttpURLConnection connection;
+    private Deadline deadline;
+    private Semaphore slot;             // From the context's limiter, held until closed
+    private CountingInputStream wire;   // The body as it came off of the network
+    private CountingInputStream in;     // The body after decompression
+    private String body;
 
-    public JsonResponse(int responseCode, String body) {
-        this.responseCode = responseCode;
-        this.body = body;
+    private final String endpoint;
+    private final long connectNanos;
+    private final long ttfbNanos;
+    private final long bytesSent;
+    private long decodeNanos;
+
+    /**
+     * @param connectedAt   When the connection was established, by
+     *                      {@link System#nanoTime()}
+     * @param slot          The connection's slot from the context's
+     *                      {@link ConcurrencyLimiter}, which the response
+     *                      takes over; the caller still releases it if this
+     *                      throws
+     */
+    JsonResponse(RequestContext context, HttpURLConnection connection,
+                 Deadline deadline, Semaphore slot, String endpoint, long connectNanos,
+                 long connectedAt, long bytesSent) throws IOException {
+        this.context = context;
+        this.connection = connection;
+        this.deadline = deadline;
+        this.endpoint = endpoint;
+        this.connectNanos = connectNanos;
+        this.bytesSent = bytesSent;
+        this.responseCode = connection.getResponseCode();
+        this.ttfbNanos = System.nanoTime() - connectedAt;
+        // The error stream is null if there is no body, and so is the input
+        // stream on some platforms when the status is 204 or 304
+        InputStream raw = (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST)
+                ? connection.getErrorStream() : connection.getInputStream();
+        this.wire = new CountingInputStream(
+                (raw == null) ? new ByteArrayInputStream(new byte[0]) : raw);
+        this.slot = slot;
+    }
+
+    /**
+     * Waits, for whatever is left of the request's deadline, for a slot to the
+     * host of a connection that has just been opened (but not connected). The
+     * wait counts against the deadline like the rest of the request does. If
+     * no slot comes free, or the wait is interrupted, the connection is handed
+     * back and the failure reported.
+     *
+     * @return  The slot, or {@code null} if the context doesn't limit requests
+     */
+    static Semaphore acquireSlot (RequestContext context, HttpURLConnection connection,
+                                  Deadline deadline, String endpoint) throws IOException {
+        try {
+            return context.limiter.acquire(connection.getURL().getHost(),
+                    deadline.remainingMillis());
+        } catch (IOException e) {   // Out of time, or interrupted
+            deadline.cancel();
+            context.transport.releaseConnection(connection, false);
+            context.metrics.onFailure(endpoint, e);
+            throw e;
+        }
     }
 
     public int getResponseCode() {
         return responseCode;
     }
 
-    public String getBody() {
+    /**
+     * @return  The endpoint this is a response from, as reported to
+     *          {@link ClientMetrics}
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return  The value of the named response header, or {@code null} if the
+     *          server didn't send it or the response has been closed
+     */
+    public String getHeader (String name) {
+        return (connection == null) ? null : connection.getHeaderField(name);
+    }
+
+    /**
+     * Reads the whole body into a String. Prefer {@link #fromJson(Class)}, which
+     * avoids the copy.
+     */
+    public String getBody() throws IOException {
+        if (body == null) {
+            if (connection == null) {
+                return body = "";
+            }
+            long start = startDecoding();
+            try {
+                body = readBody();
+            } catch (IOException e) {
+                throw deadline.translate(e);
+            } finally {
+                finishDecoding(start);
+                close();
+            }
+        }
         return body;
     }
 
-    public <T> T fromJson(Class<T> jsonObjectClass) throws InternalServerException {
-        Gson gson = new Gson();
-        try {
-            return gson.fromJson(this.body, jsonObjectClass);
-        } catch (JsonSyntaxException e) {
+    public <T> T fromJson(Class<T> jsonObjectClass)
+            throws IOException, InternalServerException {
+        if (body != null) {
+            return JsonCodec.decode(body, jsonObjectClass);
+        }
+        if (connection == null) {
             throw new InternalServerException("server did not return JSON");
         }
+
+        long start = startDecoding();
+        try {
+            return JsonCodec.decode(body(), charset(), jsonObjectClass);
+        } catch (IOException e) {
+            throw deadline.translate(e);
+        } finally {
+            finishDecoding(start);
+            close();
+        }
+    }
+
+    /**
+     * Hands over the body, to be read as it arrives rather than all at once,
+     * and with no limit on its length. For a response that doesn't end until
+     * the server says so, like a {@link MessageStream}. Close the response
+     * when done with it, after {@link #disconnect()} if the body isn't over.
+     */
+    InputStream stream() throws IOException {
+        if (in == null) {
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new CountingInputStream(new GZIPInputStream(wire));
+            } else {
+                in = new CountingInputStream(wire);
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Cuts the connection, so that a read blocked on it fails straight away.
+     * Unlike everything else here, this may be called from any thread.
+     */
+    void disconnect() {
+        HttpURLConnection current = connection;
+        if (current != null) {
+            current.disconnect();
+        }
+    }
+
+    /*
+     * Decoding time is the time spent in a decode less the time spent waiting
+     * on the network during it. The start is taken net of the wait so far.
+     */
+
+    private long startDecoding() {
+        return System.nanoTime() - wire.getReadNanos();
+    }
+
+    private void finishDecoding (long start) {
+        decodeNanos += System.nanoTime() - wire.getReadNanos() - start;
+    }
+
+    private InputStream body() throws IOException {
+        if (in == null) {
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new CountingInputStream(new GZIPInputStream(wire), MAX_BODY_BYTES);
+            } else {
+                in = new CountingInputStream(wire, MAX_BODY_BYTES);
+            }
+        }
+        return in;
+    }
+
+    private String readBody() throws IOException {
+        InputStream in = body();
+        PooledBuffer bytes = PooledBuffer.acquire();
+        try {
+            byte[] buffer = PooledBuffer.take();
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            } finally {
+                PooledBuffer.recycle(buffer);
+            }
+            return new String(bytes.array(), 0, bytes.length(), charset());
+        } finally {
+            bytes.release();
+        }
+    }
+
+    private Charset charset() {
+        return charsetOf(connection.getContentType());
+    }
+
+    /**
+     * @return  The charset named by a {@code Content-Type} header, or UTF-8 if
+     *          it doesn't name one this platform supports
+     */
+    static Charset charsetOf (String contentType) {
+        if (contentType == null) {
+            return Utils.UTF_8;
+        }
+        int start = contentType.toLowerCase().indexOf("charset=");
+        if (start < 0) {
+            return Utils.UTF_8;
+        }
+
+        start += "charset=".length();
+        int end = contentType.indexOf(';', start);
+        String name = contentType.substring(start, (end < 0) ? contentType.length() : end)
+                .trim().replace("\"", "");
+        if (name.equalsIgnoreCase("utf-8")) {
+            return Utils.UTF_8;
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException e) {
+            return Utils.UTF_8;
+        } catch (UnsupportedCharsetException e) {
+            return Utils.UTF_8;
+        }
+    }
+
+    /**
+     * Hands the connection back to the transport. Whatever is left of the body is
+     * read first, so that the connection can be reused for the next request.
+     */
+    @Override
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+
+        // Draining the raw stream also skips a gzip trailer we didn't need
+        boolean reusable = drain(wire);
+        deadline.cancel();
+        context.stats.recordReceived(wire.getCount(), (in == null) ? 0 : in.getCount());
+        context.metrics.onResponse(endpoint, responseCode, connectNanos, ttfbNanos,
+                wire.getReadNanos(), decodeNanos, bytesSent, wire.getCount());
+        Attempt.released(connection);
+        context.transport.releaseConnection(connection, reusable);
+        ConcurrencyLimiter.release(slot);
+        connection = null;
+        slot = null;
+        wire = in = null;
+    }
+
+    private static boolean drain (InputStream in) {
+        byte[] buffer = PooledBuffer.take();
+        try {
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            in.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            PooledBuffer.recycle(buffer);
+        }
     }
 }
@@ -0,0 +1,129 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The default {@link Transport}. It never calls {@code disconnect()} on a
+ * connection whose response was fully read, which leaves the socket in the
+ * platform's per-host keep-alive pool for the next request to the same host.
+ * <p>
+ * That pool belongs to {@code HttpURLConnection} and is shared by the whole
+ * process, so there are no per-transport pool settings. Its size and idle
+ * timeout come from the standard {@code http.maxConnections} and
+ * {@code http.keepAliveDuration} system properties, which the platform reads
+ * once, when the pool is first used. {@link #configurePool(int, long)} sets
+ * them, if nothing else has; creating a transport sets the defaults the same
+ * way. Android's {@code HttpURLConnection} honours both; the desktop JVM only
+ * honours {@code http.maxConnections}, and keeps idle sockets for as long as
+ * the server's {@code Keep-Alive} header says (5 seconds if it doesn't).
+ * Whether keep-alive is used at all ({@code http.keepAlive}) is left to the
+ * app.
+ */
+public class KeepAliveTransport implements Transport {
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    private final String baseUrl;
+
+    /**
+     * Creates a transport to the production API, and configures the pool
+     * with the defaults unless it has been configured already.
+     */
+    public KeepAliveTransport() {
+        this(ApiUtils.API_URL);
+    }
+
+    /**
+     * Creates a transport to the given API root (e.g. a local stub server),
+     * and configures the pool with the defaults unless it has been
+     * configured already.
+     */
+    public KeepAliveTransport (String baseUrl) {
+        this.baseUrl = baseUrl;
+        configurePool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * Configures the process-wide keep-alive pool: at most
+     * {@code maxIdleConnections} idle sockets per host, each kept for at most
+     * {@code keepAliveMillis} (where the platform honours it). Each setting is
+     * only made if its system property hasn't been set already, since the
+     * platform only reads them once; so call this before any HTTP traffic in
+     * the process, and before creating a transport.
+     *
+     * @return  {@code true} if both settings were made
+     */
+    public static synchronized boolean configurePool (int maxIdleConnections,
+                                                      long keepAliveMillis) {
+        if (maxIdleConnections < 0 || keepAliveMillis < 0) {
+            throw new IllegalArgumentException("pool settings must be non-negative");
+        }
+        boolean size = setDefaultProperty("http.maxConnections", maxIdleConnections);
+        boolean duration = setDefaultProperty("http.keepAliveDuration", keepAliveMillis);
+        return size && duration;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    @Override
+    public HttpURLConnection openConnection (String resource) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(baseUrl + resource).openConnection();
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    @Override
+    public void releaseConnection (HttpURLConnection connection, boolean reusable) {
+        // The socket went back to the pool when the response stream was closed
+        if (!reusable) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Connects to the server ahead of the first real request, with a
+     * {@code HEAD} of the API root, so that the DNS lookup and TCP handshake
+     * are already done by the time that request is made; the socket is left in
+     * the keep-alive pool. Failures are ignored, since the real request will
+     * report them. This blocks, so call it off the UI thread.
+     */
+    public void preconnect() {
+        HttpURLConnection connection = null;
+        boolean reusable = false;
+        try {
+            connection = openConnection("/");
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(Timeouts.DEFAULT.getConnectMillis());
+            connection.setReadTimeout(Timeouts.DEFAULT.getReadMillis());
+            int status = connection.getResponseCode();
+
+            // Closing the (empty) body is what hands the socket to the pool
+            InputStream body = (status >= HttpURLConnection.HTTP_BAD_REQUEST)
+                    ? connection.getErrorStream() : connection.getInputStream();
+            if (body != null) {
+                body.close();
+            }
+            reusable = true;
+        } catch (IOException e) {
+            // Not connected after all; the first request will do it
+        } finally {
+            if (connection != null) {
+                releaseConnection(connection, reusable);
+            }
+        }
+    }
+
+    private static boolean setDefaultProperty (String key, long value) {
+        if (System.getProperty(key) != null) {
+            return false;
+        }
+        System.setProperty(key, String.valueOf(value));
+        return true;
+    }
+}
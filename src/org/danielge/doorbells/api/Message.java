@@ -11,6 +11,13 @@ public class Message {
     // Trust me, this is useful for Gson
     private Message() {}
 
+    public Message (int id, User sender, String contents, int timestamp) {
+        this.id = id;
+        this.sender = sender;
+        this.contents = contents;
+        this.timestamp = timestamp;
+    }
+
     public int getId() {
         return id;
     }
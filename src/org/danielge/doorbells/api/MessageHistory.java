@@ -0,0 +1,83 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A user's whole message history, newest first, fetched one page at a time
+ * as it is iterated over. Nothing is fetched until the first call to
+ * {@code hasNext()}, and each page is only requested once the previous one
+ * has been used up.
+ * <p>
+ * Since an {@code Iterator} can't throw checked exceptions, a page that fails
+ * to load is reported as a {@link FetchException}, wrapping the
+ * {@code IOException} or {@code DoorbellsApiException} that caused it.
+ */
+public class MessageHistory implements Iterable<Message> {
+    private final DoorbellsClient client;
+    private final MessageQuery first;
+
+    MessageHistory (DoorbellsClient client, MessageQuery first) {
+        this.client = client;
+        this.first = first;
+    }
+
+    public static class FetchException extends RuntimeException {
+        public FetchException (Throwable tr) {
+            super(tr);
+        }
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return new PageIterator();
+    }
+
+    private class PageIterator implements Iterator<Message> {
+        private MessageQuery next = first;  // null once the last page was fetched
+        private Message[] page = new Message[0];
+        private int position = 0;
+
+        @Override
+        public boolean hasNext() {
+            while (position == page.length) {
+                if (next == null) {
+                    return false;
+                }
+                fetch();
+            }
+            return true;
+        }
+
+        private void fetch() {
+            try {
+                page = client.getMessages(next);
+            } catch (IOException e) {
+                throw new FetchException(e);
+            } catch (DoorbellsApiException e) {
+                throw new FetchException(e);
+            }
+            position = 0;
+
+            if (page.length < next.getLimit()) {
+                next = null;
+            } else {
+                next = next.beforeId(page[page.length - 1].getId());
+            }
+        }
+
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page[position++];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.danielge.doorbells.api;
+
+import static org.danielge.doorbells.api.ApiUtils.Params;
+
+/**
+ * Describes one page of a user's messages, for
+ * {@link DoorbellsClient#getMessages(MessageQuery)}. Pages are ordered newest
+ * first, and are bounded by a cursor on either message ID or timestamp.
+ * Queries are immutable; every method returns a new query.
+ * <pre>
+ *     // The 20 messages right before message 1234
+ *     MessageQuery.latest(20).beforeId(1234)
+ * </pre>
+ */
+public final class MessageQuery {
+    private static final int NONE = -1;
+
+    private final int limit;
+    private final int beforeId, afterId;
+    private final int beforeTime, afterTime;
+
+    private MessageQuery (int limit, int beforeId, int afterId,
+                          int beforeTime, int afterTime) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        this.limit = limit;
+        this.beforeId = beforeId;
+        this.afterId = afterId;
+        this.beforeTime = beforeTime;
+        this.afterTime = afterTime;
+    }
+
+    /**
+     * @param limit The most messages to return in the page
+     * @return  A query for the newest {@code limit} messages
+     */
+    public static MessageQuery latest (int limit) {
+        return new MessageQuery(limit, NONE, NONE, NONE, NONE);
+    }
+
+    /** Only messages with an ID lower than {@code id} */
+    public MessageQuery beforeId (int id) {
+        return new MessageQuery(limit, id, afterId, beforeTime, afterTime);
+    }
+
+    /** Only messages with an ID higher than {@code id} */
+    public MessageQuery afterId (int id) {
+        return new MessageQuery(limit, beforeId, id, beforeTime, afterTime);
+    }
+
+    /** Only messages received before the given Unix time, in seconds */
+    public MessageQuery beforeTime (int timestamp) {
+        return new MessageQuery(limit, beforeId, afterId, timestamp, afterTime);
+    }
+
+    /** Only messages received after the given Unix time, in seconds */
+    public MessageQuery afterTime (int timestamp) {
+        return new MessageQuery(limit, beforeId, afterId, beforeTime, timestamp);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    Params toParams() {
+        Params params = Params.start("limit", limit);
+        if (beforeId != NONE) {
+            params = params.addParam("before_id", beforeId);
+        }
+        if (afterId != NONE) {
+            params = params.addParam("after_id", afterId);
+        }
+        if (beforeTime != NONE) {
+            params = params.addParam("before", beforeTime);
+        }
+        if (afterTime != NONE) {
+            params = params.addParam("after", afterTime);
+        }
+        return params;
+    }
+}
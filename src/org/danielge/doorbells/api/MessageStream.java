@@ -0,0 +1,425 @@
+package org.danielge.doorbells.api;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.danielge.doorbells.api.ApiUtils.Params;
+
+/**
+ * A long-lived subscription to the user's messages, for as long as the app is
+ * on screen: each message is handed to the listener as soon as the server
+ * sends it, instead of polling {@link DoorbellsClient#getMessages()}.
+ * <p>
+ * The stream is a GET of {@code /messages} that asks for the messages after
+ * the last one seen, and that the server may answer in either of two ways:
+ * <ul>
+ *     <li>with {@code text/event-stream}: server-sent events that go on
+ *     indefinitely, each a message in JSON (with its ID as the event ID), or
+ *     a {@code heartbeat} event or comment line to show the connection is
+ *     still alive;</li>
+ *     <li>with JSON, as a long poll: the usual page of messages, held back
+ *     until there is at least one message or {@link #WAIT_SECONDS} have
+ *     passed, and padded with whitespace as a heartbeat meanwhile.</li>
+ * </ul>
+ * Either way, the body is parsed as it arrives, and each message is passed on
+ * as soon as it has been read, without waiting for the rest of the response.
+ * Events are expected oldest first. A page comes newest first, so when it is
+ * full, the messages older than it are paged back through until the last one
+ * seen is reached.
+ * <p>
+ * If nothing (not even a heartbeat) arrives for the heartbeat timeout, or the
+ * connection fails, the stream reconnects, resuming after the last message it
+ * is sure it has passed on everything up to, so that nothing is missed. A
+ * message that was passed on from a page that was cut off may be passed on
+ * again, so the listener should ignore IDs it already has. Reconnecting backs off,
+ * with jitter, from {@link #MIN_RECONNECT_MILLIS} up to
+ * {@link #MAX_RECONNECT_MILLIS} while the failures continue. The stream only
+ * gives up if the session has lapsed for good.
+ * <p>
+ * A stream runs on a thread of its own, which the listener is called on.
+ * {@link #start()} and {@link #stop()} may be called from any thread.
+ */
+public class MessageStream {
+    public static final int NONE = -1;
+
+    /** How long to go without hearing from the server before reconnecting */
+    public static final int DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 45 * 1000;
+    public static final long MIN_RECONNECT_MILLIS = 1000;
+    public static final long MAX_RECONNECT_MILLIS = 60 * 1000;
+    /** The longest the server is asked to hold a long poll */
+    public static final int WAIT_SECONDS = 25;
+    static final int PAGE_SIZE = 50;
+
+    private static final String RESOURCE = "/messages";
+    private static final String EVENT_STREAM = "text/event-stream";
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Told about the stream, on its thread.
+     */
+    public interface Listener {
+        void onMessage (Message message);
+
+        /**
+         * The stream is connected, for the first time or again after a
+         * failure, and has asked for everything after the last message seen.
+         */
+        void onConnected();
+
+        /**
+         * @param reconnectMillis   How long until the stream tries again, or
+         *                          {@code -1} if it has stopped for good
+         */
+        void onDisconnected (Exception e, long reconnectMillis);
+    }
+
+    private final DoorbellsClient client;
+    private final Listener listener;
+    private final int heartbeatTimeoutMillis;
+
+    private volatile int lastId;        // Everything up to it has been passed on
+    private volatile boolean stopped;
+    private volatile JsonResponse current;
+    private Thread thread;
+
+    // Only touched by the stream's thread
+    private long retryMillis = MIN_RECONNECT_MILLIS;   // The server may change it
+    private boolean connected;
+    private int delivered;      // Messages passed on from the current response
+    private int newestId;       // The newest of them...
+    private int oldestId;       // ...and the oldest
+
+    MessageStream (DoorbellsClient client, int afterId, Listener listener) {
+        this(client, afterId, listener, DEFAULT_HEARTBEAT_TIMEOUT_MILLIS);
+    }
+
+    MessageStream (DoorbellsClient client, int afterId, Listener listener,
+                   int heartbeatTimeoutMillis) {
+        if (heartbeatTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("heartbeatTimeoutMillis must be positive");
+        }
+        this.client = client;
+        this.lastId = afterId;
+        this.listener = listener;
+        this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+    }
+
+    /**
+     * Same stream, but one that reconnects if it hears nothing from the
+     * server for the given time. The server's heartbeats must come more
+     * often than that.
+     *
+     * @return  A new, unstarted {@code MessageStream}
+     */
+    public MessageStream withHeartbeatTimeout (int heartbeatTimeoutMillis) {
+        return new MessageStream(client, lastId, listener, heartbeatTimeoutMillis);
+    }
+
+    /**
+     * @return  The ID of the newest message passed on so far, or the one the
+     *          stream started after
+     */
+    public int getLastId() {
+        return lastId;
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null && !stopped;
+    }
+
+    /**
+     * Connects, on a thread of the stream's own. A stream can only be started
+     * once.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("the stream has already been started");
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MessageStream.this.run();
+            }
+        }, "doorbells-stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Disconnects, and stops reconnecting. The listener may still hear about
+     * a message that was being read when this was called.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        JsonResponse response = current;
+        if (response != null) {
+            response.disconnect();
+        }
+        if (thread != null) {
+            thread.interrupt();     // In case it is waiting to reconnect
+        }
+    }
+
+    private void run() {
+        int failures = 0;
+        while (!stopped) {
+            long delay;
+            try {
+                delay = connect();
+                failures = 0;
+            } catch (UnauthorizedException e) {
+                // The session couldn't be renewed, so reconnecting won't help
+                stopped = true;
+                listener.onDisconnected(e, -1);
+                return;
+            } catch (Exception e) {     // IOException, or DoorbellsApiException
+                if (stopped) {
+                    return;
+                }
+                failures++;
+                delay = backoff(failures);
+                connected = false;
+                listener.onDisconnected(e, delay);
+            }
+
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;     // Stopped
+                }
+            }
+        }
+    }
+
+    private long backoff (int failures) {
+        long cap = Math.max(retryMillis, MIN_RECONNECT_MILLIS) << Math.min(failures - 1, 16);
+        cap = Math.min(cap, MAX_RECONNECT_MILLIS);
+        synchronized (RANDOM) {
+            return cap / 2 + (long) (RANDOM.nextDouble() * (cap / 2));
+        }
+    }
+
+    /**
+     * Makes one request, and reads what comes of it until it ends.
+     *
+     * @return  How long to wait before the next one
+     */
+    private long connect() throws IOException, DoorbellsApiException {
+        MessageQuery query = MessageQuery.latest(PAGE_SIZE);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", EVENT_STREAM + ", application/json");
+        // Compressed, events would sit in the decompressor's buffer
+        headers.put("Accept-Encoding", "identity");
+        if (lastId != NONE) {
+            query = query.afterId(lastId);
+            headers.put("Last-Event-ID", String.valueOf(lastId));
+        }
+        Params params = query.toParams().addParam("wait", WAIT_SECONDS);
+
+        long start = System.currentTimeMillis();
+        JsonResponse response = client.openStream(RESOURCE, params, headers,
+                heartbeatTimeoutMillis);
+        current = response;
+        boolean finished = false;
+        delivered = 0;
+        try {
+            if (stopped) {
+                return 0;
+            }
+            if (!connected) {
+                connected = true;
+                listener.onConnected();
+            }
+
+            String type = response.getHeader("Content-Type");
+            Charset charset = JsonResponse.charsetOf(type);
+            InputStream body = response.stream();
+            if (type != null && type.toLowerCase(Locale.US).startsWith(EVENT_STREAM)) {
+                readEvents(new BufferedReader(new InputStreamReader(body, charset)));
+                finished = !stopped;
+                return retryMillis;     // The stream was cut off
+            }
+
+            int floor = lastId;
+            readPage(new JsonReader(new InputStreamReader(body, charset)));
+            finished = !stopped;
+            if (finished) {
+                response.close();
+                catchUp(floor);
+            }
+            // A server that answers an empty poll straight away isn't holding
+            // polls open, and would be polled flat out
+            boolean held = System.currentTimeMillis() - start >= MIN_RECONNECT_MILLIS;
+            return (delivered > 0 || held) ? 0 : retryMillis;
+        } finally {
+            current = null;
+            // Otherwise closing would wait on the rest of a body that may never come
+            if (!finished) {
+                response.disconnect();
+            }
+            response.close();
+        }
+    }
+
+
+    /* Server-sent events */
+
+    /**
+     * Reads events until the server ends the stream. Only {@code data},
+     * {@code event}, {@code id} and {@code retry} fields mean anything; a
+     * line starting with a colon is a comment, which servers use as a
+     * heartbeat.
+     */
+    private void readEvents (BufferedReader in) throws IOException, DoorbellsApiException {
+        StringBuilder data = new StringBuilder();
+        boolean hasData = false;
+        String event = null;
+
+        String line;
+        while (!stopped && (line = in.readLine()) != null) {
+            if (line.length() == 0) {
+                if (hasData) {
+                    dispatch(event, data.toString());
+                }
+                data.setLength(0);
+                hasData = false;
+                event = null;
+                continue;
+            }
+            if (line.charAt(0) == ':') {
+                continue;   // A heartbeat
+            }
+
+            int colon = line.indexOf(':');
+            String field = (colon < 0) ? line : line.substring(0, colon);
+            String value = "";
+            if (colon >= 0) {
+                int start = colon + 1;
+                if (start < line.length() && line.charAt(start) == ' ') {
+                    start++;
+                }
+                value = line.substring(start);
+            }
+
+            if (field.equals("data")) {
+                if (hasData) {
+                    data.append('\n');
+                }
+                data.append(value);
+                hasData = true;
+            } else if (field.equals("event")) {
+                event = value;
+            } else if (field.equals("retry")) {
+                try {
+                    retryMillis = Math.min(Long.parseLong(value), MAX_RECONNECT_MILLIS);
+                } catch (NumberFormatException e) {
+                    // Ignored, as the spec says
+                }
+            }
+            // The event's ID is the message's, which resuming goes by anyway
+        }
+    }
+
+    private void dispatch (String event, String data)
+            throws IOException, DoorbellsApiException {
+        if (event == null || event.equals("message")) {
+            Message message = JsonCodec.decode(data, Message.class);
+            deliver(message);
+            // Events come oldest first, so everything before this one is in
+            if (message != null && !stopped && message.getId() > lastId) {
+                lastId = message.getId();
+            }
+        }
+        // Anything else, like a heartbeat, only goes to show the connection is alive
+    }
+
+
+    /* Long polls */
+
+    /**
+     * Reads a page of messages ({@code {"messages": [...]}}, or just the
+     * array), passing on each message as soon as it has been read.
+     */
+    private void readPage (JsonReader in) throws IOException, DoorbellsApiException {
+        try {
+            if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                readMessages(in);
+                return;
+            }
+
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("messages")) {
+                    readMessages(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IllegalStateException e) {
+            throw new InternalServerException("server did not return a page of messages", e);
+        }
+    }
+
+    private void readMessages (JsonReader in) throws IOException, DoorbellsApiException {
+        in.beginArray();
+        while (!stopped && in.hasNext()) {
+            deliver(JsonCodec.decode(in, Message.class));
+        }
+        if (!stopped) {
+            in.endArray();
+        }
+    }
+
+    private void deliver (Message message) {
+        if (message == null || stopped) {
+            return;
+        }
+        if (delivered == 0 || message.getId() > newestId) {
+            newestId = message.getId();
+        }
+        if (delivered == 0 || message.getId() < oldestId) {
+            oldestId = message.getId();
+        }
+        delivered++;
+        listener.onMessage(message);
+    }
+
+    /**
+     * Once a page has been read, pages back through whatever was left out of
+     * it (the page holds only the newest messages after {@code floor}), and
+     * only then moves the last ID seen past it.
+     */
+    private void catchUp (int floor) throws IOException, DoorbellsApiException {
+        if (delivered == 0) {
+            return;
+        }
+        int count = delivered;
+        while (count >= PAGE_SIZE && floor != NONE && oldestId > floor + 1 && !stopped) {
+            MessageQuery older = MessageQuery.latest(PAGE_SIZE).afterId(floor).beforeId(oldestId);
+            Message[] page = client.getMessages(older);
+            count = 0;
+            for (Message message : page) {
+                if (stopped) {
+                    return;
+                }
+                deliver(message);
+                count++;
+            }
+        }
+        if (!stopped && newestId > lastId) {
+            lastId = newestId;
+        }
+    }
+}
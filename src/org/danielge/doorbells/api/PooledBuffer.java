@@ -0,0 +1,151 @@
+package org.danielge.doorbells.api;
+
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A growable byte buffer whose backing array comes from, and goes back to, a
+ * small shared pool, so that encoding a request body doesn't allocate a fresh
+ * array (and then another copy of it) every time. Always {@link #release()} a
+ * buffer when done with it, and don't touch it afterwards.
+ * <p>
+ * A buffer is only ever used by one thread at a time.
+ */
+final class PooledBuffer extends OutputStream {
+    static final int BUFFER_SIZE = 8 * 1024;
+    // Bigger arrays are one-offs, and are left to the garbage collector
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL =
+            new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private byte[] buffer;
+    private int length;
+
+    private PooledBuffer (byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    static PooledBuffer acquire() {
+        return new PooledBuffer(take());
+    }
+
+    /**
+     * @return  An array of at least {@link #BUFFER_SIZE} bytes, with arbitrary
+     *          contents, to be handed back with {@link #recycle(byte[])}
+     */
+    static byte[] take() {
+        byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    static void recycle (byte[] buffer) {
+        if (buffer.length > MAX_POOLED_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();   // Only undo a count that was taken
+            return;
+        }
+        POOL.offer(buffer);
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private void ensureCapacity (int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    @Override
+    public void write (int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write (byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Appends the text encoded as UTF-8. Unpaired surrogates become {@code '?'},
+     * as they would with {@code String.getBytes}.
+     */
+    void writeUtf8 (CharSequence text) {
+        int chars = text.length();
+        ensureCapacity(chars);  // Enough for ASCII, the usual case
+
+        for (int i = 0; i < chars; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (length == buffer.length) {
+                    ensureCapacity(1);
+                }
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                ensureCapacity(4);
+                buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                write('?');
+            } else {
+                ensureCapacity(3);
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    void writeTo (OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    /**
+     * @return  The contents decoded as UTF-8
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, Utils.UTF_8);
+    }
+
+    /**
+     * Hands the backing array back to the pool.
+     */
+    void release() {
+        if (buffer != null) {
+            recycle(buffer);
+            buffer = null;
+            length = 0;
+        }
+    }
+}
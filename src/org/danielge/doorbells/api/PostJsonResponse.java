@@ -2,62 +2,152 @@ package org.danielge.doorbells.api;
 
 import org.danielge.doorbells.utils.Utils;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
 
 import static org.danielge.doorbells.api.ApiUtils.Params;
 
-class PostJsonResponse extends JsonResponse{
-    private int responseCode;
-    private String body;
-
-    private PostJsonResponse(int responseCode, String body) {
-        super(responseCode, body);
+class PostJsonResponse extends JsonResponse {
+    private PostJsonResponse(RequestContext context,
+                             HttpURLConnection connection,
+                             Deadline deadline,
+                             Semaphore slot,
+                             String endpoint,
+                             long connectNanos,
+                             long connectedAt,
+                             long bytesSent) throws IOException {
+        super(context, connection, deadline, slot, endpoint, connectNanos, connectedAt, bytesSent);
     }
 
-    public static PostJsonResponse makeRequest(String resource, String contents)
+    /**
+     * @param form  The fields of the body, or {@code null} for an empty one
+     */
+    public static PostJsonResponse makeRequest(RequestContext context,
+                                               String resource,
+                                               Params form,
+                                               Map<String, String> headers)
             throws IOException {
-        contents = (contents == null) ? "" : contents;
-
-        HttpURLConnection connection =
-                (HttpURLConnection) ApiUtils.endpoint(resource).openConnection();
+        String endpoint = ApiUtils.endpointOf(resource);
+        HttpURLConnection connection = context.transport.openConnection(resource);
+        // Started first, so that waiting for a slot counts against it
+        Deadline deadline = Deadline.start(connection, context.timeouts, resource);
+        Semaphore slot = acquireSlot(context, connection, deadline, endpoint);
+        PooledBuffer body = null;
+        PooledBuffer wire = null;
 
         try {
+            deadline.arm();
+            Attempt.opened(connection);
             connection.setDoOutput(true); // sets this to make a POST request
             connection.setRequestProperty("Accept", Utils.MIME_JSON);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
             connection.setRequestProperty("Content-Type", Utils.MIME_FORM);
-            connection.setRequestProperty("Content-Length", String.valueOf(contents.length()));
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+
+            // Encoded straight into a pooled buffer, so the length is exact in bytes
+            body = PooledBuffer.acquire();
+            if (form != null) {
+                form.writeTo(body);
+            }
+            wire = body;
+            if (context.gzipRequestsOver != RequestContext.NEVER
+                    && body.length() >= context.gzipRequestsOver) {
+                wire = gzip(body);
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            // Sets Content-Length, and streams the body instead of buffering it again
+            connection.setFixedLengthStreamingMode(wire.length());
 
-            OutputStream out = new BufferedOutputStream(connection.getOutputStream());
-            out.write(contents.getBytes());
+            long start = System.nanoTime();
+            connection.connect();
+            long connectedAt = System.nanoTime();
+
+            OutputStream out = connection.getOutputStream();
+            wire.writeTo(out);
             out.close();
+            context.stats.recordSent(wire.length(), body.length());
 
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            String responseBody = Utils.inputStreamToString(in);
-            in.close();
+            return new PostJsonResponse(context, connection, deadline, slot,
+                    endpoint, connectedAt - start, connectedAt, wire.length());
+        } catch (IOException e) {
+            deadline.cancel();
+            Attempt.released(connection);
+            context.transport.releaseConnection(connection, false);
+            ConcurrencyLimiter.release(slot);
+            IOException failure = deadline.translate(e);
+            context.metrics.onFailure(endpoint, failure);
+            throw failure;
+        } finally {
+            if (wire != null && wire != body) {
+                wire.release();
+            }
+            if (body != null) {
+                body.release();
+            }
+        }
+    }
 
-            return new PostJsonResponse(connection.getResponseCode(), responseBody);
+    private static PooledBuffer gzip (PooledBuffer body) throws IOException {
+        PooledBuffer compressed = PooledBuffer.acquire();
+        boolean done = false;
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            body.writeTo(out);
+            out.close();
+            done = true;
+            return compressed;
         } finally {
-            connection.disconnect();
+            if (!done) {
+                compressed.release();
+            }
         }
     }
 
-    public static PostJsonResponse makeRequest(String resource,
+    public static PostJsonResponse makeRequest(RequestContext context,
+                                               String resource,
+                                               Params form) throws IOException {
+        return makeRequest(context, resource, form, null);
+    }
+
+    public static PostJsonResponse makeRequest(RequestContext context,
+                                               String resource,
                                                Params urlParams,
-                                               String contents) throws IOException {
-        return makeRequest(ApiUtils.concatQuery(resource, urlParams), contents);
+                                               Params form,
+                                               Map<String, String> headers)
+            throws IOException {
+        return makeRequest(context, ApiUtils.concatQuery(resource, urlParams),
+                form, headers);
     }
 
-    public static PostJsonResponse makeAuthRequest(String resource,
-                                                   String token,
+    /**
+     * @param encodedToken    The auth token, already form-encoded by
+     *                        {@link ApiUtils#encode(String)}
+     */
+    public static PostJsonResponse makeAuthRequest(RequestContext context,
+                                                   String resource,
+                                                   String encodedToken,
                                                    Params urlParams,
-                                                   String contents) throws IOException {
-        if (urlParams == null) {
-            Params params = Params.start("auth_token", token);
-            return makeRequest(resource, params, contents);
-        } else {
-            urlParams.addParam("auth_token", token);
-            return makeRequest(resource, urlParams, contents);
-        }
+                                                   Params form) throws IOException {
+        return makeAuthRequest(context, resource, encodedToken, urlParams, form, null);
+    }
+
+    public static PostJsonResponse makeAuthRequest(RequestContext context,
+                                                   String resource,
+                                                   String encodedToken,
+                                                   Params urlParams,
+                                                   Params form,
+                                                   Map<String, String> headers)
+            throws IOException {
+        Params params = (urlParams == null) ? Params.start() : urlParams;
+        params = params.addEncodedParam("auth_token", encodedToken);
+        return makeRequest(context, resource, params, form, headers);
     }
 }
\ No newline at end of file
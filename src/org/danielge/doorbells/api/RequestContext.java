@@ -0,0 +1,50 @@
+package org.danielge.doorbells.api;
+
+/**
+ * Everything a request needs besides its own resource, parameters and body:
+ * where to get a connection, how many may be open at once, how long to wait
+ * on it, and how to encode and account for the bytes, and who to tell about it.
+ * A context is immutable, and is shared by every request a client makes.
+ */
+final class RequestContext {
+    static final int NEVER = -1;
+
+    final Transport transport;
+    final TransferStats stats;
+    final int gzipRequestsOver;   // Compress bodies of at least this many bytes
+    final Timeouts timeouts;
+    final ClientMetrics metrics;
+    final ConcurrencyLimiter limiter;
+
+    RequestContext (Transport transport) {
+        this(transport, new TransferStats(), NEVER, Timeouts.DEFAULT, ClientMetrics.NONE,
+                new ConcurrencyLimiter(ConcurrencyLimiter.DEFAULT_MAX_PER_HOST));
+    }
+
+    private RequestContext (Transport transport, TransferStats stats,
+                            int gzipRequestsOver, Timeouts timeouts,
+                            ClientMetrics metrics, ConcurrencyLimiter limiter) {
+        this.transport = transport;
+        this.stats = stats;
+        this.gzipRequestsOver = gzipRequestsOver;
+        this.timeouts = timeouts;
+        this.metrics = metrics;
+        this.limiter = limiter;
+    }
+
+    RequestContext withGzipRequestsOver (int minBytes) {
+        return new RequestContext(transport, stats, minBytes, timeouts, metrics, limiter);
+    }
+
+    RequestContext withTimeouts (Timeouts timeouts) {
+        return new RequestContext(transport, stats, gzipRequestsOver, timeouts, metrics, limiter);
+    }
+
+    RequestContext withLimiter (ConcurrencyLimiter limiter) {
+        return new RequestContext(transport, stats, gzipRequestsOver, timeouts, metrics, limiter);
+    }
+
+    RequestContext withMetrics (ClientMetrics metrics) {
+        return new RequestContext(transport, stats, gzipRequestsOver, timeouts, metrics, limiter);
+    }
+}
@@ -0,0 +1,25 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response body is larger than {@link JsonResponse#MAX_BODY_BYTES}.
+ * Such a response is never retried.
+ */
+public class ResponseTooLargeException extends IOException {
+    public ResponseTooLargeException() {
+        super();
+    }
+
+    public ResponseTooLargeException(Throwable tr) {
+        super(tr);
+    }
+
+    public ResponseTooLargeException(String message) {
+        super(message);
+    }
+
+    public ResponseTooLargeException(String message, Throwable tr) {
+        super(message, tr);
+    }
+}
@@ -0,0 +1,213 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries out a {@link RetryPolicy}: runs a call, retrying it with backoff
+ * while it fails in a retryable way and the budget allows, and optionally
+ * hedging it. Also keeps the recent latencies that hedging is based on, so a
+ * retrier is shared by every request of a client.
+ * <p>
+ * The whole call, attempts, hedges and the waits between them, runs within
+ * one total timeout (see {@link Deadline}). A retry that couldn't even start
+ * before it runs out isn't made, and the last failure is thrown instead.
+ */
+class Retrier {
+    private static final int LATENCY_SAMPLES = 128;
+    private static final int MIN_SAMPLES_TO_HEDGE = 20;
+
+    // A ring buffer of the most recent successful attempts, in milliseconds
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int samples, next;
+
+    /**
+     * @param context   Whose total timeout the call runs within, and whose
+     *                  metrics are told about every retry, under the given
+     *                  endpoint
+     */
+    <T> T execute (RetryPolicy policy, RequestContext context,
+                   final SingleFlight.Call<T> call, boolean hedgeable, String endpoint)
+            throws IOException, DoorbellsApiException {
+        // A call made within another, e.g. a sign-in on the way to a GET,
+        // runs within the outer call's time
+        long startedAt = Deadline.callStartedAt();
+        Long outer = Deadline.enterCall(startedAt);
+        try {
+            int attempt = 1;
+            while (true) {
+                long delay;
+                try {
+                    T result;
+                    if (hedgeable && policy.isHedging()) {
+                        result = hedged(call, startedAt);
+                    } else {
+                        result = timed(call);
+                    }
+                    if (policy.getBudget() != null) {
+                        policy.getBudget().recordSuccess();
+                    }
+                    return result;
+                } catch (IOException e) {
+                    delay = retryDelay(policy, context, startedAt, attempt, e);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                } catch (DoorbellsApiException e) {
+                    delay = retryDelay(policy, context, startedAt, attempt, e);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                }
+
+                context.metrics.onRetry(endpoint);
+                sleep(delay);
+                attempt++;
+            }
+        } finally {
+            Deadline.exitCall(outer);
+        }
+    }
+
+    /**
+     * @return  How long to back off before retrying a failed attempt, or
+     *          {@code -1} if it shouldn't be retried
+     */
+    private static long retryDelay (RetryPolicy policy, RequestContext context,
+                                    long startedAt, int attempt, Exception e) {
+        if (attempt >= policy.getMaxAttempts() || !RetryPolicy.isRetryable(e)) {
+            return -1;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return -1;
+        }
+        // Waking up with no time left to make the request would only waste
+        // the wait, and a retry from the budget
+        long delay = policy.delayMillis(attempt);
+        if (delay >= Deadline.remainingMillis(context.timeouts, startedAt)) {
+            return -1;
+        }
+        if (policy.getBudget() != null && !policy.getBudget().tryAcquire()) {
+            return -1;
+        }
+        return delay;
+    }
+
+    private static void sleep (long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while backing off");
+        }
+    }
+
+    private <T> T timed (SingleFlight.Call<T> call) throws IOException, DoorbellsApiException {
+        long start = System.nanoTime();
+        T result = call.call();
+        recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    private synchronized void recordLatency (long millis) {
+        latencies[next] = millis;
+        next = (next + 1) % LATENCY_SAMPLES;
+        samples = Math.min(samples + 1, LATENCY_SAMPLES);
+    }
+
+    /**
+     * @return  The 95th percentile of recent latencies, or {@code -1} if there
+     *          aren't enough of them to tell
+     */
+    synchronized long p95Millis() {
+        if (samples < MIN_SAMPLES_TO_HEDGE) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(samples * 0.95) - 1];
+    }
+
+    /**
+     * Runs the call, and if it hasn't answered by the 95th percentile latency,
+     * runs a second copy of it too. The first to succeed wins. The other is
+     * cut off: its connection is disconnected, which fails it straight away
+     * (interrupting it alone wouldn't stop it blocking on the socket), and it
+     * then hands back its connection and slot as any failed request does.
+     */
+    private <T> T hedged (final SingleFlight.Call<T> call, final long startedAt)
+            throws IOException, DoorbellsApiException {
+        long hedgeAfter = p95Millis();
+        if (hedgeAfter < 0) {
+            return timed(call);
+        }
+
+        Callable<T> attempt = new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                // On a worker thread, but within the time of the call it is for
+                Long outer = Deadline.enterCall(startedAt);
+                try {
+                    return timed(call);
+                } finally {
+                    Deadline.exitCall(outer);
+                }
+            }
+        };
+        CompletionService<T> attempts = new ExecutorCompletionService<T>(Workers.POOL);
+        Attempt<T> primaryAttempt = new Attempt<T>(attempt);
+        Attempt<T> hedgeAttempt = null;
+        Future<T> primary = attempts.submit(primaryAttempt);
+        Future<T> hedge = null;
+
+        try {
+            Future<T> first = attempts.poll(hedgeAfter, TimeUnit.MILLISECONDS);
+            int running = 1;
+            if (first == null) {
+                hedgeAttempt = new Attempt<T>(attempt);
+                hedge = attempts.submit(hedgeAttempt);
+                running = 2;
+                first = attempts.take();
+            }
+
+            try {
+                return first.get();
+            } catch (ExecutionException e) {
+                if (running == 1) {
+                    throw e;
+                }
+                // One failed; the other might still come through
+                return attempts.take().get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof DoorbellsApiException) {
+                throw (DoorbellsApiException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a response");
+        } finally {
+            // Whichever is still running is the loser; the winner has nothing
+            // left open to disconnect
+            primaryAttempt.cancel();
+            primary.cancel(true);   // In case it is waiting for a slot
+            if (hedge != null) {
+                hedgeAttempt.cancel();
+                hedge.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.danielge.doorbells.api;
+
+/**
+ * Caps how many retries can be made, so that when the server is down, clients
+ * back off instead of multiplying the load on it. The budget is a bucket of
+ * tokens: every retry takes a whole token, and every successful request puts
+ * back a fraction of one. While the server is healthy the bucket stays full;
+ * once failures drain it, retries stop until enough requests succeed again.
+ * <p>
+ * Share one budget between every client that talks to the same server. All
+ * methods are thread-safe.
+ */
+public class RetryBudget {
+    private final double maxTokens;
+    private final double tokensPerSuccess;
+    private double tokens;
+
+    /**
+     * @param maxTokens The most retries that can be made in a burst
+     * @param tokensPerSuccess  What a successful request earns back, e.g.
+     *                          {@code 0.1} allows one retry per ten successes
+     */
+    public RetryBudget (int maxTokens, double tokensPerSuccess) {
+        if (maxTokens <= 0 || tokensPerSuccess < 0) {
+            throw new IllegalArgumentException("maxTokens must be positive, and "
+                    + "tokensPerSuccess non-negative");
+        }
+        this.maxTokens = maxTokens;
+        this.tokensPerSuccess = tokensPerSuccess;
+        this.tokens = maxTokens;
+    }
+
+    /**
+     * @return  {@code true} if there was a token for a retry, which is now spent
+     */
+    synchronized boolean tryAcquire() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        tokens = Math.min(maxTokens, tokens + tokensPerSuccess);
+    }
+
+    public synchronized double getTokens() {
+        return tokens;
+    }
+}
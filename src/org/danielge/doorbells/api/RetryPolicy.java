@@ -0,0 +1,117 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * How a {@link DoorbellsClient} retries requests that fail for reasons that
+ * might go away by themselves: an {@code IOException}, or an
+ * {@link InternalServerException}. Only requests that are safe to repeat are
+ * ever retried, i.e. GETs, and sends that carry an idempotency key. A request
+ * that ran out of time ({@link DeadlineExceededException}) is not retried:
+ * retries share the call's total timeout (see {@link Timeouts}), so there
+ * would be nothing left to retry with. Nor is one whose thread was
+ * interrupted ({@link InterruptedIOException}).
+ * <p>
+ * Retries wait a random time between zero and an exponentially growing cap
+ * ("full jitter"), so that clients that failed together don't retry together,
+ * and they are drawn from a {@link RetryBudget}.
+ * <p>
+ * A policy can also hedge GETs: if a GET takes longer than the 95th percentile
+ * of recent GETs, a second copy is sent, and whichever answers first wins.
+ * <p>
+ * Policies are immutable; every {@code with} method returns a new policy.
+ */
+public final class RetryPolicy {
+    private static final Random RANDOM = new Random();
+
+    /** Never retry, never hedge */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, null, false);
+
+    /** Up to 3 attempts, backing off from 250ms, from a process-wide budget */
+    public static final RetryPolicy DEFAULT =
+            new RetryPolicy(3, 250, 4000, new RetryBudget(10, 0.1), false);
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final RetryBudget budget;   // null if retries are unlimited
+    private final boolean hedging;
+
+    private RetryPolicy (int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                         RetryBudget budget, boolean hedging) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budget = budget;
+        this.hedging = hedging;
+    }
+
+    /**
+     * @param maxAttempts   The most times to try a request, including the first
+     * @param baseDelayMillis   The cap on the wait before the first retry; it
+     *                          doubles for every retry after that
+     * @param maxDelayMillis    The most the cap can grow to
+     */
+    public static RetryPolicy exponential (int maxAttempts, long baseDelayMillis,
+                                           long maxDelayMillis) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, null, false);
+    }
+
+    /**
+     * @param budget    The budget to draw retries from, or {@code null} for none
+     */
+    public RetryPolicy withBudget (RetryBudget budget) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, budget, hedging);
+    }
+
+    public RetryPolicy withHedging (boolean hedging) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, budget, hedging);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /**
+     * @param retry The number of the retry about to be made, starting at 1
+     */
+    long delayMillis (int retry) {
+        long cap = baseDelayMillis << Math.min(retry - 1, 30);
+        if (cap > maxDelayMillis || cap < 0) {
+            cap = maxDelayMillis;
+        }
+        synchronized (RANDOM) {
+            return (long) (RANDOM.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * @return  {@code true} if a request that failed this way may be retried
+     */
+    static boolean isRetryable (Exception e) {
+        if (e instanceof ResponseTooLargeException) {
+            return false;   // It will only be as large the next time
+        }
+        if (e instanceof DeadlineExceededException) {
+            return false;
+        }
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;   // Whoever was waiting on it has given up
+        }
+        return e instanceof IOException || e instanceof InternalServerException;
+    }
+}
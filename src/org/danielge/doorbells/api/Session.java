@@ -0,0 +1,225 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+
+/**
+ * The auth token a {@link DoorbellsClient} signs its requests with, and how to
+ * get a new one when it lapses.
+ * <p>
+ * When a request is turned away with a 401, the client asks its session for a
+ * fresh token and replays the request with it. However many requests run into
+ * the 401 at once, the session authenticates only once: the first to ask
+ * does it, and the rest wait for it and then replay with the same new token.
+ * Requests that start while it is underway wait for it too, instead of going
+ * out with a token that is known to be stale. If the server said when the
+ * token expires, it is replaced a little ahead of time, so that requests don't
+ * run into the 401 at all.
+ * <p>
+ * A session without an {@link Authenticator} keeps its token for good, and
+ * requests with a lapsed token fail with an {@link UnauthorizedException} as
+ * they always have. A session is thread-safe, and is shared by every client
+ * derived from the one it was given to.
+ */
+public final class Session {
+    /** How long before a token expires to replace it */
+    public static final long DEFAULT_REFRESH_AHEAD_MILLIS = 60 * 1000;
+
+    private static final String REFRESH_KEY = "refresh";
+
+    /**
+     * Gets a new token, e.g. with {@link DoorbellsClient#requestToken}. Only
+     * ever called by one thread at a time.
+     */
+    public interface Authenticator {
+        Token authenticate() throws IOException, DoorbellsApiException;
+    }
+
+    /**
+     * Told whenever the session gets a new token, e.g. to save it for the next
+     * time the app starts.
+     */
+    public interface Listener {
+        void onTokenChanged (Token token);
+    }
+
+    /**
+     * An auth token, and when it expires if the server said.
+     */
+    public static final class Token {
+        public static final long NEVER_EXPIRES = 0;
+
+        private final String value;
+        private final String encoded;   // Form-encoded once, for every request
+        private final long expiresAtMillis;
+
+        public Token (String value) {
+            this(value, NEVER_EXPIRES);
+        }
+
+        /**
+         * @param expiresAtMillis   When the token expires, by
+         *                          {@link System#currentTimeMillis()}, or
+         *                          {@link #NEVER_EXPIRES} if not known
+         */
+        public Token (String value, long expiresAtMillis) {
+            if (value == null) {
+                throw new IllegalArgumentException("token must not be null");
+            }
+            this.value = value;
+            this.encoded = ApiUtils.encode(value);
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+
+        String getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * @return  {@code true} if the token is known to expire less than
+         *          {@code millis} from now
+         */
+        boolean expiresWithin (long millis) {
+            return expiresAtMillis != NEVER_EXPIRES
+                    && System.currentTimeMillis() + millis >= expiresAtMillis;
+        }
+    }
+
+    private final Authenticator authenticator;  // null if the token can't be replaced
+    private final Listener listener;            // may be null
+    private final long refreshAheadMillis;
+    private final SingleFlight refreshes = new SingleFlight();
+
+    private Token token;
+    private volatile Token replacing;   // The token being replaced, if any
+
+    /**
+     * A session that keeps the given token for good.
+     */
+    public Session (String token) {
+        this(new Token(token), null, null);
+    }
+
+    /**
+     * @param authenticator Gets a new token when this one lapses, or
+     *                      {@code null} to keep this one for good
+     * @param listener      Told about every new token, or {@code null}
+     */
+    public Session (Token token, Authenticator authenticator, Listener listener) {
+        this(token, authenticator, listener, DEFAULT_REFRESH_AHEAD_MILLIS);
+    }
+
+    public Session (Token token, Authenticator authenticator, Listener listener,
+                    long refreshAheadMillis) {
+        if (token == null) {
+            throw new IllegalArgumentException("token must not be null");
+        }
+        if (refreshAheadMillis < 0) {
+            throw new IllegalArgumentException("refreshAheadMillis must be non-negative");
+        }
+        this.token = token;
+        this.authenticator = authenticator;
+        this.listener = listener;
+        this.refreshAheadMillis = refreshAheadMillis;
+    }
+
+    /**
+     * @return  The token as it is now, without waiting on any refresh
+     */
+    public synchronized Token getToken() {
+        return token;
+    }
+
+    /**
+     * @return  {@code true} if the session can get a new token
+     */
+    public boolean canRefresh() {
+        return authenticator != null;
+    }
+
+    /**
+     * @return  The token for a request to use: the current one, unless a new
+     *          one is on its way or this one is about to expire, in which case
+     *          the new one
+     */
+    Token current() throws IOException, DoorbellsApiException {
+        Token current = getToken();
+        if (authenticator == null) {
+            return current;
+        }
+        if (replacing == current) {
+            return refresh(current);
+        }
+        if (!current.expiresWithin(refreshAheadMillis)) {
+            return current;
+        }
+
+        // Replacing a token that hasn't expired yet is only an optimization
+        try {
+            return refresh(current);
+        } catch (IOException e) {
+            if (current.expiresWithin(0)) {
+                throw e;
+            }
+        } catch (DoorbellsApiException e) {
+            if (current.expiresWithin(0)) {
+                throw e;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Replaces a token that the server has turned away, or that is about to
+     * expire. If it has already been replaced, returns its replacement
+     * straight away; if it is being replaced, waits for that.
+     *
+     * @param stale The token to replace
+     * @return  The new token
+     * @throws UnauthorizedException    If the session can't get a new token, or
+     *                                  the server wouldn't give it one
+     */
+    Token refresh (final Token stale) throws IOException, DoorbellsApiException {
+        if (authenticator == null) {
+            throw new UnauthorizedException("the session has lapsed");
+        }
+        synchronized (this) {
+            if (token != stale) {
+                return token;
+            }
+        }
+
+        return refreshes.execute(REFRESH_KEY, new SingleFlight.Call<Token>() {
+            @Override
+            public Token call() throws IOException, DoorbellsApiException {
+                // Whoever got here first may have already replaced it
+                synchronized (Session.this) {
+                    if (token != stale) {
+                        return token;
+                    }
+                }
+
+                replacing = stale;
+                try {
+                    Token fresh = authenticator.authenticate();
+                    synchronized (Session.this) {
+                        token = fresh;
+                    }
+                    if (listener != null) {
+                        listener.onTokenChanged(fresh);
+                    }
+                    return fresh;
+                } finally {
+                    replacing = null;
+                }
+            }
+        });
+    }
+}
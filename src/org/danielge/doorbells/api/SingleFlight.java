@@ -0,0 +1,79 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Collapses identical requests that are in flight at the same time into one.
+ * The first caller for a key makes the request; anyone else who asks for the
+ * same key before it finishes waits for it and gets the same result (or the
+ * same exception) instead of making a request of their own.
+ */
+class SingleFlight {
+    interface Call<T> {
+        T call() throws IOException, DoorbellsApiException;
+    }
+
+    private static class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        Object result;
+        Throwable failure;
+    }
+
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    @SuppressWarnings("unchecked")
+    <T> T execute (String key, Call<T> call) throws IOException, DoorbellsApiException {
+        Flight flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                flights.put(key, flight);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                flight.result = call.call();
+            } catch (IOException e) {
+                flight.failure = e;
+            } catch (DoorbellsApiException e) {
+                flight.failure = e;
+            } catch (RuntimeException e) {
+                flight.failure = e;
+            } catch (Error e) {
+                flight.failure = e;
+            } finally {
+                synchronized (flights) {
+                    flights.remove(key);
+                }
+                flight.done.countDown();
+            }
+        } else {
+            try {
+                flight.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + key);
+            }
+        }
+
+        Throwable failure = flight.failure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof DoorbellsApiException) {
+            throw (DoorbellsApiException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return (T) flight.result;
+    }
+}
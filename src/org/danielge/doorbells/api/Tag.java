@@ -9,6 +9,12 @@ public class Tag {
     private Tag() {
     }
 
+    public Tag (String id, String location, User user) {
+        this.id = id;
+        this.location = location;
+        this.user = user;
+    }
+
     public String getId() {
         return id;
     }
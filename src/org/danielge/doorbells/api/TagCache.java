@@ -0,0 +1,224 @@
+package org.danielge.doorbells.api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the user's tags in memory, so that a {@link DoorbellsClient} with a
+ * tag cache (see {@link DoorbellsClient#withTagCache(TagCache)}) can answer
+ * {@link DoorbellsClient#getTag(String)} and {@link DoorbellsClient#getTags()}
+ * without going to the server at all.
+ * <p>
+ * Tags only change through {@code createTag}, {@code updateTag} and
+ * {@code destroyTag}, which write through to the cache of the client they are
+ * called on. Changes made elsewhere (on another device, say) are only picked
+ * up once a push says so (see {@link #invalidate(String)}), or once an entry
+ * is older than the cache's time to live, whichever comes first.
+ * <p>
+ * The cache holds at most a fixed number of tags, evicting the least recently
+ * used one when it is full, plus the last full list of tags. Cached tags are
+ * handed to every caller as-is, which is safe since tags are immutable. All
+ * methods are thread-safe.
+ */
+public class TagCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, CachedTag> entries;
+
+    private Tag[] all;          // The last full list, or null
+    private long allStoredAt;
+    // Bumped by every change, so that a fetch that started before it doesn't
+    // put back what it changed
+    private long generation;
+    private int hits, misses;
+
+    private static class CachedTag {
+        final Tag tag;
+        final long storedAt;
+
+        CachedTag (Tag tag, long storedAt) {
+            this.tag = tag;
+            this.storedAt = storedAt;
+        }
+    }
+
+    public TagCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxEntries    The most tags to hold at once, not counting the
+     *                      full list
+     * @param ttlMillis     How long a tag is trusted before it is fetched again
+     */
+    public TagCache (int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.entries = new LinkedHashMap<String, CachedTag>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, CachedTag> eldest) {
+                return size() > TagCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return  The cached tag, or {@code null} if it isn't cached or has
+     *          expired
+     */
+    synchronized Tag get (String id) {
+        CachedTag entry = entries.get(id);
+        if (entry != null && isFresh(entry.storedAt)) {
+            hits++;
+            return entry.tag;
+        }
+        if (entry != null) {
+            entries.remove(id);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * @return  The cached full list of tags, or {@code null} if there is none
+     *          or it has expired
+     */
+    synchronized Tag[] getAll() {
+        if (all != null && isFresh(allStoredAt)) {
+            hits++;
+            return all.clone();
+        }
+        all = null;
+        misses++;
+        return null;
+    }
+
+    /**
+     * @return  A stamp to pass to {@link #put(Tag, long)} or
+     *          {@link #putAll(Tag[], long)} once a fetch started now is done
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a tag fetched from the server, unless the cache has changed since
+     * the fetch started.
+     */
+    synchronized void put (Tag tag, long generation) {
+        if (tag != null && generation == this.generation) {
+            entries.put(tag.getId(), new CachedTag(tag, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Caches the full list of tags fetched from the server, and each tag in
+     * it, unless the cache has changed since the fetch started.
+     */
+    synchronized void putAll (Tag[] tags, long generation) {
+        if (tags == null || generation != this.generation) {
+            return;
+        }
+        long now = System.nanoTime();
+        all = tags.clone();
+        allStoredAt = now;
+        for (Tag tag : tags) {
+            entries.put(tag.getId(), new CachedTag(tag, now));
+        }
+    }
+
+
+    /* Write-through from the client's own changes */
+
+    synchronized void onCreated (Tag tag) {
+        generation++;
+        entries.put(tag.getId(), new CachedTag(tag, System.nanoTime()));
+        if (all != null) {
+            Tag[] added = new Tag[all.length + 1];
+            System.arraycopy(all, 0, added, 0, all.length);
+            added[all.length] = tag;
+            all = added;
+        }
+    }
+
+    synchronized void onUpdated (String id, String location) {
+        generation++;
+        CachedTag entry = entries.get(id);
+        if (entry != null) {
+            entries.put(id, new CachedTag(
+                    new Tag(id, location, entry.tag.getUser()), entry.storedAt));
+        }
+        if (all != null) {
+            for (int i = 0; i < all.length; i++) {
+                if (all[i].getId().equals(id)) {
+                    all[i] = new Tag(id, location, all[i].getUser());
+                }
+            }
+        }
+    }
+
+    synchronized void onDestroyed (String id) {
+        generation++;
+        entries.remove(id);
+        if (all != null) {
+            List<Tag> kept = new ArrayList<Tag>(all.length);
+            for (Tag tag : all) {
+                if (!tag.getId().equals(id)) {
+                    kept.add(tag);
+                }
+            }
+            all = kept.toArray(new Tag[kept.size()]);
+        }
+    }
+
+
+    /* Invalidation */
+
+    /**
+     * Forgets a tag that has changed elsewhere, e.g. when a push says so, along
+     * with the full list it was in.
+     */
+    public synchronized void invalidate (String id) {
+        generation++;
+        entries.remove(id);
+        all = null;
+    }
+
+    /**
+     * Forgets every tag.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        all = null;
+    }
+
+    /** @return  How many lookups were answered from the cache */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /** @return  How many lookups had to go to the server */
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean isFresh (long storedAt) {
+        return System.nanoTime() - storedAt < ttlNanos;
+    }
+}
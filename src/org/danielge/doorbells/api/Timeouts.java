@@ -0,0 +1,51 @@
+package org.danielge.doorbells.api;
+
+/**
+ * How long a request may take. The connect and read timeouts bound each
+ * individual wait on the network, while the total timeout bounds the whole
+ * call, from opening the first connection to reading the last byte of the
+ * body, retries and the waits between them included. A call that runs out of
+ * time is cut off and fails with a {@link DeadlineExceededException}.
+ * <p>
+ * A timeout of {@code 0} means no limit.
+ */
+public final class Timeouts {
+    public static final Timeouts DEFAULT = new Timeouts(15 * 1000, 20 * 1000, 60 * 1000);
+    public static final Timeouts NONE = new Timeouts(0, 0, 0);
+
+    private final int connectMillis;
+    private final int readMillis;
+    private final long totalMillis;
+
+    /**
+     * @param connectMillis The longest to wait for a connection to the server
+     * @param readMillis    The longest to wait for the server between bytes
+     * @param totalMillis   The longest a whole request may take
+     */
+    public Timeouts (int connectMillis, int readMillis, long totalMillis) {
+        if (connectMillis < 0 || readMillis < 0 || totalMillis < 0) {
+            throw new IllegalArgumentException("timeouts must be non-negative");
+        }
+        this.connectMillis = connectMillis;
+        this.readMillis = readMillis;
+        this.totalMillis = totalMillis;
+    }
+
+    public int getConnectMillis() {
+        return connectMillis;
+    }
+
+    public int getReadMillis() {
+        return readMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "connect " + connectMillis + "ms, read " + readMillis
+                + "ms, total " + totalMillis + "ms";
+    }
+}
@@ -0,0 +1,52 @@
+package org.danielge.doorbells.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of how many bytes a client has moved, both as they went over
+ * the wire and as they were before compression (or after decompression).
+ * The ratio of the two is how much gzip is saving. All methods are thread-safe.
+ */
+public class TransferStats {
+    private final AtomicLong wireBytesSent = new AtomicLong();
+    private final AtomicLong bodyBytesSent = new AtomicLong();
+    private final AtomicLong wireBytesReceived = new AtomicLong();
+    private final AtomicLong bodyBytesReceived = new AtomicLong();
+
+    void recordSent (long wireBytes, long bodyBytes) {
+        wireBytesSent.addAndGet(wireBytes);
+        bodyBytesSent.addAndGet(bodyBytes);
+    }
+
+    void recordReceived (long wireBytes, long bodyBytes) {
+        wireBytesReceived.addAndGet(wireBytes);
+        bodyBytesReceived.addAndGet(bodyBytes);
+    }
+
+    /** @return  Request body bytes written to the network */
+    public long getWireBytesSent() {
+        return wireBytesSent.get();
+    }
+
+    /** @return  Request body bytes before compression */
+    public long getBodyBytesSent() {
+        return bodyBytesSent.get();
+    }
+
+    /** @return  Response body bytes read off of the network */
+    public long getWireBytesReceived() {
+        return wireBytesReceived.get();
+    }
+
+    /** @return  Response body bytes after decompression */
+    public long getBodyBytesReceived() {
+        return bodyBytesReceived.get();
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + getWireBytesSent() + "/" + getBodyBytesSent()
+                + " bytes, received " + getWireBytesReceived() + "/" + getBodyBytesReceived()
+                + " bytes (wire/body)";
+    }
+}
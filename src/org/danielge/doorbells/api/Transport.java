@@ -0,0 +1,29 @@
+package org.danielge.doorbells.api;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Hands out the HTTP connections that a {@link DoorbellsClient} talks to the
+ * server over. Every connection that is opened is handed back through
+ * {@link #releaseConnection(HttpURLConnection, boolean)} once its response has
+ * been dealt with, so that an implementation is free to keep it alive.
+ */
+public interface Transport {
+    /**
+     * Opens a connection to the given API resource (e.g. {@code "/messages"},
+     * including any query string). The connection has not been connected yet.
+     */
+    HttpURLConnection openConnection (String resource) throws IOException;
+
+    /**
+     * Hands a connection back to the transport.
+     *
+     * @param connection    The connection, as returned by {@link #openConnection(String)}
+     * @param reusable  {@code true} if the whole response body has been read and
+     *                  closed, so that the underlying socket can be reused.
+     *                  {@code false} if the connection is in an unknown state and
+     *                  must be torn down.
+     */
+    void releaseConnection (HttpURLConnection connection, boolean reusable);
+}
@@ -6,6 +6,10 @@ public class User {
     // I know this looks like a useless class, but it's useful for Gson
     private User() {}
 
+    public User (String name) {
+        this.name = name;
+    }
+
     public String getName() {
         return name;
     }
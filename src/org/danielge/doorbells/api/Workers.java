@@ -0,0 +1,26 @@
+package org.danielge.doorbells.api;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pool of daemon threads that the client uses for its own background work,
+ * such as the parallel requests of a batch call or a hedged GET.
+ */
+final class Workers {
+    static final ExecutorService POOL =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "doorbells-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private Workers() {}
+}
@@ -0,0 +1,415 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.api.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An in-memory set of messages, indexed by ID and by time, without boxing.
+ * <p>
+ * Messages are found by ID through an open-addressing hash table of
+ * {@code int} keys (linear probing, with deletions shifted back rather than
+ * left as tombstones), in O(1). Alongside it, the IDs are kept in an
+ * {@code int} array sorted by timestamp (then ID), so that the newest
+ * messages, or those in a range of time, are found in O(log n) and read off
+ * in order. Together that costs about 24 bytes a message on top of the
+ * messages themselves, where a {@code HashMap<Integer, Message>} and a
+ * {@code TreeSet<Message>} cost several times as much.
+ * <p>
+ * Adding a message newer than all the others, the usual case, is O(1);
+ * otherwise adding or removing a message moves the part of the array after
+ * it. A whole page of messages is better added with {@link #merge(Message[])},
+ * which moves everything at most once.
+ * <p>
+ * Not thread-safe.
+ */
+public final class MessageIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    // The hash table: a slot is empty if its value is null
+    private int[] keys;
+    private Message[] values;
+    private int mask;
+    private int size;
+
+    // Every message's timestamp and ID, oldest first
+    private int[] times;
+    private int[] ids;
+
+    /** Oldest first, with the ID to break ties */
+    private static final Comparator<Message> OLDEST_FIRST = new Comparator<Message>() {
+        @Override
+        public int compare (Message a, Message b) {
+            return compareKeys(a.getTimestamp(), a.getId(), b.getTimestamp(), b.getId());
+        }
+    };
+
+    private static final Comparator<Message> BY_ID = new Comparator<Message>() {
+        @Override
+        public int compare (Message a, Message b) {
+            return (a.getId() < b.getId()) ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    public MessageIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected  How many messages the index will probably hold
+     */
+    public MessageIndex (int expected) {
+        int capacity = tableSizeFor(Math.max(expected, MIN_CAPACITY));
+        keys = new int[capacity];
+        values = new Message[capacity];
+        mask = capacity - 1;
+        times = new int[Math.max(expected, MIN_CAPACITY)];
+        ids = new int[times.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return  The message with the given ID, or {@code null} if there is none
+     */
+    public Message get (int id) {
+        for (int slot = slotFor(id); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+        }
+        return null;
+    }
+
+    public boolean contains (int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Adds a message, replacing any message with the same ID.
+     *
+     * @return  The message replaced, or {@code null} if there was none
+     */
+    public Message put (Message message) {
+        Message old = remove(message.getId());
+        insertInTable(message);
+        insertInOrder(message.getTimestamp(), message.getId());
+        return old;
+    }
+
+    /**
+     * Adds a page of messages, replacing any with the same IDs, in one pass
+     * over the time order.
+     */
+    public void merge (Message[] page) {
+        // Of two messages with the same ID, the later wins. The sort is
+        // stable, so that is the last of each run of IDs.
+        Message[] sorted = page.clone();
+        Arrays.sort(sorted, BY_ID);
+        int added = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i + 1 == sorted.length || sorted[i + 1].getId() != sorted[i].getId()) {
+                sorted[added++] = sorted[i];
+            }
+        }
+
+        // Take the messages being replaced out of the table, noting their IDs
+        // (which come out in ascending order, for the binary search below)
+        int[] replaced = new int[added];
+        int replacedCount = 0;
+        for (int i = 0; i < added; i++) {
+            if (removeFromTable(sorted[i].getId()) != null) {
+                replaced[replacedCount++] = sorted[i].getId();
+            }
+        }
+        int staying = size;
+
+        // Then put the page in
+        for (int i = 0; i < added; i++) {
+            insertInTable(sorted[i]);
+        }
+        Arrays.sort(sorted, 0, added, OLDEST_FIRST);
+
+        // Drop the replaced messages from the order
+        if (replacedCount > 0) {
+            int kept = 0;
+            for (int i = 0; i < staying + replacedCount; i++) {
+                if (Arrays.binarySearch(replaced, 0, replacedCount, ids[i]) < 0) {
+                    times[kept] = times[i];
+                    ids[kept] = ids[i];
+                    kept++;
+                }
+            }
+        }
+
+        // Merge from the back, so that the arrays can be merged in place
+        if (size > times.length) {
+            int capacity = Math.max(size, times.length * 2);
+            times = Arrays.copyOf(times, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+        }
+        int a = staying - 1;
+        int b = added - 1;
+        for (int out = size - 1; b >= 0; out--) {
+            if (a >= 0 && compareKeys(times[a], ids[a],
+                    sorted[b].getTimestamp(), sorted[b].getId()) > 0) {
+                times[out] = times[a];
+                ids[out] = ids[a];
+                a--;
+            } else {
+                times[out] = sorted[b].getTimestamp();
+                ids[out] = sorted[b].getId();
+                b--;
+            }
+        }
+    }
+
+    /**
+     * @return  The message removed, or {@code null} if there was none
+     */
+    public Message remove (int id) {
+        Message old = removeFromTable(id);
+        if (old != null) {
+            removeFromOrder(old.getTimestamp(), id);
+        }
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return  The newest message, or {@code null} if there are none
+     */
+    public Message newest() {
+        return (size == 0) ? null : get(ids[size - 1]);
+    }
+
+    /**
+     * @return  The newest {@code limit} messages, newest first
+     */
+    public List<Message> newest (int limit) {
+        return collect(0, size, limit);
+    }
+
+    /**
+     * @return  Every message, newest first
+     */
+    public List<Message> all() {
+        return collect(0, size, size);
+    }
+
+    /**
+     * @param fromTime  The earliest timestamp to include
+     * @param toTime    The first timestamp not to include
+     * @return  The messages with timestamps in the given range, newest first
+     */
+    public List<Message> between (int fromTime, int toTime) {
+        if (fromTime >= toTime) {
+            return new ArrayList<Message>(0);
+        }
+        int from = lowerBound(size, fromTime, Integer.MIN_VALUE);
+        int to = lowerBound(size, toTime, Integer.MIN_VALUE);
+        return collect(from, to, to - from);
+    }
+
+    /**
+     * @param matches   IDs in ascending order, of which the first {@code count}
+     *                  are looked at
+     * @param fromTime  The earliest timestamp to include
+     * @param toTime    The first timestamp not to include
+     * @return  The newest {@code limit} of the messages with those IDs and
+     *          with timestamps in the given range, newest first
+     */
+    List<Message> newestOf (int[] matches, int count, int fromTime, int toTime, int limit) {
+        if (fromTime >= toTime || limit <= 0) {
+            return new ArrayList<Message>(0);
+        }
+        int from = lowerBound(size, fromTime, Integer.MIN_VALUE);
+        int to = lowerBound(size, toTime, Integer.MIN_VALUE);
+
+        if (count < to - from) {
+            // Fewer IDs than messages in the range: sort just those in it
+            Message[] found = new Message[count];
+            int foundCount = 0;
+            for (int i = 0; i < count; i++) {
+                Message message = get(matches[i]);
+                if (message != null && message.getTimestamp() >= fromTime
+                        && message.getTimestamp() < toTime) {
+                    found[foundCount++] = message;
+                }
+            }
+            Arrays.sort(found, 0, foundCount, OLDEST_FIRST);
+            int resultCount = Math.min(limit, foundCount);
+            List<Message> result = new ArrayList<Message>(resultCount);
+            for (int i = foundCount - 1; i >= foundCount - resultCount; i--) {
+                result.add(found[i]);
+            }
+            return result;
+        }
+
+        // Otherwise read the range off newest first, until there are enough
+        List<Message> result = new ArrayList<Message>(Math.min(limit, count));
+        for (int i = to - 1; i >= from && result.size() < limit; i--) {
+            if (Arrays.binarySearch(matches, 0, count, ids[i]) >= 0) {
+                result.add(get(ids[i]));
+            }
+        }
+        return result;
+    }
+
+    private List<Message> collect (int from, int to, int limit) {
+        int count = Math.min(limit, to - from);
+        List<Message> result = new ArrayList<Message>(count);
+        for (int i = to - 1; i >= to - count; i--) {
+            result.add(get(ids[i]));
+        }
+        return result;
+    }
+
+
+    /* The hash table */
+
+    private static int tableSizeFor (int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {   // Keep the table at most half full
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private int slotFor (int id) {
+        return slotFor(id, mask);
+    }
+
+    /**
+     * @return  The slot an ID would go in if nothing else were in the way
+     */
+    static int slotFor (int id, int mask) {
+        int h = id * 0x9e3779b9;   // Spreads sequential IDs around the table
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void insertInTable (Message message) {
+        if ((size + 1) * 2 > keys.length) {
+            resizeTable(keys.length * 2);
+        }
+        int id = message.getId();
+        int slot = slotFor(id);
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = message;
+        size++;
+    }
+
+    private void resizeTable (int capacity) {
+        int[] oldKeys = keys;
+        Message[] oldValues = values;
+        keys = new int[capacity];
+        values = new Message[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotFor(oldKeys[i]);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private Message removeFromTable (int id) {
+        int slot = slotFor(id);
+        while (values[slot] != null && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        Message old = values[slot];
+        if (old == null) {
+            return null;
+        }
+
+        // Shift back any later entry of the run that could live in the hole
+        int hole = slot;
+        for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = slotFor(keys[next]);
+            boolean between = (hole <= next) ? (hole < home && home <= next)
+                                             : (hole < home || home <= next);
+            if (!between) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+
+    /* The time order. These run after the table has been updated, so they
+       are told how many IDs are in order. */
+
+    private static int compareKeys (int timeA, int idA, int timeB, int idB) {
+        if (timeA != timeB) {
+            return (timeA < timeB) ? -1 : 1;
+        }
+        return (idA < idB) ? -1 : (idA == idB ? 0 : 1);
+    }
+
+    /**
+     * @return  The first of the first {@code count} positions whose key is not
+     *          less than the given one
+     */
+    private int lowerBound (int count, int time, int id) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKeys(times[mid], ids[mid], time, id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insertInOrder (int time, int id) {
+        int count = size - 1;
+        if (count == times.length) {
+            times = Arrays.copyOf(times, times.length * 2);
+            ids = Arrays.copyOf(ids, times.length);
+        }
+
+        int position = count;
+        if (count > 0 && compareKeys(times[count - 1], ids[count - 1], time, id) > 0) {
+            position = lowerBound(count, time, id);
+            System.arraycopy(times, position, times, position + 1, count - position);
+            System.arraycopy(ids, position, ids, position + 1, count - position);
+        }
+        times[position] = time;
+        ids[position] = id;
+    }
+
+    private void removeFromOrder (int time, int id) {
+        int count = size + 1;
+        int position = lowerBound(count, time, id);
+        System.arraycopy(times, position + 1, times, position, count - position - 1);
+        System.arraycopy(ids, position + 1, ids, position, count - position - 1);
+    }
+}
@@ -0,0 +1,398 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.Tag;
+import org.danielge.doorbells.api.User;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local copy of the user's messages and tags, kept in a single append-only
+ * file so that they are available at startup without going to the server.
+ * <p>
+ * The file is a {@link RecordLog}. Every change appends one record; a deleted
+ * message or tag appends a tombstone. Senders are stored once in a table of
+ * users and referred to by number, so a message costs its contents plus 21
+ * bytes. On {@link #open(File)} the file is memory-mapped
+ * and replayed into memory, and a torn record at the end (from a crash
+ * mid-write) is cut off.
+ * <p>
+ * Once more than half of the records in the file are overwritten or deleted
+ * (and there are at least {@link #MIN_GARBAGE_RECORDS} of them), the next
+ * write compacts the file by rewriting only the live records.
+ * <p>
+ * Reads are served from memory. All methods are thread-safe.
+ */
+public class MessageStore implements Closeable {
+    public static final int MIN_GARBAGE_RECORDS = 256;
+
+    private static final int MAGIC = 0x44424d53;    // "DBMS"
+    private static final int VERSION = 1;
+
+    private static final byte USER = 1,
+                              MESSAGE = 2,
+                              DELETE_MESSAGE = 3,
+                              TAG = 4,
+                              DELETE_TAG = 5;
+
+    private static final int NO_USER = -1;
+
+    private final File file;
+    private final RecordLog log;
+    private final DataOutputStream record;     // The log's record being built
+
+    private final MessageIndex messages = new MessageIndex();
+    private SearchIndex search;     // Built on the first search
+    private final Map<String, Tag> tags = new LinkedHashMap<String, Tag>();
+    private final List<User> users = new ArrayList<User>();
+    private final Map<String, Integer> userNumbers = new HashMap<String, Integer>();
+
+    private MessageStore (File file) {
+        this.file = file;
+        this.log = new RecordLog(file, MAGIC, VERSION, "a message store");
+        this.record = log.record();
+    }
+
+    /**
+     * Opens the store kept in the given file, creating it if it doesn't exist.
+     *
+     * @throws IOException  If the file can't be read or written, or isn't a store
+     */
+    public static MessageStore open (File file) throws IOException {
+        MessageStore store = new MessageStore(file);
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        log.open(new RecordLog.Replayer() {
+            @Override
+            public void replay (byte type, ByteBuffer payload) throws IOException {
+                MessageStore.this.replay(type, payload);
+            }
+        });
+    }
+
+    private void replay (byte type, ByteBuffer in) throws IOException {
+        switch (type) {
+            case USER: {
+                User user = new User(readString(in));
+                userNumbers.put(user.getName(), users.size());
+                users.add(user);
+                break;
+            }
+            case MESSAGE: {
+                int id = in.getInt();
+                int timestamp = in.getInt();
+                User sender = user(in.getInt());
+                putInMemory(new Message(id, sender, readString(in), timestamp));
+                break;
+            }
+            case DELETE_MESSAGE:
+                removeFromMemory(in.getInt());
+                break;
+            case TAG: {
+                String id = readString(in);
+                String location = readString(in);
+                tags.put(id, new Tag(id, location, user(in.getInt())));
+                break;
+            }
+            case DELETE_TAG:
+                tags.remove(readString(in));
+                break;
+            default:
+                throw new IOException("unknown record type " + type + " in " + file);
+        }
+    }
+
+    private User user (int number) {
+        return (number == NO_USER) ? null : users.get(number);
+    }
+
+
+    /* Messages */
+
+    public synchronized Message getMessage (int id) {
+        return messages.get(id);
+    }
+
+    /**
+     * @return  Every stored message, newest first
+     */
+    public synchronized List<Message> getMessages() {
+        return messages.all();
+    }
+
+    /**
+     * @return  The newest {@code limit} stored messages, newest first
+     */
+    public synchronized List<Message> getMessages (int limit) {
+        return messages.newest(limit);
+    }
+
+    public synchronized int getMessageCount() {
+        return messages.size();
+    }
+
+    /**
+     * Adds messages to the store, replacing any stored message with the same ID.
+     */
+    public synchronized void putMessages (Message... newMessages) throws IOException {
+        for (Message message : newMessages) {
+            int sender = writeUser(message.getSender());
+
+            record.writeInt(message.getId());
+            record.writeInt(message.getTimestamp());
+            record.writeInt(sender);
+            writeString(record, message.getContents());
+            append(MESSAGE);
+        }
+        messages.merge(newMessages);
+        if (search != null) {
+            search.addMessages(newMessages);
+        }
+        flush();
+    }
+
+    /**
+     * @return  {@code true} if the message was in the store
+     */
+    public synchronized boolean removeMessage (int id) throws IOException {
+        if (!messages.contains(id)) {
+            return false;
+        }
+
+        record.writeInt(id);
+        append(DELETE_MESSAGE);
+        removeFromMemory(id);
+        flush();
+        return true;
+    }
+
+    private void putInMemory (Message message) {
+        messages.put(message);
+    }
+
+    private void removeFromMemory (int id) {
+        messages.remove(id);
+        if (search != null) {
+            search.removeMessage(id);
+        }
+    }
+
+
+    /* Tags */
+
+    public synchronized Tag getTag (String id) {
+        return tags.get(id);
+    }
+
+    public synchronized List<Tag> getTags() {
+        return new ArrayList<Tag>(tags.values());
+    }
+
+    /**
+     * Adds tags to the store, replacing any stored tag with the same ID.
+     */
+    public synchronized void putTags (Tag... newTags) throws IOException {
+        for (Tag tag : newTags) {
+            int user = writeUser(tag.getUser());
+
+            writeString(record, tag.getId());
+            writeString(record, tag.getLocation());
+            record.writeInt(user);
+            append(TAG);
+
+            tags.put(tag.getId(), tag);
+        }
+        if (search != null) {
+            search.addTags(newTags);
+        }
+        flush();
+    }
+
+    /**
+     * Replaces every stored tag with the given ones, e.g. after a full
+     * {@code getTags()} from the server.
+     */
+    public synchronized void replaceTags (Tag... newTags) throws IOException {
+        for (String id : new ArrayList<String>(tags.keySet())) {
+            removeTag(id);
+        }
+        putTags(newTags);
+    }
+
+    /**
+     * @return  {@code true} if the tag was in the store
+     */
+    public synchronized boolean removeTag (String id) throws IOException {
+        if (!tags.containsKey(id)) {
+            return false;
+        }
+
+        writeString(record, id);
+        append(DELETE_TAG);
+        tags.remove(id);
+        if (search != null) {
+            search.removeTag(id);
+        }
+        flush();
+        return true;
+    }
+
+
+    /* Search */
+
+    /**
+     * Finds stored messages by the words in their contents or sender's name;
+     * see {@link SearchIndex}. The index is built on the first search, and
+     * kept up to date from then on.
+     *
+     * @param fromTime  The earliest timestamp to include
+     * @param toTime    The first timestamp not to include
+     * @return  The newest {@code limit} matching messages, newest first
+     */
+    public synchronized List<Message> search (String query, int fromTime, int toTime,
+                                              int limit) {
+        return searchIndex().searchMessages(query, fromTime, toTime, limit);
+    }
+
+    public synchronized List<Message> search (String query) {
+        return searchIndex().searchMessages(query);
+    }
+
+    /**
+     * @return  The stored tags whose locations match the query
+     */
+    public synchronized List<Tag> searchTags (String query) {
+        return searchIndex().searchTags(query);
+    }
+
+    private SearchIndex searchIndex() {
+        if (search == null) {
+            List<Message> all = messages.all();
+            search = new SearchIndex();
+            search.addMessages(all.toArray(new Message[all.size()]));
+            search.addTags(tags.values().toArray(new Tag[tags.size()]));
+        }
+        return search;
+    }
+
+
+    /* Writing */
+
+    /**
+     * Returns the number that a user is stored under, adding the user to the
+     * file if it hasn't been seen before.
+     */
+    private int writeUser (User user) throws IOException {
+        return writeUser(user, users, userNumbers);
+    }
+
+    /**
+     * Same, but numbering users in the given table instead of the store's own.
+     */
+    private int writeUser (User user, List<User> users, Map<String, Integer> userNumbers)
+            throws IOException {
+        if (user == null) {
+            return NO_USER;
+        }
+
+        Integer number = userNumbers.get(user.getName());
+        if (number != null) {
+            return number;
+        }
+
+        writeString(record, user.getName());
+        append(USER);
+
+        number = users.size();
+        users.add(user);
+        userNumbers.put(user.getName(), number);
+        return number;
+    }
+
+    private void append (byte type) throws IOException {
+        log.append(type);
+    }
+
+    private void flush() throws IOException {
+        log.write(false);
+
+        int live = users.size() + messages.size() + tags.size();
+        int garbage = log.getRecordCount() - live;
+        if (garbage >= MIN_GARBAGE_RECORDS && garbage > live) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with only the records that are still live. This happens
+     * on its own as records pile up, so calling it is never necessary.
+     */
+    public synchronized void compact() throws IOException {
+        // The new user table is built on the side, and only replaces the old
+        // one once the new file has replaced the old file. Until then, a
+        // failure leaves the store as it was, still appending to the old file.
+        final List<User> liveUsers = new ArrayList<User>();
+        final Map<String, Integer> liveNumbers = new HashMap<String, Integer>();
+        log.rewrite(new RecordLog.Rewriter() {
+            @Override
+            public void appendAll() throws IOException {
+                // Only users that are still referred to survive
+                for (Tag tag : tags.values()) {
+                    int user = writeUser(tag.getUser(), liveUsers, liveNumbers);
+                    writeString(record, tag.getId());
+                    writeString(record, tag.getLocation());
+                    record.writeInt(user);
+                    append(TAG);
+                }
+                // Oldest first, so that replaying the file rebuilds the same order
+                List<Message> timeline = messages.all();
+                for (int i = timeline.size() - 1; i >= 0; i--) {
+                    Message message = timeline.get(i);
+                    int sender = writeUser(message.getSender(), liveUsers, liveNumbers);
+                    record.writeInt(message.getId());
+                    record.writeInt(message.getTimestamp());
+                    record.writeInt(sender);
+                    writeString(record, message.getContents());
+                    append(MESSAGE);
+                }
+            }
+        });
+
+        users.clear();
+        users.addAll(liveUsers);
+        userNumbers.clear();
+        userNumbers.putAll(liveNumbers);
+    }
+
+    /**
+     * Forces everything written so far out to the disk.
+     */
+    public synchronized void sync() throws IOException {
+        log.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private static void writeString (DataOutputStream out, String s) throws IOException {
+        RecordLog.writeString(out, s);
+    }
+
+    private static String readString (ByteBuffer in) {
+        return RecordLog.readString(in);
+    }
+}
@@ -0,0 +1,191 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.api.DoorbellsApiException;
+import org.danielge.doorbells.api.DoorbellsClient;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.MessageQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings new messages into a {@link MessageStore} as push notifications about
+ * them arrive. Pushes tend to come in bursts (someone leaning on the
+ * doorbell), so rather than going to the server for each one, a push starts a
+ * short window during which any further pushes are collected; at the end of
+ * it, only the messages that aren't already stored are fetched, one by one.
+ * A big burst, or a push that didn't say which message it was about, is
+ * fetched as pages of the messages newer than the newest one stored, paging
+ * back until it is reached, however many came in while the app was away.
+ * <p>
+ * All methods are thread-safe. Fetches happen on a background thread, one
+ * window at a time.
+ */
+public class MessageSync {
+    public static final long DEFAULT_WINDOW_MILLIS = 2000;
+    // Past this many messages, one page is cheaper than a request per message
+    static final int MAX_SINGLE_FETCHES = 4;
+    static final int PAGE_SIZE = 50;
+
+    private static final ScheduledExecutorService FETCHER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "doorbells-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Told about the outcome of each window, on the fetching thread.
+     */
+    public interface Listener {
+        /**
+         * @param added The new messages, which are already in the store; may be
+         *              empty if the pushes were about messages already stored
+         */
+        void onSynced (List<Message> added);
+
+        /**
+         * The messages of this window will be fetched again with the next push.
+         */
+        void onSyncFailed (Exception e);
+    }
+
+    private final DoorbellsClient client;
+    private final MessageStore store;
+    private final long windowMillis;
+    private final Listener listener;
+
+    // Guarded by this
+    private final Set<Integer> pending = new LinkedHashSet<Integer>();
+    private boolean fetchNewest;
+    private boolean scheduled;
+
+    public MessageSync (DoorbellsClient client, MessageStore store, Listener listener) {
+        this(client, store, DEFAULT_WINDOW_MILLIS, listener);
+    }
+
+    /**
+     * @param windowMillis  How long to wait for more pushes after the first one
+     * @param listener  Told about each window, or {@code null}
+     */
+    public MessageSync (DoorbellsClient client, MessageStore store,
+                        long windowMillis, Listener listener) {
+        this.client = client;
+        this.store = store;
+        this.windowMillis = windowMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Notes a push about the given message, and fetches it when the current
+     * window closes.
+     */
+    public synchronized void onPush (int messageId) {
+        pending.add(messageId);
+        schedule();
+    }
+
+    /**
+     * Notes a push that didn't say which message it was about. The newest
+     * messages are fetched when the current window closes.
+     */
+    public synchronized void onPush() {
+        fetchNewest = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            FETCHER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        List<Integer> ids;
+        boolean newest;
+        synchronized (this) {
+            ids = new ArrayList<Integer>(pending);
+            newest = fetchNewest;
+            pending.clear();
+            fetchNewest = false;
+            scheduled = false;
+        }
+
+        try {
+            List<Message> added = fetch(ids, newest);
+            if (listener != null) {
+                listener.onSynced(added);
+            }
+        } catch (Exception e) {     // IOException, or DoorbellsApiException
+            synchronized (this) {
+                pending.addAll(ids);
+                fetchNewest |= newest;
+            }
+            if (listener != null) {
+                listener.onSyncFailed(e);
+            }
+        }
+    }
+
+    private List<Message> fetch (List<Integer> ids, boolean newest)
+            throws IOException, DoorbellsApiException {
+        List<Integer> missing = new ArrayList<Integer>(ids.size());
+        for (int id : ids) {
+            if (store.getMessage(id) == null) {
+                missing.add(id);
+            }
+        }
+
+        List<Message> added = new ArrayList<Message>();
+        if (newest || missing.size() > MAX_SINGLE_FETCHES) {
+            List<Message> stored = store.getMessages(1);
+            MessageQuery query = MessageQuery.latest(PAGE_SIZE);
+            if (!stored.isEmpty()) {
+                query = query.afterId(stored.get(0).getId());
+            }
+            Message[] page = client.getMessages(query);
+            addUnstored(page, added);
+            // Pages are newest first; with nothing stored, one page will do
+            while (!stored.isEmpty() && page.length >= PAGE_SIZE) {
+                page = client.getMessages(query.beforeId(page[page.length - 1].getId()));
+                addUnstored(page, added);
+            }
+        } else {
+            for (int id : missing) {
+                Message message = client.getMessage(id);
+                if (message != null) {  // Deleted since the push was sent
+                    added.add(message);
+                }
+            }
+        }
+
+        if (!added.isEmpty()) {
+            store.putMessages(added.toArray(new Message[added.size()]));
+        }
+        return added;
+    }
+
+    private void addUnstored (Message[] page, List<Message> added) {
+        for (Message message : page) {
+            if (store.getMessage(message.getId()) == null) {
+                added.add(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.api.DoorbellsApiException;
+import org.danielge.doorbells.api.DoorbellsClient;
+import org.danielge.doorbells.api.InternalServerException;
+import org.danielge.doorbells.api.Tag;
+import org.danielge.doorbells.api.UnauthorizedException;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes the user makes (sending a message, deleting one, and creating,
+ * moving or destroying tags) that are waiting to go to the server, so that
+ * they aren't lost when there is no connection, and don't keep the UI waiting
+ * when there is.
+ * <p>
+ * Each change is written to a log file (a {@link RecordLog}) before anything
+ * else happens, and is applied to the {@link MessageStore} straight away, as if the server had
+ * already accepted it; a new tag gets a provisional ID (starting with
+ * {@link #LOCAL_ID_PREFIX}) until the server gives it a real one. Changes that
+ * cancel each other out are collapsed before they go anywhere: moving a tag
+ * twice sends only the second move, moving a tag and then destroying it sends
+ * only the destroy, and creating a tag and then destroying it sends nothing.
+ * <p>
+ * The changes are sent in the order they were made, {@link #BATCH_SIZE} at a
+ * time, by one background thread. A batch's completions are logged together.
+ * When the server can't be reached, sending stops, and is tried again after a
+ * growing delay, or as soon as {@link #flushSoon()} is called (when the
+ * network comes back, say). A change the server rejects outright is dropped,
+ * and the listener told. Sends and tag creations carry an idempotency key, so
+ * one whose response was lost is not carried out twice, as long as the
+ * server honours the key; one that doesn't would deliver the message, or
+ * create the tag, again.
+ * <p>
+ * All methods are thread-safe, and none of them wait on the network.
+ */
+public class Outbox implements Closeable {
+    public static final String LOCAL_ID_PREFIX = "local:";
+    public static final int BATCH_SIZE = 16;
+    static final long MIN_RETRY_MILLIS = 5 * 1000;
+    static final long MAX_RETRY_MILLIS = 10 * 60 * 1000;
+
+    private static final int MAGIC = 0x44424f42;    // "DBOB"
+    private static final int VERSION = 1;
+
+    private static final byte OPERATION = 1,
+                              DONE = 2,
+                              REMAP = 3;
+
+    private static final ScheduledExecutorService SENDER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "doorbells-outbox");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public enum Kind {
+        SEND_MESSAGE, DELETE_MESSAGE, CREATE_TAG, UPDATE_TAG, DESTROY_TAG
+    }
+
+    /**
+     * One change waiting to go to the server.
+     */
+    public static final class Operation {
+        private final long sequence;
+        private final Kind kind;
+        private final String target;    // The tag's or message's ID
+        private final String value;     // The new location, or the message sent
+        private final String key;       // A send's or create's idempotency key
+
+        Operation (long sequence, Kind kind, String target, String value, String key) {
+            this.sequence = sequence;
+            this.kind = kind;
+            this.target = target;
+            this.value = value;
+            this.key = key;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return  The ID of the tag (or, to delete a message, the message)
+         *          that the change is to
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return  The tag's new location, or the message being sent; or
+         *          {@code null} if there is none
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return  The key the server can tell a repeat of the change by, or
+         *          {@code null} if it doesn't have one
+         */
+        public String getIdempotencyKey() {
+            return key;
+        }
+
+        Operation withTarget (String newTarget) {
+            return new Operation(sequence, kind, newTarget, value, key);
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + target;
+        }
+    }
+
+    /**
+     * Told about sending, on the sending thread.
+     */
+    public interface Listener {
+        /**
+         * @param remaining How many changes are still waiting, because the
+         *                  server couldn't be reached
+         */
+        void onFlushed (int remaining);
+
+        /**
+         * The server turned the change down for good, so it has been dropped.
+         * Whatever it did to the store is left as is, until the next sync.
+         */
+        void onRejected (Operation operation, Exception e);
+    }
+
+    private final File file;
+    private final RecordLog log;
+    private final DataOutputStream record;     // The log's record being built
+    private final MessageStore store;
+    private final DoorbellsClient client;
+    private Listener listener;
+
+    // Waiting operations by sequence number, in order
+    private final Map<Long, Operation> pending = new LinkedHashMap<Long, Operation>();
+    // Provisional tag IDs the server has since replaced, to the real ones
+    private final Map<String, String> remapped = new HashMap<String, String>();
+    private long nextSequence = 1;
+    private long sending = -1;      // The operation on its way to the server
+
+    private boolean scheduled;
+    private ScheduledFuture<?> retry;
+    private long retryMillis = MIN_RETRY_MILLIS;
+
+    private Outbox (File file, MessageStore store, DoorbellsClient client) {
+        this.file = file;
+        this.log = new RecordLog(file, MAGIC, VERSION, "an outbox");
+        this.record = log.record();
+        this.store = store;
+        this.client = client;
+    }
+
+    /**
+     * Opens the outbox kept in the given file, creating it if it doesn't exist,
+     * and reapplies whatever is still waiting in it to the store. Nothing is
+     * sent until {@link #flushSoon()}.
+     *
+     * @throws IOException  If the file can't be read or written, or isn't an outbox
+     */
+    public static Outbox open (File file, MessageStore store, DoorbellsClient client)
+            throws IOException {
+        Outbox outbox = new Outbox(file, store, client);
+        outbox.load();
+        for (Operation operation : outbox.getPending()) {
+            outbox.applyLocally(operation);
+        }
+        return outbox;
+    }
+
+    /**
+     * @param listener  Told about sending, or {@code null}
+     */
+    public synchronized void setListener (Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return  Every change still waiting, oldest first
+     */
+    public synchronized List<Operation> getPending() {
+        return new ArrayList<Operation>(pending.values());
+    }
+
+
+    /* Changes */
+
+    /**
+     * Sends a message to the owner of a tag. The store doesn't change, since it
+     * only holds messages sent to this user.
+     */
+    public void sendMessage (String tagId, String message) throws IOException {
+        enqueue(Kind.SEND_MESSAGE, tagId, message, UUID.randomUUID().toString());
+    }
+
+    public void deleteMessage (int id) throws IOException {
+        enqueue(Kind.DELETE_MESSAGE, String.valueOf(id), null, null);
+    }
+
+    /**
+     * @return  The new tag, as it is stored until the server gives it an ID
+     */
+    public Tag createTag (String location) throws IOException {
+        String id = LOCAL_ID_PREFIX + UUID.randomUUID().toString();
+        enqueue(Kind.CREATE_TAG, id, location, UUID.randomUUID().toString());
+        return store.getTag(id);
+    }
+
+    public void updateTag (String tagId, String newLocation) throws IOException {
+        enqueue(Kind.UPDATE_TAG, tagId, newLocation, null);
+    }
+
+    public void destroyTag (String tagId) throws IOException {
+        enqueue(Kind.DESTROY_TAG, tagId, null, null);
+    }
+
+    private void enqueue (Kind kind, String target, String value, String key)
+            throws IOException {
+        // The store is changed under the same lock as the log, so that the
+        // sender (or another enqueue) never sees one without the other
+        synchronized (this) {
+            // The caller may still have a tag by the ID it had before it was sent
+            if (remapped.containsKey(target)) {
+                target = remapped.get(target);
+            }
+            Operation operation = collapse(
+                    new Operation(nextSequence++, kind, target, value, key));
+            if (operation != null) {
+                writeOperation(operation);
+                pending.put(operation.sequence, operation);
+            }
+            writeBatch(true);
+
+            if (operation != null) {
+                applyLocally(operation);
+            } else if (kind == Kind.DESTROY_TAG) {
+                store.removeTag(target);    // Created and destroyed before it was ever sent
+            }
+
+            // If the server couldn't be reached last time, wait for the retry
+            if (retry == null) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Drops whatever waiting operations the new one makes redundant. Any that
+     * are dropped are logged as done (in the batch, which the caller writes).
+     *
+     * @return  The operation to add, which may have absorbed an earlier one;
+     *          or {@code null} if there is nothing left to do
+     */
+    private Operation collapse (Operation operation) throws IOException {
+        if (operation.kind == Kind.SEND_MESSAGE) {
+            return operation;
+        }
+
+        Operation created = null;
+        for (Iterator<Operation> i = pending.values().iterator(); i.hasNext(); ) {
+            Operation earlier = i.next();
+            if (earlier.sequence == sending || !earlier.target.equals(operation.target)) {
+                continue;
+            }
+            switch (operation.kind) {
+                case DELETE_MESSAGE:
+                    if (earlier.kind == Kind.DELETE_MESSAGE) {
+                        return null;
+                    }
+                    break;
+                case UPDATE_TAG:
+                case DESTROY_TAG:
+                    if (earlier.kind == Kind.CREATE_TAG) {
+                        created = earlier;
+                        if (operation.kind == Kind.UPDATE_TAG) {
+                            continue;   // Kept, in its place ahead of any sends to it
+                        }
+                    } else if (earlier.kind == Kind.UPDATE_TAG) {
+                        // Moved again, or destroyed: the earlier move doesn't matter
+                    } else {
+                        continue;
+                    }
+                    i.remove();
+                    writeDone(earlier.sequence);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (created == null) {
+            return operation;
+        }
+        // The tag hasn't reached the server yet, so create it as it is now, if
+        // at all. The create keeps its sequence, and so its place in the queue.
+        // (A tag already on its way is created and then destroyed as asked.)
+        return (operation.kind == Kind.DESTROY_TAG) ? null
+                : new Operation(created.sequence, Kind.CREATE_TAG, created.target,
+                                operation.value, created.key);
+    }
+
+    /**
+     * Makes the change to the store, as the server will once it gets it.
+     */
+    private void applyLocally (Operation operation) throws IOException {
+        switch (operation.kind) {
+            case DELETE_MESSAGE:
+                store.removeMessage(Integer.parseInt(operation.target));
+                break;
+            case CREATE_TAG:
+            case UPDATE_TAG: {
+                Tag old = store.getTag(operation.target);
+                store.putTags(new Tag(operation.target, operation.value,
+                        (old == null) ? null : old.getUser()));
+                break;
+            }
+            case DESTROY_TAG:
+                store.removeTag(operation.target);
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /* Sending */
+
+    /**
+     * Starts sending whatever is waiting, in the background, unless that has
+     * already started. Call this when the network comes back.
+     */
+    public synchronized void flushSoon() {
+        if (retry != null) {
+            retry.cancel(false);
+            retry = null;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled && !pending.isEmpty()) {
+            scheduled = true;
+            SENDER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private void flush() {
+        synchronized (this) {
+            scheduled = false;
+        }
+
+        boolean reachable = true;
+        while (reachable) {
+            List<Operation> next;
+            synchronized (this) {
+                next = new ArrayList<Operation>(Math.min(pending.size(), BATCH_SIZE));
+                for (Operation operation : pending.values()) {
+                    if (next.size() == BATCH_SIZE) {
+                        break;
+                    }
+                    next.add(operation);
+                }
+            }
+            if (next.isEmpty()) {
+                break;
+            }
+            reachable = sendBatch(next);
+        }
+
+        int remaining;
+        Listener toTell;
+        synchronized (this) {
+            remaining = pending.size();
+            toTell = listener;
+            if (!reachable) {
+                retry = SENDER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushSoon();
+                    }
+                }, retryMillis, TimeUnit.MILLISECONDS);
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            } else {
+                retryMillis = MIN_RETRY_MILLIS;
+            }
+        }
+        if (toTell != null) {
+            toTell.onFlushed(remaining);
+        }
+    }
+
+    /**
+     * Sends a batch of operations in order, stopping at the first that can't
+     * get through, and logs the ones that are done.
+     *
+     * @return  {@code false} if the server couldn't be reached
+     */
+    private boolean sendBatch (List<Operation> operations) {
+        boolean reachable = true;
+        List<Operation> rejected = new ArrayList<Operation>();
+        List<Exception> reasons = new ArrayList<Exception>();
+
+        for (Operation operation : operations) {
+            synchronized (this) {
+                operation = pending.get(operation.sequence);
+                if (operation == null) {
+                    continue;   // Collapsed into a later one since the batch was taken
+                }
+                sending = operation.sequence;
+            }
+
+            Exception rejection = null;
+            try {
+                rejection = send(operation);
+            } catch (IOException e) {
+                reachable = false;
+            } catch (InternalServerException e) {
+                reachable = false;
+            } catch (UnauthorizedException e) {
+                reachable = false;  // Keep it until the user is signed back in
+            } catch (DoorbellsApiException e) {
+                rejection = e;
+            }
+
+            synchronized (this) {
+                sending = -1;
+                if (!reachable) {
+                    break;
+                }
+                pending.remove(operation.sequence);
+                try {
+                    writeDone(operation.sequence);
+                } catch (IOException e) {
+                    // Only built in memory; can't fail
+                }
+            }
+            if (rejection != null) {
+                rejected.add(operation);
+                reasons.add(rejection);
+            }
+        }
+
+        Listener toTell;
+        synchronized (this) {
+            try {
+                writeBatch(true);
+                if (pending.isEmpty()) {
+                    truncate();
+                }
+            } catch (IOException e) {
+                // Those sent will be sent again after a restart; the keys and
+                // the server's 404s make that harmless
+            }
+            toTell = listener;
+        }
+        if (toTell != null) {
+            for (int i = 0; i < rejected.size(); i++) {
+                toTell.onRejected(rejected.get(i), reasons.get(i));
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * @return  Why the server rejected the operation, or {@code null} if it
+     *          carried it out
+     */
+    private Exception send (Operation operation) throws IOException, DoorbellsApiException {
+        switch (operation.kind) {
+            case SEND_MESSAGE:
+                if (!client.sendMessage(operation.target, operation.value, operation.key)) {
+                    return new DoorbellsApiException("no such tag: " + operation.target);
+                }
+                return null;
+            case DELETE_MESSAGE:
+                client.deleteMessage(Integer.parseInt(operation.target));
+                return null;    // If it was already gone, so much the better
+            case CREATE_TAG: {
+                Tag created = client.createTag(operation.value, operation.key);
+                if (created == null) {
+                    return new DoorbellsApiException("tag was not created");
+                }
+                replaceLocalTag(operation.target, created);
+                return null;
+            }
+            case UPDATE_TAG:
+                if (!client.updateTag(operation.target, operation.value)) {
+                    return new DoorbellsApiException("no such tag: " + operation.target);
+                }
+                return null;
+            case DESTROY_TAG:
+                client.destroyTag(operation.target);
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Swaps a tag's provisional ID for the one the server gave it, in the
+     * store and in anything still waiting to be sent. A tag destroyed while it
+     * was being created isn't put back; the destroy goes out next.
+     */
+    private synchronized void replaceLocalTag (String localId, Tag created)
+            throws IOException {
+        remap(localId, created.getId());
+        writeString(record, localId);
+        writeString(record, created.getId());
+        append(REMAP);
+        writeBatch(false);
+
+        // Under the lock, so that a destroy enqueued meanwhile either shows up
+        // here or removes the tag from the store after it is put
+        Tag local = store.getTag(localId);
+        store.removeTag(localId);
+        if (local == null || isDestroyPending(created.getId())) {
+            return;
+        }
+        // Keep any move made while the tag was being created
+        store.putTags(new Tag(created.getId(), local.getLocation(), created.getUser()));
+    }
+
+    private boolean isDestroyPending (String tagId) {
+        for (Operation operation : pending.values()) {
+            if (operation.kind == Kind.DESTROY_TAG && operation.target.equals(tagId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notes that the tag created with a provisional ID now has a real one. The
+     * creation itself is done, even if that didn't make it into the log.
+     */
+    private void remap (String from, String to) {
+        remapped.put(from, to);
+        for (Iterator<Map.Entry<Long, Operation>> i = pending.entrySet().iterator();
+             i.hasNext(); ) {
+            Map.Entry<Long, Operation> entry = i.next();
+            Operation operation = entry.getValue();
+            if (!operation.target.equals(from)) {
+                continue;
+            }
+            if (operation.kind == Kind.CREATE_TAG) {
+                i.remove();
+            } else {
+                entry.setValue(operation.withTarget(to));
+            }
+        }
+    }
+
+
+    /* The log */
+
+    private void load() throws IOException {
+        log.open(new RecordLog.Replayer() {
+            @Override
+            public void replay (byte type, ByteBuffer payload) throws IOException {
+                Outbox.this.replay(type, payload);
+            }
+        });
+    }
+
+    private void replay (byte type, ByteBuffer in) throws IOException {
+        switch (type) {
+            case OPERATION: {
+                long sequence = in.getLong();
+                int kind = in.get();
+                if (kind < 0 || kind >= Kind.values().length) {
+                    throw new IOException("unknown operation " + kind + " in " + file);
+                }
+                String target = readString(in);
+                String value = readString(in);
+                String key = readString(in);
+                pending.put(sequence,
+                        new Operation(sequence, Kind.values()[kind], target, value, key));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                break;
+            }
+            case DONE:
+                pending.remove(in.getLong());
+                break;
+            case REMAP:
+                remap(readString(in), readString(in));
+                break;
+            default:
+                throw new IOException("unknown record type " + type + " in " + file);
+        }
+    }
+
+    private void writeOperation (Operation operation) throws IOException {
+        record.writeLong(operation.sequence);
+        record.writeByte(operation.kind.ordinal());
+        writeString(record, operation.target);
+        writeString(record, operation.value);
+        writeString(record, operation.key);
+        append(OPERATION);
+    }
+
+    private void writeDone (long sequence) throws IOException {
+        record.writeLong(sequence);
+        append(DONE);
+    }
+
+    private void append (byte type) throws IOException {
+        log.append(type);
+    }
+
+    /**
+     * Writes out the records queued so far.
+     *
+     * @param durable   {@code true} to wait until they are on the disk
+     */
+    private void writeBatch (boolean durable) throws IOException {
+        log.write(durable);
+    }
+
+    /**
+     * Empties the log, once nothing is waiting.
+     */
+    private void truncate() throws IOException {
+        log.truncate();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (retry != null) {
+            retry.cancel(false);
+            retry = null;
+        }
+        log.close();
+    }
+
+    private static void writeString (DataOutputStream out, String s) throws IOException {
+        RecordLog.writeString(out, s);
+    }
+
+    private static String readString (ByteBuffer in) {
+        return RecordLog.readString(in);
+    }
+}
@@ -0,0 +1,303 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only file of records, as kept by {@link MessageStore} and
+ * {@link Outbox}: a header (a magic number and a version), then records of a
+ * type byte, the length of the payload, and the payload.
+ * <p>
+ * Records are built in {@link #record()}, queued with {@link #append(byte)},
+ * and written out together with {@link #write(boolean)}. On {@link #open} the
+ * file is memory-mapped and every record handed to the owner to replay; a
+ * torn record at the end (from a crash mid-write) is cut off.
+ * <p>
+ * Not thread-safe; the owner locks around it.
+ */
+final class RecordLog implements Closeable {
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    /**
+     * Rebuilds the owner's state from the records in the file, oldest first.
+     */
+    interface Replayer {
+        /**
+         * @throws IOException  If the record can't be made sense of; the file
+         *                      fails to open
+         */
+        void replay (byte type, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * Appends the records that make up a rewritten file.
+     */
+    interface Rewriter {
+        void appendAll() throws IOException;
+    }
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private final String kind;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    private int records;            // Records in the file, live or not
+    private int pendingRecords;     // Records appended but not yet written
+
+    // Reused to build every record, and then the records to be written together
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(1024);
+    private final DataOutputStream pendingData = new DataOutputStream(pending);
+
+    /**
+     * @param kind  What the file holds, for errors, e.g. "an outbox"
+     */
+    RecordLog (File file, int magic, int version, String kind) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+        this.kind = kind;
+    }
+
+    /**
+     * Opens the file, creating it if it doesn't exist, and replays every whole
+     * record in it. A record that runs past its end, or that the replayer
+     * finds refers to something never written, is taken to be torn, and cut
+     * off along with everything after it. The file is left closed if this
+     * throws.
+     *
+     * @throws IOException  If the file can't be read or written, isn't of this
+     *                      kind, or has a record the replayer rejects
+     */
+    void open (Replayer replayer) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        boolean opened = false;
+        try {
+            replayAll(replayer);
+            opened = true;
+        } finally {
+            if (!opened) {
+                close();
+            }
+        }
+    }
+
+    private void replayAll (Replayer replayer) throws IOException {
+        if (channel.size() == 0) {
+            writeHeader(channel);
+            return;
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != magic) {
+            throw new IOException(file + " is not " + kind);
+        }
+        if (buffer.getInt() != version) {
+            throw new IOException(file + " was written by a different version");
+        }
+
+        int end = buffer.position();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            byte type = buffer.get();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            try {
+                replayer.replay(type, payload);
+            } catch (BufferUnderflowException e) {
+                break;
+            } catch (IndexOutOfBoundsException e) {
+                // Refers to a record that was never written: this one is garbage
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            end = buffer.position();
+            records++;
+        }
+
+        // Drop whatever was left half-written at the end of the log
+        if (end < channel.size()) {
+            channel.truncate(end);
+        }
+        channel.position(end);
+    }
+
+    /**
+     * @return  Records in the file, live or not, counting those appended but
+     *          not yet written
+     */
+    int getRecordCount() {
+        return records + pendingRecords;
+    }
+
+    /**
+     * @return  Where to build the payload of the next record
+     */
+    DataOutputStream record() {
+        return record;
+    }
+
+    /**
+     * Queues the record built up in {@link #record()} to be written.
+     */
+    void append (byte type) throws IOException {
+        byte[] payload = recordBytes.toByteArray();
+        recordBytes.reset();
+
+        pending.write(type);
+        pendingData.writeInt(payload.length);
+        pending.write(payload);
+        pendingRecords++;
+    }
+
+    /**
+     * Writes out the records queued so far.
+     *
+     * @param durable   {@code true} to wait until they are on the disk
+     */
+    void write (boolean durable) throws IOException {
+        if (pending.size() > 0) {
+            channel.write(ByteBuffer.wrap(pending.toByteArray()));
+            pending.reset();
+            records += pendingRecords;
+            pendingRecords = 0;
+            if (durable) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Forces everything written so far out to the disk.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Empties the log, leaving just the header.
+     */
+    void truncate() throws IOException {
+        if (records > 0) {
+            channel.truncate(HEADER_SIZE);
+            channel.position(HEADER_SIZE);
+            records = 0;
+        }
+    }
+
+    /**
+     * Replaces the file with one of just the records the rewriter appends,
+     * written to the side and renamed over it. If that fails, the log is left
+     * as it was, still appending to the old file, with anything that was
+     * queued still queued.
+     */
+    void rewrite (Rewriter rewriter) throws IOException {
+        byte[] unwritten = pending.toByteArray();
+        int unwrittenRecords = pendingRecords;
+        pending.reset();
+        recordBytes.reset();
+        pendingRecords = 0;
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = null;
+        boolean renamed = false;
+        try {
+            rewriter.appendAll();
+
+            out = new RandomAccessFile(temp, "rw");
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            writeHeader(outChannel);
+            outChannel.write(ByteBuffer.wrap(pending.toByteArray()));
+            outChannel.force(true);
+            out.close();
+            out = null;
+
+            // Renaming over a file that is still open is fine on Android, and
+            // leaves the old file to fall back on if the rename fails
+            if (!temp.renameTo(file)) {
+                throw new IOException("could not replace " + file + " with " + temp);
+            }
+            renamed = true;
+            records = pendingRecords;
+        } finally {
+            pending.reset();
+            recordBytes.reset();
+            pendingRecords = 0;
+            if (out != null) {
+                out.close();
+            }
+            if (!renamed) {
+                pending.write(unwritten);
+                pendingRecords = unwrittenRecords;
+                temp.delete();
+            }
+        }
+
+        channel.close();
+        raf.close();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.position(channel.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            channel = null;
+        }
+    }
+
+    private void writeHeader (FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(magic).putInt(version).flip();
+        channel.write(header);
+    }
+
+    static void writeString (DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(Utils.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString (ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), length,
+                    Utils.UTF_8);
+            in.position(in.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, Utils.UTF_8);
+    }
+}
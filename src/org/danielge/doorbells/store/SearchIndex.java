@@ -0,0 +1,300 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.Tag;
+import org.danielge.doorbells.api.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A full-text index of messages (their contents and sender's name) and tags
+ * (their location), for searching without going to the server.
+ * <p>
+ * Text is split into words at anything that isn't a letter or digit, and
+ * lowercased. Every word of a query must match, and matches any word that
+ * starts with it, so {@code "back do"} finds "Back door, please". For
+ * messages, each word maps to the sorted IDs of the messages containing it;
+ * the words are kept sorted so that a prefix is a range of them. The matches
+ * are then read off the time order of a {@link MessageIndex}, newest first,
+ * until there are as many as asked for. Tags are few, so they are just
+ * scanned.
+ * <p>
+ * The index is updated as messages and tags are added and removed. All
+ * methods are thread-safe.
+ */
+public class SearchIndex {
+    private final TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+    private final MessageIndex messages = new MessageIndex();
+    private final Map<String, Tag> tags = new LinkedHashMap<String, Tag>();
+    private final Map<String, String[]> tagWords = new LinkedHashMap<String, String[]>();
+
+    /**
+     * The IDs of the messages containing a word, in ascending order.
+     */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add (int id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                int position = Arrays.binarySearch(ids, 0, size, id);
+                if (position >= 0) {
+                    return;
+                }
+                insertAt(-position - 1, id);
+            } else {
+                insertAt(size, id);
+            }
+        }
+
+        private void insertAt (int position, int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            ids[position] = id;
+            size++;
+        }
+
+        void remove (int id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) {
+                System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+                size--;
+            }
+        }
+    }
+
+    public SearchIndex() {
+    }
+
+    /**
+     * Indexes messages, replacing any already indexed with the same IDs.
+     */
+    public synchronized void addMessages (Message... newMessages) {
+        for (Message message : newMessages) {
+            removeMessage(message.getId());
+            messages.put(message);
+            for (String word : wordsOf(message)) {
+                Postings postings = words.get(word);
+                if (postings == null) {
+                    postings = new Postings();
+                    words.put(word, postings);
+                }
+                postings.add(message.getId());
+            }
+        }
+    }
+
+    public synchronized void removeMessage (int id) {
+        Message old = messages.remove(id);
+        if (old == null) {
+            return;
+        }
+        for (String word : wordsOf(old)) {
+            Postings postings = words.get(word);
+            if (postings != null) {
+                postings.remove(id);
+                if (postings.size == 0) {
+                    words.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes tags, replacing any already indexed with the same IDs.
+     */
+    public synchronized void addTags (Tag... newTags) {
+        for (Tag tag : newTags) {
+            tags.put(tag.getId(), tag);
+            List<String> location = tokenize(tag.getLocation());
+            tagWords.put(tag.getId(), location.toArray(new String[location.size()]));
+        }
+    }
+
+    public synchronized void removeTag (String id) {
+        tags.remove(id);
+        tagWords.remove(id);
+    }
+
+    public synchronized void clear() {
+        words.clear();
+        messages.clear();
+        tags.clear();
+        tagWords.clear();
+    }
+
+    /**
+     * @return  How many distinct words are indexed, for tests
+     */
+    synchronized int wordCount() {
+        return words.size();
+    }
+
+    /**
+     * @return  Every message matching the query, newest first
+     */
+    public List<Message> searchMessages (String query) {
+        return searchMessages(query, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param fromTime  The earliest timestamp to include
+     * @param toTime    The first timestamp not to include
+     * @param limit     The most messages to return
+     * @return  The newest messages matching the query within the time range,
+     *          newest first; none if the query has no words
+     */
+    public synchronized List<Message> searchMessages (String query, int fromTime, int toTime,
+                                                     int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return new ArrayList<Message>(0);
+        }
+
+        int[] matches = null;
+        int matchCount = 0;
+        for (String term : terms) {
+            int[] ids = idsWithPrefix(term);
+            if (matches == null) {
+                matches = ids;
+                matchCount = ids.length;
+            } else {
+                matchCount = intersect(matches, matchCount, ids);
+            }
+            if (matchCount == 0) {
+                return new ArrayList<Message>(0);
+            }
+        }
+
+        return messages.newestOf(matches, matchCount, fromTime, toTime, limit);
+    }
+
+    /**
+     * @return  Every tag whose location matches the query
+     */
+    public synchronized List<Tag> searchTags (String query) {
+        List<String> terms = tokenize(query);
+        List<Tag> result = new ArrayList<Tag>();
+        if (terms.isEmpty()) {
+            return result;
+        }
+
+        for (Map.Entry<String, String[]> entry : tagWords.entrySet()) {
+            if (matchesAll(entry.getValue(), terms)) {
+                result.add(tags.get(entry.getKey()));
+            }
+        }
+        return result;
+    }
+
+    private static boolean matchesAll (String[] words, List<String> terms) {
+        for (String term : terms) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(term)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return  The IDs of the messages with a word starting with the prefix,
+     *          in ascending order
+     */
+    private int[] idsWithPrefix (String prefix) {
+        SortedMap<String, Postings> matching = words.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (matching.size() == 1) {
+            Postings only = matching.values().iterator().next();
+            return Arrays.copyOf(only.ids, only.size);
+        }
+
+        int total = 0;
+        for (Postings postings : matching.values()) {
+            total += postings.size;
+        }
+        int[] ids = new int[total];
+        int size = 0;
+        for (Postings postings : matching.values()) {
+            System.arraycopy(postings.ids, 0, ids, size, postings.size);
+            size += postings.size;
+        }
+
+        // One message can have several words with the prefix
+        Arrays.sort(ids);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || ids[unique - 1] != ids[i]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        return (unique == size) ? ids : Arrays.copyOf(ids, unique);
+    }
+
+    /**
+     * Keeps, in the first {@code count} of {@code a}, only the IDs also in
+     * {@code b}. Both are sorted.
+     *
+     * @return  How many IDs are left
+     */
+    private static int intersect (int[] a, int count, int[] b) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < b.length; i++) {
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+            if (j < b.length && b[j] == a[i]) {
+                a[kept++] = a[i];
+            }
+        }
+        return kept;
+    }
+
+    private static List<String> wordsOf (Message message) {
+        List<String> result = tokenize(message.getContents());
+        User sender = message.getSender();
+        if (sender != null) {
+            result.addAll(tokenize(sender.getName()));
+        }
+        return result;
+    }
+
+    /**
+     * Splits text into lowercased words, at anything that isn't a letter or
+     * digit.
+     */
+    static List<String> tokenize (String text) {
+        List<String> result = new ArrayList<String>();
+        if (text == null) {
+            return result;
+        }
+
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean inWord = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+        return result;
+    }
+}
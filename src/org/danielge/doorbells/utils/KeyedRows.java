@@ -0,0 +1,73 @@
+package org.danielge.doorbells.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rows of a list, each made once from an item and kept for as long as the
+ * item stays in the list unchanged. {@link #set(List)} matches a new list up
+ * with the current rows by item ID, so that only items that are new or have
+ * changed get new rows.
+ * <p>
+ * Not thread-safe; meant to be used from the UI thread.
+ *
+ * @param <T>   The items
+ * @param <R>   What is displayed for each item
+ */
+public abstract class KeyedRows<T, R> {
+    private List<R> rows = new ArrayList<R>();
+    private Map<Integer, R> rowsById = new HashMap<Integer, R>();
+
+    protected abstract int idOf (T item);
+
+    /**
+     * Makes the row for an item that is new, or has changed.
+     */
+    protected abstract R rowFor (T item);
+
+    /**
+     * @return  {@code true} if the row already displays the item as it is
+     */
+    protected abstract boolean shows (R row, T item);
+
+    /**
+     * Replaces the list.
+     *
+     * @param items The new list, in the order the rows are displayed
+     * @return  {@code true} if any row is different from before, at any
+     *          position
+     */
+    public boolean set (List<T> items) {
+        int count = items.size();
+        List<R> newRows = new ArrayList<R>(count);
+        Map<Integer, R> newRowsById = new HashMap<Integer, R>(count * 2);
+        boolean changed = (count != rows.size());
+
+        for (int i = 0; i < count; i++) {
+            T item = items.get(i);
+            R row = rowsById.get(idOf(item));
+            if (row == null || !shows(row, item)) {
+                row = rowFor(item);
+            }
+            newRows.add(row);
+            newRowsById.put(idOf(item), row);
+            if (!changed && rows.get(i) != row) {
+                changed = true;
+            }
+        }
+
+        rows = newRows;
+        rowsById = newRowsById;
+        return changed;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public R get (int position) {
+        return rows.get(position);
+    }
+}
@@ -1,12 +1,17 @@
 package org.danielge.doorbells.utils;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Scanner;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 
 public class Utils {
     public static final String MIME_JSON = "application/json";
     public static final String MIME_FORM = "application/x-www-form-urlencoded";
 
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public static final String SENDER_ID = "343180867553";
 
     /**
@@ -14,10 +19,10 @@ public class Utils {
      *
      * @param in    The InputStream
      * @return  A String representation of the contents of the stream, or
-     *          null if the stream is empty.
+     *          an empty String if the stream is empty.
      */
-    public static String inputStreamToString (InputStream in) {
-        return inputStreamToString(in, "UTF-8");
+    public static String inputStreamToString (InputStream in) throws IOException {
+        return inputStreamToString(in, UTF_8);
     }
 
     /**
@@ -27,10 +32,22 @@ public class Utils {
      * @param in    The InputStream
      * @param encoding  The encoding to use
      * @return  A String representation of the contents of the stream, or
-     *          null if the stream is empty.
+     *          an empty String if the stream is empty.
      */
-    public static String inputStreamToString (InputStream in, String encoding) {
-        Scanner s = new Scanner(in, encoding).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
+    public static String inputStreamToString (InputStream in, String encoding)
+            throws IOException {
+        return inputStreamToString(in, Charset.forName(encoding));
+    }
+
+    public static String inputStreamToString (InputStream in, Charset charset)
+            throws IOException {
+        Reader reader = new InputStreamReader(in, charset);
+        StringBuilder out = new StringBuilder();
+        char[] buffer = new char[2048];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            out.append(buffer, 0, read);
+        }
+        return out.toString();
     }
 }
@@ -0,0 +1,50 @@
+package org.danielge.doorbells;
+
+/**
+ * The base of the plain-JVM tests, in the style of JUnit 3 (which the Android
+ * test framework is built on, but which isn't available off of the device):
+ * every public no-argument method whose name starts with {@code test} is run
+ * by {@link TestRunner} on a fresh instance, between {@link #setUp()} and
+ * {@link #tearDown()}.
+ */
+public abstract class TestCase {
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+    protected static void fail (String message) {
+        throw new AssertionError(message);
+    }
+
+    protected static void assertTrue (String message, boolean condition) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    protected static void assertFalse (String message, boolean condition) {
+        assertTrue(message, !condition);
+    }
+
+    protected static void assertEquals (String message, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    protected static void assertEquals (String message, long expected, long actual) {
+        if (expected != actual) {
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    protected static void assertNull (String message, Object actual) {
+        assertEquals(message, null, actual);
+    }
+
+    protected static void assertNotNull (String message, Object actual) {
+        assertTrue(message, actual != null);
+    }
+}
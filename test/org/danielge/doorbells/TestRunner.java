@@ -0,0 +1,106 @@
+package org.danielge.doorbells;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs every {@link TestCase} found under a source directory (every
+ * {@code *Test.java}), and exits with a non-zero status if any test fails.
+ * <pre>
+ *     java -cp ... org.danielge.doorbells.TestRunner test
+ * </pre>
+ */
+public final class TestRunner {
+    private TestRunner() {}
+
+    public static void main (String[] args) throws Exception {
+        List<String> classes = new ArrayList<String>();
+        for (String dir : args) {
+            File root = new File(dir);
+            findTests(root, root, classes);
+        }
+        Collections.sort(classes);
+
+        int run = 0;
+        List<String> failures = new ArrayList<String>();
+        for (String name : classes) {
+            Class<?> type = Class.forName(name);
+            if (!TestCase.class.isAssignableFrom(type)
+                    || Modifier.isAbstract(type.getModifiers())) {
+                continue;
+            }
+            for (Method method : type.getMethods()) {
+                if (!method.getName().startsWith("test")
+                        || method.getParameterTypes().length != 0) {
+                    continue;
+                }
+                run++;
+                String test = type.getSimpleName() + "." + method.getName();
+                long start = System.nanoTime();
+                Throwable failure = runTest(type, method);
+                long millis = (System.nanoTime() - start) / 1000000;
+                if (failure == null) {
+                    System.out.println("PASS " + test + " (" + millis + "ms)");
+                } else {
+                    System.out.println("FAIL " + test + " (" + millis + "ms)");
+                    failure.printStackTrace(System.out);
+                    failures.add(test);
+                }
+            }
+        }
+
+        System.out.println(run + " tests, " + failures.size() + " failed"
+                + (failures.isEmpty() ? "" : ": " + failures));
+        // The stub servers' and the client's daemon threads don't matter here
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static Throwable runTest (Class<?> type, Method method) {
+        TestCase instance;
+        try {
+            instance = (TestCase) type.newInstance();
+        } catch (Exception e) {
+            return e;
+        }
+
+        Throwable failure = null;
+        try {
+            instance.setUp();
+            method.invoke(instance);
+        } catch (InvocationTargetException e) {
+            failure = e.getCause();
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            try {
+                instance.tearDown();
+            } catch (Throwable e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        return failure;
+    }
+
+    private static void findTests (File root, File dir, List<String> classes) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findTests(root, file, classes);
+            } else if (file.getName().endsWith("Test.java")) {
+                String path = file.getPath().substring(root.getPath().length() + 1);
+                classes.add(path.substring(0, path.length() - ".java".length())
+                        .replace(File.separatorChar, '.'));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.danielge.doorbells.api;
+
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BatchTest extends TestCase {
+    public void testEveryItemGetsItsOwnOutcomeInOrder() throws Exception {
+        BatchResult<Integer> result = Batch.run(Arrays.asList(3, 1, 2, 4), 3,
+                new Batch.Item<Integer>() {
+                    @Override
+                    public boolean run (Integer key) throws IOException {
+                        switch (key) {
+                            case 1: return true;
+                            case 2: return false;
+                            case 3: throw new IOException("no route");
+                            default: throw new IllegalStateException("bad reply");
+                        }
+                    }
+                });
+
+        assertEquals("order", Arrays.asList(3, 1, 2, 4), new ArrayList<Integer>(result.keys()));
+        assertEquals("1", BatchResult.Outcome.SUCCEEDED, result.getOutcome(1));
+        assertEquals("2", BatchResult.Outcome.NOT_FOUND, result.getOutcome(2));
+        assertEquals("3", BatchResult.Outcome.FAILED, result.getOutcome(3));
+        assertEquals("3 failure", "no route", result.getFailure(3).getMessage());
+        assertEquals("4", BatchResult.Outcome.FAILED, result.getOutcome(4));
+        assertFalse("all succeeded", result.allSucceeded());
+    }
+
+    public void testDuplicatesAreOnlyRunOnce() throws Exception {
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        BatchResult<Integer> result = Batch.run(Arrays.asList(1, 2, 1, 3, 2), 4,
+                new Batch.Item<Integer>() {
+                    @Override
+                    public boolean run (Integer key) {
+                        ran.add(key);
+                        return true;
+                    }
+                });
+
+        Collections.sort(ran);
+        assertEquals("ran", Arrays.asList(1, 2, 3), ran);
+        assertEquals("keys", Arrays.asList(1, 2, 3), new ArrayList<Integer>(result.keys()));
+        assertTrue("all succeeded", result.allSucceeded());
+    }
+
+    public void testInterruptWaitsForTheOtherThreadsAndFailsTheRest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<BatchResult<Integer>> result =
+                new AtomicReference<BatchResult<Integer>>();
+        final AtomicReference<Boolean> stillInterrupted = new AtomicReference<Boolean>();
+
+        Thread caller = new Thread("batch-caller") {
+            @Override
+            public void run() {
+                final Thread self = this;
+                result.set(Batch.run(Arrays.asList(1, 2, 3, 4, 5, 6), 2,
+                        new Batch.Item<Integer>() {
+                            @Override
+                            public boolean run (Integer key) throws IOException {
+                                started.countDown();
+                                try {
+                                    if (Thread.currentThread() == self) {
+                                        Thread.sleep(10000);
+                                    } else {
+                                        release.await();
+                                    }
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    throw new InterruptedIOException();
+                                }
+                                return true;
+                            }
+                        }));
+                stillInterrupted.set(isInterrupted());
+            }
+        };
+        caller.start();
+        assertTrue("both started", started.await(5, TimeUnit.SECONDS));
+
+        caller.interrupt();
+        caller.join(200);
+        assertTrue("returned while another thread was still running", caller.isAlive());
+
+        release.countDown();
+        caller.join(5000);
+        assertFalse("returned", caller.isAlive());
+        assertEquals("interrupt kept", Boolean.TRUE, stillInterrupted.get());
+
+        BatchResult<Integer> outcomes = result.get();
+        assertEquals("succeeded", 1, outcomes.keysWith(BatchResult.Outcome.SUCCEEDED).size());
+        assertEquals("failed", 5, outcomes.keysWith(BatchResult.Outcome.FAILED).size());
+        for (Integer key : outcomes.keysWith(BatchResult.Outcome.FAILED)) {
+            assertTrue("failure of " + key,
+                    outcomes.getFailure(key) instanceof InterruptedIOException);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClientMetricsRecorderTest extends TestCase {
+    public void testHistogramPercentilesFallInPowerOfTwoBuckets() {
+        ClientMetricsRecorder.Histogram histogram = new ClientMetricsRecorder.Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100 * 1000);       // 100us, under 128us
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5 * 1000 * 1000);  // 5ms, under 8192us
+        }
+
+        assertEquals("count", 100, histogram.count());
+        assertEquals("p50", 128, histogram.percentileMicros(0.5));
+        assertEquals("p90", 128, histogram.percentileMicros(0.9));
+        assertEquals("p95", 8192, histogram.percentileMicros(0.95));
+        assertEquals("mean", 590, histogram.meanMicros());
+    }
+
+    public void testEmptyHistogramReadsZero() {
+        ClientMetricsRecorder.Histogram histogram = new ClientMetricsRecorder.Histogram();
+        assertEquals("p99", 0, histogram.percentileMicros(0.99));
+        assertEquals("mean", 0, histogram.meanMicros());
+    }
+
+    public void testSnapshotGroupsByEndpoint() {
+        ClientMetricsRecorder recorder = new ClientMetricsRecorder();
+        recorder.onResponse("/tags", 200, 1000, 2000, 3000, 4000, 0, 512);
+        recorder.onResponse("/tags", 304, 1000, 2000, 0, 0, 0, 0);
+        recorder.onResponse("/tags", 42, 1000, 2000, 0, 0, 0, 0);
+        recorder.onCacheHit("/tags");
+        recorder.onRetry("/messages/{id}");
+        recorder.onFailure("/messages/{id}", new IOException("reset"));
+
+        String snapshot = recorder.snapshot();
+        assertTrue(snapshot, snapshot.contains(
+                "/tags: 3 responses, 1 cache hits, 0 retries, sent 0B, received 512B"));
+        assertTrue(snapshot, snapshot.contains("status {200=1, 304=1, other=1}"));
+        assertTrue(snapshot, snapshot.contains(
+                "/messages/{id}: 0 responses, 0 cache hits, 1 retries"));
+        assertTrue(snapshot, snapshot.contains("failures {IOException=1}"));
+        assertTrue("endpoints in order", snapshot.indexOf("/messages") < snapshot.indexOf("/tags"));
+
+        recorder.reset();
+        assertEquals("after reset", "", recorder.snapshot());
+    }
+
+    public void testClientReportsEveryRequest() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        StubServer server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                if (requests.incrementAndGet() == 1) {
+                    StubServer.sendJson(exchange, 500, "{\"status\":500,\"msg\":\"busy\"}");
+                } else {
+                    StubServer.sendJson(exchange, 200, "{\"status\":200,\"id\":7,"
+                            + "\"contents\":\"hi\",\"timestamp\":7}");
+                }
+            }
+        });
+        try {
+            ClientMetricsRecorder recorder = new ClientMetricsRecorder();
+            DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                    .withMetrics(recorder)
+                    .withRetryPolicy(RetryPolicy.exponential(2, 1, 1));
+            client.getMessage(7);
+
+            String snapshot = recorder.snapshot();
+            assertTrue(snapshot, snapshot.contains("/messages/{id}: 2 responses, 0 cache hits, 1 retries"));
+            assertTrue(snapshot, snapshot.contains("status {200=1, 500=1}"));
+            assertTrue(snapshot, snapshot.contains("failures {InternalServerException=1}"));
+        } finally {
+            server.stop();
+        }
+    }
+}
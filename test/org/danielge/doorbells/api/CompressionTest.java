@@ -0,0 +1,127 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressionTest extends TestCase {
+    private StubServer server;
+    private volatile String acceptEncoding;
+    private volatile String contentEncoding;
+    private volatile String receivedBody;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(contentEncoding)) {
+                    in = new GZIPInputStream(in);
+                }
+                receivedBody = new String(readAll(in), Utils.UTF_8);
+
+                StringBuilder json = new StringBuilder("{\"status\":200,\"messages\":[");
+                for (int id = 1; id <= 100; id++) {
+                    json.append((id == 1) ? "" : ",").append(StubServer.messageJson(id, "ding dong"));
+                }
+                byte[] body = json.append("]}").toString().getBytes(Utils.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream out = new GZIPOutputStream(compressed);
+                    out.write(body);
+                    out.close();
+                    body = compressed.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testGzippedResponsesAreDecodedOnTheFly() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        Message[] messages = client.getMessages();
+
+        assertEquals("Accept-Encoding", "gzip", acceptEncoding);
+        assertEquals("messages", 100, messages.length);
+        assertEquals("contents", "ding dong", messages[99].getContents());
+
+        TransferStats stats = client.getTransferStats();
+        assertTrue("fewer bytes on the wire (" + stats + ")",
+                stats.getWireBytesReceived() * 4 < stats.getBodyBytesReceived());
+    }
+
+    public void testRequestBodiesAreOnlyCompressedWhenAskedTo() throws Exception {
+        String message = longMessage();
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        client.sendMessage("t", message);
+        assertNull("Content-Encoding", contentEncoding);
+        assertEquals("contents", message, contentsOf(receivedBody));
+    }
+
+    public void testLargeRequestBodiesAreCompressed() throws Exception {
+        String message = longMessage();
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withRequestCompression(1024);
+        client.sendMessage("t", message);
+
+        assertEquals("Content-Encoding", "gzip", contentEncoding);
+        assertEquals("contents", message, contentsOf(receivedBody));
+        TransferStats stats = client.getTransferStats();
+        assertTrue("fewer bytes on the wire (" + stats + ")",
+                stats.getWireBytesSent() * 4 < stats.getBodyBytesSent());
+    }
+
+    public void testSmallRequestBodiesAreLeftAlone() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withRequestCompression(1024);
+        client.sendMessage("t", "hello");
+        assertNull("Content-Encoding", contentEncoding);
+        assertEquals("contents", "hello", contentsOf(receivedBody));
+    }
+
+    private static String longMessage() {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            message.append("Someone is at the front door. ");
+        }
+        return message.toString();
+    }
+
+    private static String contentsOf (String form) throws IOException {
+        for (String pair : form.split("&")) {
+            if (pair.startsWith("contents=")) {
+                return URLDecoder.decode(pair.substring("contents=".length()), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readAll (InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,132 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrencyLimiterTest extends TestCase {
+    private StubServer server;
+    private ExecutorService callers;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger mostInFlight = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        callers = Executors.newCachedThreadPool();
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                int now = inFlight.incrementAndGet();
+                synchronized (mostInFlight) {
+                    mostInFlight.set(Math.max(mostInFlight.get(), now));
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                StubServer.sendJson(exchange, 200, StubServer.messageJson(1, "hi"));
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        callers.shutdownNow();
+        server.stop();
+    }
+
+    public void testRequestsToAHostAreLimited() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withMaxConcurrentRequests(3);
+
+        for (Future<Message> call : getMessages(client, 12)) {
+            assertNotNull("message", call.get());
+        }
+        assertEquals("most in flight", 3, mostInFlight.get());
+        assertEquals("left waiting", 0,
+                client.getConcurrencyLimiter().getQueueLength("127.0.0.1"));
+    }
+
+    public void testWaitingForASlotCountsAgainstTheDeadline() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withMaxConcurrentRequests(1)
+                .withRetryPolicy(RetryPolicy.NONE)
+                .withTimeouts(new Timeouts(1000, 1000, 150));
+
+        // Each takes 100ms, one at a time: the last of them can't make it in 150ms
+        int timedOut = 0;
+        long start = System.nanoTime();
+        for (Future<Message> call : getMessages(client, 4)) {
+            try {
+                call.get();
+            } catch (ExecutionException e) {
+                assertTrue("failed with " + e.getCause(),
+                        e.getCause() instanceof DeadlineExceededException);
+                timedOut++;
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("some timed out waiting for a slot", timedOut >= 2);
+        assertTrue("none waited past the deadline (took " + millis + "ms)", millis < 400);
+    }
+
+    public void testInterruptedWaitIsNotATimeout() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+        Semaphore held = limiter.acquire("host", 0);
+        final Object[] outcome = new Object[2];
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire("host", 0);
+                    outcome[0] = "a slot";
+                } catch (IOException e) {
+                    outcome[0] = e;
+                }
+                outcome[1] = Thread.currentThread().isInterrupted();
+            }
+        });
+        waiter.start();
+        while (limiter.getQueueLength("host") == 0) {
+            Thread.sleep(5);
+        }
+        waiter.interrupt();
+        waiter.join(2000);
+
+        assertTrue("failed with " + outcome[0], outcome[0] instanceof InterruptedIOException
+                && !(outcome[0] instanceof DeadlineExceededException));
+        assertEquals("still interrupted", true, outcome[1]);
+        assertFalse("retryable", RetryPolicy.isRetryable((Exception) outcome[0]));
+        ConcurrencyLimiter.release(held);
+    }
+
+    private List<Future<Message>> getMessages (final DoorbellsClient client, int count) {
+        List<Future<Message>> calls = new ArrayList<Future<Message>>();
+        for (int i = 0; i < count; i++) {
+            // Distinct IDs, so that the calls aren't coalesced
+            final int id = i + 1;
+            calls.add(callers.submit(new Callable<Message>() {
+                @Override
+                public Message call() throws Exception {
+                    return client.getMessage(id);
+                }
+            }));
+        }
+        return calls;
+    }
+}
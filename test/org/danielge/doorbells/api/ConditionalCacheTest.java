@@ -0,0 +1,130 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConditionalCacheTest extends TestCase {
+    private static final String ETAG = "\"v1\"";
+
+    private StubServer server;
+    private final AtomicInteger bodies = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                bodies.incrementAndGet();
+                StubServer.sendJson(exchange, 200, "{\"status\":200,\"tags\":["
+                        + StubServer.tagJson("a", "front") + "]}");
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testNotModifiedServesTheCachedResponse() throws Exception {
+        ConditionalCache cache = new ConditionalCache();
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withCache(cache);
+
+        Tag[] first = client.getTags();
+        Tag[] second = client.getTags();
+        assertEquals("location", "front", second[0].getLocation());
+        assertTrue("each caller gets an array of its own", first != second);
+        assertEquals("bodies sent", 1, bodies.get());
+        assertEquals("requests", 2, server.getRequests().size());
+        assertEquals("hits", 1, cache.getHitCount());
+        assertEquals("misses", 1, cache.getMissCount());
+    }
+
+    public void testWithoutACacheEveryRequestGetsABody() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        client.getTags();
+        client.getTags();
+        assertEquals("bodies sent", 2, bodies.get());
+    }
+
+    public void testChangingTheCachedArrayDoesNotChangeTheCache() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withCache(new ConditionalCache());
+
+        client.getTags()[0] = null;
+        assertEquals("location", "front", client.getTags()[0].getLocation());
+    }
+
+    public void testAnotherUserGetsNothingCachedForTheFirst() throws Exception {
+        ConditionalCache cache = new ConditionalCache(8, null, "alice");
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withCache(cache);
+        client.getTags();
+        cache.setUser("alice");
+        assertEquals("entries kept for the same user", 1, cache.size());
+
+        cache.setUser("bob");
+        assertEquals("entries", 0, cache.size());
+        client.getTags();
+        assertEquals("bodies sent", 2, bodies.get());
+    }
+
+    public void testPersistedEntriesAreOnlyReadBackForTheSameUser() throws Exception {
+        File dir = File.createTempFile("cache-test", "");
+        dir.delete();
+        try {
+            DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+            client.withCache(new ConditionalCache(8, dir, "alice")).getTags();
+
+            // A restart, with the same user
+            ConditionalCache cache = new ConditionalCache(8, dir, "alice");
+            client.withCache(cache).getTags();
+            assertEquals("bodies sent", 1, bodies.get());
+            assertEquals("hits", 1, cache.getHitCount());
+
+            // And with another
+            cache = new ConditionalCache(8, dir, "bob");
+            client.withCache(cache).getTags();
+            assertEquals("bodies sent", 2, bodies.get());
+            assertEquals("hits", 0, cache.getHitCount());
+        } finally {
+            for (File child : dir.listFiles()) {
+                child.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testSigningOutClearsTheCache() throws Exception {
+        File dir = File.createTempFile("cache-test", "");
+        dir.delete();
+        try {
+            ConditionalCache cache = new ConditionalCache(8, dir, "alice");
+            DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                    .withCache(cache);
+            client.getTags();
+            client.invalidate();
+            assertEquals("entries", 0, cache.size());
+
+            // Nor is anything read back from disk
+            client.getTags();
+            assertEquals("hits", 0, cache.getHitCount());
+            assertEquals("misses", 2, cache.getMissCount());
+        } finally {
+            for (File child : dir.listFiles()) {
+                child.delete();
+            }
+            dir.delete();
+        }
+    }
+}
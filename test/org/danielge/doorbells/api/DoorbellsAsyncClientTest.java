@@ -0,0 +1,122 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DoorbellsAsyncClientTest extends TestCase {
+    private StubServer server;
+    private DoorbellsAsyncClient async;
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    private final CountDownLatch cutOff = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/tags")) {
+                    stall(exchange);
+                } else if (path.endsWith("/messages")) {
+                    // Pages of 10, down from 100
+                    String before = StubServer.param(exchange, "before_id");
+                    int newest = (before == null) ? 100 : Integer.parseInt(before) - 1;
+                    StringBuilder page = new StringBuilder("{\"status\":200,\"messages\":[");
+                    for (int id = newest; id > newest - 10 && id > 0; id--) {
+                        page.append((id == newest) ? "" : ",")
+                                .append(StubServer.messageJson(id, "m"));
+                    }
+                    StubServer.sendJson(exchange, 200, page.append("]}").toString());
+                } else if (path.endsWith("/messages/404")) {
+                    StubServer.sendJson(exchange, 500, "{\"status\":500,\"msg\":\"oops\"}");
+                } else {
+                    StubServer.sendJson(exchange, 200, StubServer.messageJson(1, "hi"));
+                }
+            }
+        });
+        async = new DoorbellsAsyncClient(
+                DoorbellsClient.initialize(server.transport(), "token")
+                        .withRetryPolicy(RetryPolicy.NONE), 1, 4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        async.shutdown();
+        server.stop();
+    }
+
+    // Trickles out whitespace until the client hangs up
+    private void stall (HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        stalled.countDown();
+        try {
+            for (int i = 0; i < 100; i++) {
+                out.write(' ');
+                out.flush();
+                Thread.sleep(50);
+            }
+        } catch (IOException e) {
+            cutOff.countDown();
+        } catch (InterruptedException e) {
+            // The server is stopping
+        }
+    }
+
+    public void testCallbackGetsTheResult() throws Exception {
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        final CountDownLatch called = new CountDownLatch(2);
+        DoorbellsAsyncClient.Callback<Message> callback = new DoorbellsAsyncClient.Callback<Message>() {
+            @Override
+            public void onSuccess (Message result) {
+                outcome.compareAndSet(null, result);
+                called.countDown();
+            }
+
+            @Override
+            public void onFailure (Exception e) {
+                outcome.set(e);
+                called.countDown();
+            }
+        };
+        Message message = async.getMessage(1, callback).get(5, TimeUnit.SECONDS);
+        assertEquals("contents", "hi", message.getContents());
+        async.getMessage(404, callback);
+        assertTrue("called back", called.await(5, TimeUnit.SECONDS));
+        assertTrue("failure reported: " + outcome.get(),
+                outcome.get() instanceof InternalServerException);
+    }
+
+    public void testCancellingCutsOffACallInFlight() throws Exception {
+        Future<Tag[]> tags = async.getTags();
+        assertTrue("request made", stalled.await(5, TimeUnit.SECONDS));
+
+        assertTrue("cancelled", tags.cancel(true));
+        assertTrue("connection cut off", cutOff.await(2, TimeUnit.SECONDS));
+        // The only thread is free again
+        assertNotNull("next call", async.getMessage(1).get(2, TimeUnit.SECONDS));
+    }
+
+    public void testShutdownCutsOffCallsInFlight() throws Exception {
+        async.getTags();
+        assertTrue("request made", stalled.await(5, TimeUnit.SECONDS));
+        async.shutdown();
+        assertTrue("connection cut off", cutOff.await(2, TimeUnit.SECONDS));
+    }
+
+    public void testMessageHistoryStopsAtTheLimit() throws Exception {
+        List<Message> messages = async.getMessageHistory(10, 25).get(5, TimeUnit.SECONDS);
+        assertEquals("messages", 25, messages.size());
+        assertEquals("newest", 100, messages.get(0).getId());
+        assertEquals("oldest", 76, messages.get(24).getId());
+        assertEquals("pages fetched", 3, server.getRequests().size());
+    }
+}
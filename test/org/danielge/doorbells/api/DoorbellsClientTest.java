@@ -0,0 +1,94 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DoorbellsClientTest extends TestCase {
+    private StubServer server;
+    private ExecutorService callers;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        callers = Executors.newCachedThreadPool();
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                StubServer.sendJson(exchange, 200, "{\"status\":200,\"tags\":["
+                        + StubServer.tagJson("a", "front") + "]}");
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        callers.shutdownNow();
+        server.stop();
+    }
+
+    public void testConcurrentIdenticalGetsAreCoalesced() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        Future<Tag[]> first = getTags(client);
+        Future<Tag[]> second = getTags(client);
+        assertTrue("both calls got the same decoded tag", first.get()[0] == second.get()[0]);
+        assertEquals("requests", 1, requests.get());
+    }
+
+    public void testDifferentGetsAreNotCoalesced() throws Exception {
+        final DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        Future<Tag[]> all = getTags(client);
+        Future<Message[]> page = callers.submit(new Callable<Message[]>() {
+            @Override
+            public Message[] call() throws Exception {
+                return client.getMessages(MessageQuery.latest(5));
+            }
+        });
+        all.get();
+        page.get();
+        assertEquals("requests", 2, requests.get());
+    }
+
+    public void testGetsWithATighterDeadlineAreNotCoalesced() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        DoorbellsClient hurried = client
+                .withTimeouts(new Timeouts(1000, 1000, 100))
+                .withRetryPolicy(RetryPolicy.NONE);
+
+        Future<Tag[]> slow = getTags(client);
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        try {
+            hurried.getTags();
+            fail("expected a DeadlineExceededException");
+        } catch (DeadlineExceededException e) {
+            // expected: it made a request of its own, with its own deadline
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("gave up by its own deadline (took " + millis + "ms)", millis < 250);
+        assertNotNull("the other call still succeeded", slow.get());
+        assertEquals("requests", 2, requests.get());
+    }
+
+    private Future<Tag[]> getTags (final DoorbellsClient client) {
+        return callers.submit(new Callable<Tag[]>() {
+            @Override
+            public Tag[] call() throws Exception {
+                return client.getTags();
+            }
+        });
+    }
+}
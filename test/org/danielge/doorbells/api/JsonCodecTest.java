@@ -0,0 +1,80 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class JsonCodecTest extends TestCase {
+    private static final String MESSAGES = "[" + StubServer.messageJson(2, "two") + ","
+            + StubServer.messageJson(1, "one") + "]";
+
+    public void testDecodesStraightOffOfAStream() throws Exception {
+        Message[] messages = JsonCodec.decode(
+                new ByteArrayInputStream(MESSAGES.getBytes(Utils.UTF_8)), Message[].class);
+        assertEquals("messages", 2, messages.length);
+        assertEquals("id", 2, messages[0].getId());
+        assertEquals("contents", "one", messages[1].getContents());
+        assertEquals("sender", "visitor", messages[1].getSender().getName());
+    }
+
+    public void testMalformedJsonIsAServerError() throws Exception {
+        try {
+            JsonCodec.decode("<html>Bad gateway</html>", Message.class);
+            fail("expected an InternalServerException");
+        } catch (InternalServerException e) {
+            // expected
+        }
+    }
+
+    public void testFailedReadIsAnIOException() throws Exception {
+        final byte[] start = "[{\"id\":1,".getBytes(Utils.UTF_8);
+        InputStream broken = new InputStream() {
+            private int read;
+
+            @Override
+            public int read() throws IOException {
+                if (read == start.length) {
+                    throw new IOException("connection reset");
+                }
+                return start[read++];
+            }
+        };
+        try {
+            JsonCodec.decode(broken, Message[].class);
+            fail("expected an IOException");
+        } catch (InternalServerException e) {
+            fail("a network failure was reported as a server error");
+        } catch (IOException e) {
+            assertEquals("message", "connection reset", e.getMessage());
+        }
+    }
+
+    public void testClientDecodesResponsesAndHandsBackTheConnection() throws Exception {
+        StubServer server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().endsWith("/tags")) {
+                    StubServer.sendJson(exchange, 200, "{\"status\":200,\"tags\":["
+                            + StubServer.tagJson("a", "front") + "]}");
+                } else {
+                    StubServer.sendJson(exchange, 200,
+                            "{\"status\":200,\"messages\":" + MESSAGES + "}");
+                }
+            }
+        });
+        try {
+            DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+            assertEquals("messages", 2, client.getMessages().length);
+            Tag[] tags = client.getTags();
+            assertEquals("location", "front", tags[0].getLocation());
+            assertEquals("owner", "owner", tags[0].getUser().getName());
+            assertEquals("connections", 1, server.getConnectionCount());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+public class JsonResponseTest extends TestCase {
+    private StubServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                StubServer.sendJson(exchange, 200, "{\"status\":200,\"tags\":[]}");
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testCharsetIsTakenFromTheContentType() {
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        assertEquals("none", Utils.UTF_8, JsonResponse.charsetOf(null));
+        assertEquals("no charset", Utils.UTF_8, JsonResponse.charsetOf("application/json"));
+        assertEquals("named", latin1,
+                JsonResponse.charsetOf("application/json; charset=ISO-8859-1"));
+        assertEquals("quoted, then more", latin1,
+                JsonResponse.charsetOf("application/json; Charset=\"iso-8859-1\"; q=1"));
+        assertEquals("unsupported", Utils.UTF_8,
+                JsonResponse.charsetOf("application/json; charset=x-no-such-charset"));
+        assertEquals("illegal", Utils.UTF_8,
+                JsonResponse.charsetOf("application/json; charset=not a name"));
+    }
+
+    public void testBodyIsDecodedInItsCharset() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                byte[] body = "{\"status\":200,\"id\":7,\"contents\":\"café\",\"timestamp\":7}"
+                        .getBytes("ISO-8859-1");
+                exchange.getResponseHeaders().set("Content-Type",
+                        "application/json; charset=ISO-8859-1");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        assertEquals("contents", "café", client().getMessage(7).getContents());
+    }
+
+    public void testErrorBodiesAreDecoded() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/messages/1")) {
+                    StubServer.sendJson(exchange, 404, "{\"status\":404,\"msg\":\"no such message\"}");
+                } else if (path.endsWith("/messages/2")) {
+                    StubServer.sendJson(exchange, 401, "{\"status\":401,\"msg\":\"bad token\"}");
+                } else {
+                    StubServer.sendJson(exchange, 400, "{\"status\":400,\"msg\":\"bad id\"}");
+                }
+            }
+        });
+        DoorbellsClient client = client();
+
+        assertNull("not found", client.getMessage(1));
+        try {
+            client.getMessage(2);
+            fail("expected an UnauthorizedException");
+        } catch (UnauthorizedException e) {
+            assertEquals("message", "bad token", e.getMessage());
+        }
+        try {
+            client.getMessage(3);
+            fail("expected a BadRequestException");
+        } catch (BadRequestException e) {
+            assertEquals("message", "bad id", e.getMessage());
+        }
+        // Each error body was read to the end, so the connection was kept
+        assertEquals("connections", 1, server.getConnectionCount());
+    }
+
+    public void testOversizedBodyIsCutOffAndNotRetried() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, 0);
+                writeHugeBody(exchange.getResponseBody());
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+
+        try {
+            client.getTags();
+            fail("expected a ResponseTooLargeException");
+        } catch (ResponseTooLargeException e) {
+            // expected
+        }
+        assertEquals("requests", 1, server.getRequests().size());
+    }
+
+    public void testCapAppliesAfterDecompression() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream out = new GZIPOutputStream(compressed);
+                writeHugeBody(out);
+                out.close();
+                byte[] body = compressed.toByteArray();
+
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+
+        try {
+            client().getTags();
+            fail("expected a ResponseTooLargeException");
+        } catch (ResponseTooLargeException e) {
+            // expected
+        }
+    }
+
+    private DoorbellsClient client() {
+        return DoorbellsClient.initialize(server.transport(), "token")
+                .withRetryPolicy(RetryPolicy.NONE);
+    }
+
+    /**
+     * Writes valid JSON a little over {@link JsonResponse#MAX_BODY_BYTES}
+     * long, so that only the cap can make it fail. Gives up quietly if the
+     * client hangs up part way.
+     */
+    private static void writeHugeBody (OutputStream out) {
+        byte[] spaces = new byte[64 * 1024];
+        Arrays.fill(spaces, (byte) ' ');
+        try {
+            out.write("{\"status\":200,\"tags\":[".getBytes(Utils.UTF_8));
+            for (int written = 0; written <= JsonResponse.MAX_BODY_BYTES; written += spaces.length) {
+                out.write(spaces);
+            }
+            out.write("]}".getBytes(Utils.UTF_8));
+        } catch (IOException e) {
+            // The client stopped reading at the cap
+        }
+    }
+}
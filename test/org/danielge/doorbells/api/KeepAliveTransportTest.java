@@ -0,0 +1,72 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+
+public class KeepAliveTransportTest extends TestCase {
+    private StubServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                StubServer.sendJson(exchange, 200, "{\"status\":200,\"messages\":["
+                        + StubServer.messageJson(1, "hi") + "]}");
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testSequentialRequestsShareOneConnection() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        for (int i = 0; i < 10; i++) {
+            assertEquals("messages", 1, client.getMessages().length);
+        }
+        assertEquals("requests", 10, server.getRequests().size());
+        assertEquals("connections", 1, server.getConnectionCount());
+    }
+
+    public void testErrorResponsesDoNotCostTheConnection() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                StubServer.sendJson(exchange, 404, "{\"status\":404,\"msg\":\"no such message\"}");
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        for (int i = 0; i < 5; i++) {
+            assertNull("missing message", client.getMessage(i));
+        }
+        assertEquals("connections", 1, server.getConnectionCount());
+    }
+
+    public void testPoolSettingsAreProcessWideAndOnlySetOnce() throws Exception {
+        server.transport();
+        String size = System.getProperty("http.maxConnections");
+        assertNotNull("pool size set by a transport", size);
+
+        assertFalse("configured again", KeepAliveTransport.configurePool(1, 1));
+        new KeepAliveTransport(server.getBaseUrl());
+        assertEquals("pool size", size, System.getProperty("http.maxConnections"));
+    }
+
+    public void testKeepAliveIsLeftToTheApp() throws Exception {
+        String keepAlive = System.getProperty("http.keepAlive");
+        System.clearProperty("http.keepAlive");
+        try {
+            new KeepAliveTransport(server.getBaseUrl());
+            assertNull("http.keepAlive", System.getProperty("http.keepAlive"));
+        } finally {
+            if (keepAlive != null) {
+                System.setProperty("http.keepAlive", keepAlive);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+public class MessageHistoryTest extends TestCase {
+    private StubServer server;
+    private volatile int oldest = 1;
+    private volatile String emptyPage = "{\"status\":200,\"messages\":[]}";
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                int limit = Integer.parseInt(StubServer.param(exchange, "limit"));
+                String before = StubServer.param(exchange, "before_id");
+                int newest = (before == null) ? 30 : Integer.parseInt(before) - 1;
+                if (newest < oldest) {
+                    StubServer.sendJson(exchange, 200, emptyPage);
+                    return;
+                }
+                StringBuilder page = new StringBuilder("{\"status\":200,\"messages\":[");
+                for (int id = newest; id > newest - limit && id >= oldest; id--) {
+                    page.append((id == newest) ? "" : ",").append(StubServer.messageJson(id, "m"));
+                }
+                StubServer.sendJson(exchange, 200, page.append("]}").toString());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testPagesAreFetchedAsTheHistoryIsIterated() throws Exception {
+        Iterator<Message> history = client().getMessageHistory(10).iterator();
+        assertEquals("fetched before iterating", 0, server.getRequests().size());
+
+        for (int id = 30; id > 20; id--) {
+            assertEquals("id", id, history.next().getId());
+        }
+        assertEquals("fetched for the first page", 1, server.getRequests().size());
+        history.next();
+        List<String> requests = server.getRequests();
+        assertEquals("fetched for the second page", 2, requests.size());
+        assertTrue("second page is before the first: " + requests.get(1),
+                requests.get(1).contains("before_id=21"));
+    }
+
+    public void testHistoryEndsAtAShortPage() throws Exception {
+        oldest = 6;
+        int count = 0;
+        for (Message message : client().getMessageHistory(10)) {
+            count++;
+        }
+        assertEquals("messages", 25, count);
+        assertEquals("pages", 3, server.getRequests().size());
+    }
+
+    public void testHistoryEndsAtAnEmptyPage() throws Exception {
+        int count = 0;
+        for (Message message : client().getMessageHistory(10)) {
+            count++;
+        }
+        assertEquals("messages", 30, count);
+        assertEquals("pages", 4, server.getRequests().size());
+    }
+
+    public void testPageWithoutAMessagesFieldIsEmpty() throws Exception {
+        emptyPage = "{\"status\":200}";
+        int count = 0;
+        for (Message message : client().getMessageHistory(10)) {
+            count++;
+        }
+        assertEquals("messages", 30, count);
+        assertEquals("empty page", 0,
+                client().getMessages(MessageQuery.latest(10).beforeId(1)).length);
+    }
+
+    private DoorbellsClient client() {
+        return DoorbellsClient.initialize(server.transport(), "token");
+    }
+}
@@ -0,0 +1,168 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageStreamTest extends TestCase {
+    private static final int WAIT_MILLIS = 5000;
+
+    private StubServer server;
+    private MessageStream stream;
+    private final Set<Integer> received = new TreeSet<Integer>();
+    private final List<String> lastEventIds = new ArrayList<String>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (stream != null) {
+            stream.stop();
+        }
+        server.stop();
+    }
+
+    public void testEventStreamResumesAfterTheLastEvent() throws Exception {
+        final AtomicInteger connections = new AtomicInteger();
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                synchronized (lastEventIds) {
+                    lastEventIds.add(exchange.getRequestHeaders().getFirst("Last-Event-ID"));
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                if (connections.incrementAndGet() == 1) {
+                    // Two messages, a heartbeat, and then cut off halfway through a third
+                    out.write(("retry: 50\n\nid: 1\ndata: " + StubServer.messageJson(1, "one")
+                            + "\n\n: ping\n\nid: 2\ndata: " + StubServer.messageJson(2, "two")
+                            + "\n\nid: 3\ndata: {\"id\":3,").getBytes("UTF-8"));
+                    return;
+                }
+                out.write(("id: 3\ndata: " + StubServer.messageJson(3, "three") + "\n\n")
+                        .getBytes("UTF-8"));
+                // Heartbeats, until the stream is stopped and hangs up
+                try {
+                    for (int i = 0; i < WAIT_MILLIS / 100; i++) {
+                        out.write(": ping\n\n".getBytes("UTF-8"));
+                        out.flush();
+                        Thread.sleep(100);
+                    }
+                } catch (InterruptedException e) {
+                    // The server is stopping
+                }
+            }
+        });
+        stream = DoorbellsClient.initialize(server.transport(), "token")
+                .streamMessages(MessageStream.NONE, new Collector());
+        stream.start();
+
+        awaitReceived(3);
+        assertEquals("received", "[1, 2, 3]", receivedIds());
+        awaitLastId(3);
+        List<String> requests = server.getRequests();
+        assertFalse("the first request resumes after nothing",
+                requests.get(0).contains("after_id"));
+        assertTrue("the second request resumes after 2 (" + requests.get(1) + ")",
+                requests.get(1).contains("after_id=2"));
+        synchronized (lastEventIds) {
+            assertNull("first Last-Event-ID", lastEventIds.get(0));
+            assertEquals("second Last-Event-ID", "2", lastEventIds.get(1));
+        }
+    }
+
+    public void testLongPollPagesBackThroughAFullPage() throws Exception {
+        final int newest = MessageStream.PAGE_SIZE * 2 + 20;
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                int afterId = intParam(exchange, "after_id", 0);
+                int beforeId = intParam(exchange, "before_id", Integer.MAX_VALUE);
+                int limit = intParam(exchange, "limit", 15);
+                if (afterId >= newest && StubServer.param(exchange, "wait") != null) {
+                    try {
+                        Thread.sleep(MessageStream.MIN_RECONNECT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                // Newest first, as the server pages
+                StringBuilder page = new StringBuilder("{\"status\":200,\"messages\":[");
+                int count = 0;
+                for (int id = Math.min(newest, beforeId - 1); id > afterId && count < limit; id--) {
+                    page.append((count++ == 0) ? "" : ",").append(StubServer.messageJson(id, "m"));
+                }
+                StubServer.sendJson(exchange, 200, page.append("]}").toString());
+            }
+        });
+        stream = DoorbellsClient.initialize(server.transport(), "token")
+                .streamMessages(0, new Collector());
+        stream.start();
+
+        awaitReceived(newest);
+        synchronized (received) {
+            assertEquals("received", newest, received.size());
+        }
+        awaitLastId(newest);
+    }
+
+    private static int intParam (HttpExchange exchange, String name, int otherwise)
+            throws IOException {
+        String value = StubServer.param(exchange, name);
+        return (value == null) ? otherwise : Integer.parseInt(value);
+    }
+
+    private void awaitReceived (int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        synchronized (received) {
+            while (received.size() < count) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    fail("only received " + received.size() + " of " + count + " messages");
+                }
+                received.wait(left);
+            }
+        }
+    }
+
+    // The last ID moves on only once the listener has had the message
+    private void awaitLastId (int id) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+        while (stream.getLastId() != id && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("last ID", id, stream.getLastId());
+    }
+
+    private String receivedIds() {
+        synchronized (received) {
+            return received.toString();
+        }
+    }
+
+    private class Collector implements MessageStream.Listener {
+        @Override
+        public void onMessage (Message message) {
+            synchronized (received) {
+                received.add(message.getId());
+                received.notifyAll();
+            }
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected (Exception e, long reconnectMillis) {
+        }
+    }
+}
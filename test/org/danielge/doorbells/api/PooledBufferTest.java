@@ -0,0 +1,112 @@
+package org.danielge.doorbells.api;
+
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.utils.Utils;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.danielge.doorbells.api.ApiUtils.Params;
+
+public class PooledBufferTest extends TestCase {
+    private static final String[] AWKWARD = {
+        "", "plain", "two words", "a&b=c+d%e/f?g", "café", "€100",
+        "smile 😀", "lone \ud83d surrogate", "~!'()*._-"
+    };
+
+    public void testUtf8MatchesTheJdk() {
+        for (String text : AWKWARD) {
+            PooledBuffer buffer = PooledBuffer.acquire();
+            try {
+                buffer.writeUtf8(text);
+                byte[] written = Arrays.copyOf(buffer.array(), buffer.length());
+                assertTrue(text, Arrays.equals(text.getBytes(Utils.UTF_8), written));
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    public void testBufferGrowsPastItsFirstArray() {
+        PooledBuffer buffer = PooledBuffer.acquire();
+        try {
+            for (int i = 0; i < PooledBuffer.BUFFER_SIZE + 10; i++) {
+                buffer.write('x');
+            }
+            assertEquals("length", PooledBuffer.BUFFER_SIZE + 10, buffer.length());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public void testReleasedArraysAreReusedUpToALimit() {
+        // Whatever the pool holds now is taken out of the way first
+        List<byte[]> taken = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            taken.add(PooledBuffer.take());
+        }
+        Map<byte[], Boolean> released = new IdentityHashMap<byte[], Boolean>();
+        for (byte[] array : taken) {
+            PooledBuffer.recycle(array);
+            released.put(array, true);
+        }
+
+        int reused = 0;
+        for (int i = 0; i < 20; i++) {
+            if (released.containsKey(PooledBuffer.take())) {
+                reused++;
+            }
+        }
+        assertEquals("reused", 8, reused);
+    }
+
+    public void testOversizedArraysAreNotPooled() {
+        List<byte[]> taken = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            taken.add(PooledBuffer.take());
+        }
+        byte[] big = new byte[1024 * 1024];
+        PooledBuffer.recycle(big);
+        assertTrue("a fresh array", PooledBuffer.take() != big);
+        for (byte[] array : taken) {
+            PooledBuffer.recycle(array);
+        }
+    }
+
+    public void testParamsAreFormEncodedLikeTheJdk() throws Exception {
+        for (String value : AWKWARD) {
+            String expected = "v=" + URLEncoder.encode(value, "UTF-8")
+                    .replace("%EF%BF%BD", "%3F");   // The JDK's lone surrogate
+            assertEquals(value, expected, Params.start("v", value).finish());
+        }
+    }
+
+    public void testParamsAreWrittenStraightIntoABody() {
+        Params form = Params.start("contents", "ding dong").addParam("n", 3);
+        PooledBuffer body = PooledBuffer.acquire();
+        try {
+            form.writeTo(body);
+            assertEquals("body", "contents=ding+dong&n=3", body.toString());
+        } finally {
+            body.release();
+        }
+    }
+
+    public void testAddingToParamsLeavesTheOriginalAlone() {
+        Params base = Params.start("tag", "front door");
+        Params first = base.addEncodedParam("auth_token", ApiUtils.encode("a b"));
+        Params second = base.addParam("auth_token", "c");
+
+        assertEquals("base", "tag=front+door", base.finish());
+        assertEquals("first", "tag=front+door&auth_token=a+b", first.finish());
+        assertEquals("second", "tag=front+door&auth_token=c", second.finish());
+        assertTrue("empty", Params.start().isEmpty());
+        assertEquals("empty", "", Params.start().finish());
+        assertEquals("query", "/tags?tag=front+door",
+                ApiUtils.concatQuery("/tags", base));
+    }
+}
@@ -0,0 +1,184 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetrierTest extends TestCase {
+    private static final String TAGS = "{\"status\":200,\"tags\":[]}";
+
+    private StubServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testServerErrorsAreRetried() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                if (requests.incrementAndGet() < 3) {
+                    StubServer.sendJson(exchange, 500, "{\"status\":500,\"msg\":\"busy\"}");
+                } else {
+                    StubServer.sendJson(exchange, 200, TAGS);
+                }
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withRetryPolicy(RetryPolicy.exponential(3, 10, 50));
+
+        assertEquals("tags", 0, client.getTags().length);
+        assertEquals("attempts", 3, requests.get());
+    }
+
+    public void testRetriesGiveUpAfterTheLastAttempt() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                StubServer.sendJson(exchange, 500, "{\"status\":500,\"msg\":\"down\"}");
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withRetryPolicy(RetryPolicy.exponential(2, 10, 50));
+
+        try {
+            client.getTags();
+            fail("expected an InternalServerException");
+        } catch (InternalServerException e) {
+            // expected
+        }
+        assertEquals("attempts", 2, requests.get());
+    }
+
+    public void testClientErrorsAreNotRetried() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                StubServer.sendJson(exchange, 400, "{\"status\":400,\"msg\":\"bad\"}");
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withRetryPolicy(RetryPolicy.exponential(3, 10, 50));
+
+        try {
+            client.getTags();
+            fail("expected a BadRequestException");
+        } catch (BadRequestException e) {
+            // expected
+        }
+        assertEquals("attempts", 1, requests.get());
+    }
+
+    public void testTimedOutRequestsAreNotRetried() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    // The server is stopping
+                }
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withTimeouts(new Timeouts(1000, 100, 0))
+                .withRetryPolicy(RetryPolicy.exponential(3, 10, 50));
+
+        try {
+            client.getTags();
+            fail("expected a DeadlineExceededException");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        assertEquals("attempts", 1, requests.get());
+    }
+
+    public void testRetriesShareTheTotalTimeout() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                StubServer.sendJson(exchange, 500, "{\"status\":500,\"msg\":\"slow\"}");
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withTimeouts(new Timeouts(1000, 1000, 350))
+                .withRetryPolicy(RetryPolicy.exponential(10, 10, 20));
+
+        long start = System.nanoTime();
+        try {
+            client.getTags();
+            fail("expected the call to fail");
+        } catch (DeadlineExceededException e) {
+            // expected: the last attempt ran out of time
+        } catch (InternalServerException e) {
+            // expected: there was no time left for another attempt
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("gave up by the total timeout (took " + millis + "ms)", millis < 600);
+        assertTrue("attempts (" + requests.get() + ")", requests.get() <= 4);
+    }
+
+    public void testHedgeLoserIsDisconnected() throws Exception {
+        final int stalled = 31;     // After enough fast ones to hedge on
+        final CountDownLatch cutOff = new CountDownLatch(1);
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                if (requests.incrementAndGet() != stalled) {
+                    StubServer.sendJson(exchange, 200, TAGS);
+                    return;
+                }
+                // Trickle out whitespace until the client hangs up
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        out.write(' ');
+                        out.flush();
+                        Thread.sleep(100);
+                    }
+                } catch (IOException e) {
+                    cutOff.countDown();
+                } catch (InterruptedException e) {
+                    // The server is stopping
+                }
+            }
+        });
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token")
+                .withRetryPolicy(RetryPolicy.DEFAULT.withHedging(true))
+                .withMaxConcurrentRequests(2);
+        for (int i = 1; i < stalled; i++) {
+            client.getTags();
+        }
+
+        long start = System.nanoTime();
+        client.getTags();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("the hedge answered (took " + millis + "ms)", millis < 2000);
+        assertTrue("the stalled response was cut off", cutOff.await(2, TimeUnit.SECONDS));
+
+        // Both slots are free again
+        ConcurrencyLimiter limiter = client.getConcurrencyLimiter();
+        Semaphore first = limiter.acquire("127.0.0.1", 500);
+        Semaphore second = limiter.acquire("127.0.0.1", 500);
+        ConcurrencyLimiter.release(first);
+        ConcurrencyLimiter.release(second);
+    }
+}
@@ -0,0 +1,99 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionTest extends TestCase {
+    private StubServer server;
+    private ExecutorService callers;
+    private volatile String validToken = "fresh";
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        callers = Executors.newFixedThreadPool(16);
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().equals("/api/auth")) {
+                    logins.incrementAndGet();
+                    try {
+                        Thread.sleep(100);   // So that the other callers pile up
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    StubServer.sendJson(exchange, 200,
+                            "{\"token\":\"" + validToken + "\",\"expires_in\":3600}");
+                } else if (!validToken.equals(StubServer.param(exchange, "auth_token"))) {
+                    rejected.incrementAndGet();
+                    StubServer.sendJson(exchange, 401, "{\"status\":401,\"msg\":\"expired\"}");
+                } else {
+                    StubServer.sendJson(exchange, 200, StubServer.messageJson(1, "hi"));
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        callers.shutdownNow();
+        server.stop();
+    }
+
+    public void testConcurrentRejectionsRenewTheSessionOnce() throws Exception {
+        final Transport transport = server.transport();
+        final AtomicInteger changes = new AtomicInteger();
+        Session session = new Session(new Session.Token("stale"), new Session.Authenticator() {
+            @Override
+            public Session.Token authenticate() throws IOException, DoorbellsApiException {
+                return DoorbellsClient.requestToken(transport, "someone@example.com", "secret");
+            }
+        }, new Session.Listener() {
+            @Override
+            public void onTokenChanged (Session.Token token) {
+                changes.incrementAndGet();
+            }
+        });
+        final DoorbellsClient client = DoorbellsClient.initialize(transport, session)
+                .withMaxConcurrentRequests(16);
+
+        List<Future<Message>> calls = new ArrayList<Future<Message>>();
+        for (int i = 0; i < 16; i++) {
+            final int id = i + 1;
+            calls.add(callers.submit(new Callable<Message>() {
+                @Override
+                public Message call() throws Exception {
+                    return client.getMessage(id);
+                }
+            }));
+        }
+        for (Future<Message> call : calls) {
+            assertNotNull("message", call.get());
+        }
+        assertEquals("logins", 1, logins.get());
+        assertEquals("token changes", 1, changes.get());
+        assertEquals("token", "fresh", client.getAuthToken());
+        assertTrue("no more than one rejection each", rejected.get() <= 16);
+    }
+
+    public void testRejectionWithoutAnAuthenticatorIsReported() throws Exception {
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "stale");
+        try {
+            client.getMessage(1);
+            fail("expected an UnauthorizedException");
+        } catch (UnauthorizedException e) {
+            // expected
+        }
+        assertEquals("logins", 0, logins.get());
+    }
+}
@@ -0,0 +1,155 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.danielge.doorbells.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process stand-in for the Doorbells API, for tests and benchmarks: an
+ * {@link HttpServer} on a free local port that hands every request under
+ * {@code /api} to a handler, and keeps track of the requests it got and the
+ * connections they came in on.
+ */
+public class StubServer {
+    /**
+     * Answers one request. Runs on one of the server's threads, several at
+     * once if requests come in at once.
+     */
+    public interface Handler {
+        void handle (HttpExchange exchange) throws IOException;
+    }
+
+    static {
+        // Otherwise a small response waits on the client's delayed ACK, and
+        // every call takes 40ms whatever the client does
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final List<String> requests = new ArrayList<String>();
+    private final Set<Integer> clientPorts = new HashSet<Integer>();
+    private volatile Handler handler;
+
+    public StubServer (Handler handler) throws IOException {
+        this.handler = handler;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(threads);
+        server.createContext("/api/", new HttpHandler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                synchronized (StubServer.this) {
+                    requests.add(exchange.getRequestURI().toString()
+                            .substring("/api".length()));
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                try {
+                    StubServer.this.handler.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public void setHandler (Handler handler) {
+        this.handler = handler;
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    /**
+     * @return  A transport of its own to the server, so that connections
+     *          aren't shared with other tests
+     */
+    public KeepAliveTransport transport() {
+        return new KeepAliveTransport(getBaseUrl());
+    }
+
+    /**
+     * @return  Every request so far (path and query, without the {@code /api}),
+     *          in the order they came in
+     */
+    public synchronized List<String> getRequests() {
+        return new ArrayList<String>(requests);
+    }
+
+    /**
+     * @return  How many distinct connections the requests so far came in on
+     */
+    public synchronized int getConnectionCount() {
+        return clientPorts.size();
+    }
+
+    public void stop() {
+        server.stop(0);
+        threads.shutdownNow();
+    }
+
+
+    /* For handlers */
+
+    public static void sendJson (HttpExchange exchange, int status, String json)
+            throws IOException {
+        byte[] body = json.getBytes(Utils.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    public static String readBody (HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), Utils.UTF_8);
+    }
+
+    /**
+     * @return  The value of a query parameter, or {@code null} if there is none
+     */
+    public static String param (HttpExchange exchange, String name)
+            throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    public static String messageJson (int id, String contents) {
+        return "{\"id\":" + id + ",\"contents\":\"" + contents + "\",\"timestamp\":" + id
+                + ",\"sender\":{\"name\":\"visitor\"}}";
+    }
+
+    public static String tagJson (String id, String location) {
+        return "{\"id\":\"" + id + "\",\"location\":\"" + location
+                + "\",\"user\":{\"name\":\"owner\"}}";
+    }
+}
@@ -0,0 +1,111 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TagCacheTest extends TestCase {
+    private StubServer server;
+    private final Map<String, String> locations = new ConcurrentHashMap<String, String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        locations.put("a", "front");
+        locations.put("b", "back");
+        locations.put("c", "garage");
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath().substring("/api".length());
+                if (path.equals("/tags")) {
+                    StringBuilder tags = new StringBuilder("{\"status\":200,\"tags\":[");
+                    for (Map.Entry<String, String> tag : locations.entrySet()) {
+                        tags.append(tags.charAt(tags.length() - 1) == '[' ? "" : ",")
+                                .append(StubServer.tagJson(tag.getKey(), tag.getValue()));
+                    }
+                    StubServer.sendJson(exchange, 200, tags.append("]}").toString());
+                } else if (path.equals("/tags/update")) {
+                    locations.put(StubServer.param(exchange, "id"),
+                            StubServer.readBody(exchange).substring("location=".length()));
+                    StubServer.sendJson(exchange, 200, "{\"status\":200}");
+                } else {
+                    String id = path.substring("/tags/".length());
+                    StubServer.sendJson(exchange, 200, StubServer.tagJson(id, locations.get(id)));
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testRepeatedLookupsAreServedFromTheCache() throws Exception {
+        TagCache cache = new TagCache();
+        DoorbellsClient client = client(cache);
+
+        assertEquals("location", "front", client.getTag("a").getLocation());
+        assertEquals("location", "front", client.getTag("a").getLocation());
+        assertEquals("all tags", 3, client.getTags().length);
+        assertEquals("all tags", 3, client.getTags().length);
+        assertEquals("requests", 2, server.getRequests().size());
+        assertEquals("hits", 2, cache.getHitCount());
+    }
+
+    public void testUpdatesWriteThrough() throws Exception {
+        DoorbellsClient client = client(new TagCache());
+        client.getTag("a");
+        client.getTags();
+
+        assertTrue("updated", client.updateTag("a", "side"));
+        assertEquals("location", "side", client.getTag("a").getLocation());
+        for (Tag tag : client.getTags()) {
+            if (tag.getId().equals("a")) {
+                assertEquals("location in the full list", "side", tag.getLocation());
+            }
+        }
+        assertEquals("requests", 3, server.getRequests().size());
+    }
+
+    public void testInvalidatedTagsAreFetchedAgain() throws Exception {
+        TagCache cache = new TagCache();
+        DoorbellsClient client = client(cache);
+        client.getTag("a");
+
+        locations.put("a", "moved elsewhere");
+        cache.invalidate("a");
+        assertEquals("location", "moved elsewhere", client.getTag("a").getLocation());
+        assertEquals("requests", 2, server.getRequests().size());
+    }
+
+    public void testExpiredTagsAreFetchedAgain() throws Exception {
+        DoorbellsClient client = client(new TagCache(TagCache.DEFAULT_MAX_ENTRIES, 50));
+        client.getTag("a");
+        Thread.sleep(100);
+        client.getTag("a");
+        assertEquals("requests", 2, server.getRequests().size());
+    }
+
+    public void testLeastRecentlyUsedTagIsEvicted() throws Exception {
+        TagCache cache = new TagCache(2, TagCache.DEFAULT_TTL_MILLIS);
+        DoorbellsClient client = client(cache);
+        client.getTag("a");
+        client.getTag("b");
+        client.getTag("a");
+        client.getTag("c");     // Evicts b, not a
+
+        assertEquals("size", 2, cache.size());
+        client.getTag("a");
+        assertEquals("requests before b", 3, server.getRequests().size());
+        client.getTag("b");
+        assertEquals("requests after b", 4, server.getRequests().size());
+    }
+
+    private DoorbellsClient client (TagCache cache) {
+        return DoorbellsClient.initialize(server.transport(), "token").withTagCache(cache);
+    }
+}
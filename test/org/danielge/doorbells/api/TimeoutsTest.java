@@ -0,0 +1,110 @@
+package org.danielge.doorbells.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+public class TimeoutsTest extends TestCase {
+    private StubServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                StubServer.sendJson(exchange, 200, "{\"status\":200,\"tags\":[]}");
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testSilentServerRunsIntoTheReadTimeout() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                sleep(2000);
+            }
+        });
+        DoorbellsClient client = client(new Timeouts(1000, 100, 0));
+
+        long start = System.nanoTime();
+        try {
+            client.getTags();
+            fail("expected a DeadlineExceededException");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        assertTookUnder("read timeout", start, 1000);
+    }
+
+    public void testTricklingBodyRunsIntoTheTotalTimeout() throws Exception {
+        server.setHandler(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                // Each byte comes well within the read timeout, but the
+                // whole body would take two seconds
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{\"status\":200,\"tags\":[".getBytes("UTF-8"));
+                out.flush();
+                for (int i = 0; i < 40; i++) {
+                    if (!sleep(50)) {
+                        return;
+                    }
+                    out.write(' ');
+                    out.flush();
+                }
+                out.write("]}".getBytes("UTF-8"));
+            }
+        });
+        DoorbellsClient client = client(new Timeouts(1000, 1000, 300));
+
+        long start = System.nanoTime();
+        try {
+            client.getTags();
+            fail("expected a DeadlineExceededException");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        assertTookUnder("total timeout", start, 1000);
+    }
+
+    public void testFinishedRequestIsNotCutOffLater() throws Exception {
+        DoorbellsClient client = client(new Timeouts(1000, 1000, 200));
+        client.getTags();
+        Thread.sleep(300);
+        client.getTags();
+        assertEquals("connections", 1, server.getConnectionCount());
+    }
+
+    private DoorbellsClient client (Timeouts timeouts) {
+        return DoorbellsClient.initialize(server.transport(), "token")
+                .withTimeouts(timeouts)
+                .withRetryPolicy(RetryPolicy.NONE);
+    }
+
+    private static void assertTookUnder (String what, long start, long millis) {
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(what + " cut the request off (took " + took + "ms)", took < millis);
+    }
+
+    /**
+     * @return  {@code false} if the server is being stopped
+     */
+    private static boolean sleep (long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class MessageIndexTest extends TestCase {
+    /** The table size of a new index, which holds up to half as many */
+    private static final int TABLE_SIZE = 32;
+
+    public void testRemoveShiftsBackARunThatWrapsAround() {
+        // A run that starts in the last slot and carries on at the start
+        List<Integer> lastSlot = idsWithSlot(TABLE_SIZE - 1, 3);
+        int firstSlot = idsWithSlot(0, 1).get(0);
+        MessageIndex index = new MessageIndex();
+        for (int id : lastSlot) {
+            index.put(message(id, id));
+        }
+        index.put(message(firstSlot, firstSlot));
+
+        index.remove(lastSlot.get(0));
+        assertNull("removed", index.get(lastSlot.get(0)));
+        assertEquals("size", 3, index.size());
+        assertNotNull("wrapped", index.get(lastSlot.get(1)));
+        assertNotNull("wrapped", index.get(lastSlot.get(2)));
+        assertNotNull("at home", index.get(firstSlot));
+
+        index.remove(lastSlot.get(2));
+        index.remove(firstSlot);
+        assertNotNull("last one", index.get(lastSlot.get(1)));
+        assertEquals("size", 1, index.size());
+        assertEquals("order", 1, index.all().size());
+    }
+
+    public void testIndexGrowsPastItsFirstSize() {
+        MessageIndex index = new MessageIndex();
+        for (int id = 1000; id > 0; id--) {
+            index.put(message(id, id));     // Oldest last, so each goes in at the front
+        }
+        assertEquals("size", 1000, index.size());
+        for (int id = 1; id <= 1000; id++) {
+            assertEquals("id", id, index.get(id).getId());
+        }
+        assertEquals("newest", 1000, index.newest().getId());
+        assertEquals("oldest", 1, index.all().get(999).getId());
+    }
+
+    public void testMergeReplacesAndOrders() {
+        MessageIndex index = new MessageIndex();
+        index.put(message(1, 10));
+        index.put(message(2, 20));
+        index.put(message(3, 30));
+
+        // Out of order, with 1 edited to be the newest
+        index.merge(new Message[] { message(5, 25), message(1, 40), message(4, 5) });
+        assertEquals("size", 5, index.size());
+        assertEquals("order", "1 3 5 2 4", idsOf(index.all()));
+        assertEquals("replaced", 40, index.get(1).getTimestamp());
+    }
+
+    public void testMergeKeepsOneOfEachId() {
+        MessageIndex index = new MessageIndex();
+        index.put(message(1, 10));
+        Message twice = message(2, 20);
+
+        // The same message twice, and two versions of another: the later wins
+        index.merge(new Message[] {
+            twice, message(3, 50), message(1, 15), twice, message(3, 30)
+        });
+        assertEquals("size", 3, index.size());
+        assertEquals("order", "3 2 1", idsOf(index.all()));
+        assertTrue("the message itself", index.get(2) == twice);
+        assertEquals("later version", 30, index.get(3).getTimestamp());
+        assertEquals("replaced", 15, index.get(1).getTimestamp());
+    }
+
+    public void testBetweenIncludesTheStartOnly() {
+        MessageIndex index = new MessageIndex();
+        for (int id = 1; id <= 5; id++) {
+            index.put(message(id, id * 10));
+        }
+        index.put(message(6, 30));      // Same time as 3
+
+        assertEquals("range", "6 3 2", idsOf(index.between(20, 40)));
+        assertEquals("everything", "5 4 6 3 2 1", idsOf(index.between(0, 100)));
+        assertEquals("empty range", "", idsOf(index.between(30, 30)));
+        assertEquals("backwards", "", idsOf(index.between(40, 20)));
+        assertEquals("before any", "", idsOf(index.between(0, 10)));
+    }
+
+    public void testNewestStopsAtTheLimit() {
+        MessageIndex index = new MessageIndex();
+        assertNull("none", index.newest());
+        assertEquals("empty", "", idsOf(index.newest(3)));
+        for (int id = 1; id <= 5; id++) {
+            index.put(message(id, id));
+        }
+        assertEquals("three", "5 4 3", idsOf(index.newest(3)));
+        assertEquals("more than there are", "5 4 3 2 1", idsOf(index.newest(10)));
+        assertEquals("zero", "", idsOf(index.newest(0)));
+    }
+
+    public void testMatchesAMapUnderRandomChanges() {
+        Random random = new Random(18);
+        MessageIndex index = new MessageIndex();
+        Map<Integer, Message> expected = new HashMap<Integer, Message>();
+
+        for (int round = 0; round < 2000; round++) {
+            int id = random.nextInt(300);
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals("remove " + id, expected.remove(id), index.remove(id));
+                    break;
+                case 1:
+                    Message[] page = new Message[random.nextInt(8)];
+                    for (int i = 0; i < page.length; i++) {
+                        page[i] = message(random.nextInt(300), random.nextInt(50));
+                        expected.put(page[i].getId(), page[i]);
+                    }
+                    index.merge(page);
+                    break;
+                default:
+                    Message message = message(id, random.nextInt(50));
+                    assertEquals("put " + id, expected.put(id, message), index.put(message));
+                    break;
+            }
+        }
+
+        List<Message> all = new ArrayList<Message>(expected.values());
+        Collections.sort(all, new Comparator<Message>() {
+            @Override
+            public int compare (Message a, Message b) {
+                if (a.getTimestamp() != b.getTimestamp()) {
+                    return (a.getTimestamp() > b.getTimestamp()) ? -1 : 1;
+                }
+                return (a.getId() > b.getId()) ? -1 : (a.getId() == b.getId() ? 0 : 1);
+            }
+        });
+        assertEquals("size", expected.size(), index.size());
+        assertEquals("order", idsOf(all), idsOf(index.all()));
+        for (Message message : all) {
+            assertTrue("get " + message.getId(), index.get(message.getId()) == message);
+        }
+    }
+
+    private static Message message (int id, int timestamp) {
+        return new Message(id, new User("visitor"), "m", timestamp);
+    }
+
+    private static List<Integer> idsWithSlot (int slot, int count) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int id = 1; ids.size() < count; id++) {
+            if (MessageIndex.slotFor(id, TABLE_SIZE - 1) == slot) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static String idsOf (List<Message> messages) {
+        StringBuilder ids = new StringBuilder();
+        for (Message message : messages) {
+            ids.append((ids.length() == 0) ? "" : " ").append(message.getId());
+        }
+        return ids.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.Tag;
+import org.danielge.doorbells.api.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class MessageStoreTest extends TestCase {
+    private File dir;
+    private File file;
+    private MessageStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("store-test", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "messages.store");
+        store = MessageStore.open(file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        for (File child : dir.listFiles()) {
+            child.delete();
+        }
+        dir.delete();
+    }
+
+    public void testContentsSurviveAReopen() throws Exception {
+        fill();
+        reopen();
+        assertEquals("messages", 4, store.getMessageCount());
+        assertNull("removed message", store.getMessage(1));
+        assertEquals("sender", "visitor 0", store.getMessage(2).getSender().getName());
+        assertEquals("tag", "front", store.getTag("t").getLocation());
+    }
+
+    public void testCompactionKeepsTheContents() throws Exception {
+        fill();
+        store.compact();
+        reopen();
+        assertEquals("messages", 4, store.getMessageCount());
+        assertEquals("sender", "visitor 1", store.getMessage(5).getSender().getName());
+        assertEquals("tag owner", "owner", store.getTag("t").getUser().getName());
+    }
+
+    public void testFailedCompactionLeavesTheStoreAsItWas() throws Exception {
+        fill();
+        // A directory where the rewritten file would go makes the rewrite fail
+        File temp = new File(file.getPath() + ".tmp");
+        temp.mkdir();
+        try {
+            store.compact();
+            fail("expected compaction to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        temp.delete();
+
+        store.putMessages(new Message(9, new User("latecomer"), "m9", 9));
+        store.compact();
+        reopen();
+        List<Message> messages = store.getMessages();
+        assertEquals("messages", 5, messages.size());
+        assertEquals("sender", "latecomer", store.getMessage(9).getSender().getName());
+        assertEquals("sender", "visitor 0", store.getMessage(4).getSender().getName());
+        assertEquals("tag owner", "owner", store.getTag("t").getUser().getName());
+    }
+
+    public void testTornRecordIsCutOff() throws Exception {
+        fill();
+        store.close();
+        long length = file.length();
+        // The start of a message record that never got its payload
+        appendRecord(2, 40, new byte[] {0, 0, 0, 9});
+
+        store = MessageStore.open(file);
+        assertEquals("messages", 4, store.getMessageCount());
+        assertEquals("file length", length, file.length());
+        store.putMessages(new Message(9, new User("visitor 0"), "m9", 9));
+        reopen();
+        assertEquals("messages", 5, store.getMessageCount());
+    }
+
+    public void testUnknownUserNumberIsTreatedAsTorn() throws Exception {
+        fill();
+        store.close();
+        long length = file.length();
+        // A whole message record whose sender was never written to the file
+        appendRecord(2, 16, new byte[] {0, 0, 0, 9, 0, 0, 0, 9, 0, 0, 0, 7, 0, 0, 0, 0});
+
+        store = MessageStore.open(file);
+        assertEquals("messages", 4, store.getMessageCount());
+        assertNull("garbage message", store.getMessage(9));
+        assertEquals("file length", length, file.length());
+    }
+
+    public void testUnknownRecordTypeFailsTheOpen() throws Exception {
+        fill();
+        store.close();
+        appendRecord(99, 0, new byte[0]);
+
+        int open = openFiles();
+        try {
+            MessageStore.open(file);
+            fail("expected the open to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("open files", open, openFiles());
+    }
+
+    public void testNotAStoreFailsTheOpen() throws Exception {
+        store.close();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(0);
+        out.writeBytes("not a store at all");
+        out.close();
+
+        int open = openFiles();
+        try {
+            MessageStore.open(file);
+            fail("expected the open to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("open files", open, openFiles());
+        assertEquals("file length", 18, file.length());
+    }
+
+    private void fill() throws IOException {
+        for (int id = 1; id <= 5; id++) {
+            store.putMessages(new Message(id, new User("visitor " + (id % 2)), "m" + id, id));
+        }
+        store.putTags(new Tag("t", "front", new User("owner")));
+        store.removeMessage(1);
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = MessageStore.open(file);
+    }
+
+    private void appendRecord (int type, int length, byte[] payload) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(out.length());
+            out.writeByte(type);
+            out.writeInt(length);
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return  How many files this process has open, or -1 where that can't be
+     *          told (anywhere but Linux)
+     */
+    private static int openFiles() {
+        String[] open = new File("/proc/self/fd").list();
+        return (open == null) ? -1 : open.length;
+    }
+}
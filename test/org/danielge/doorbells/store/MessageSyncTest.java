@@ -0,0 +1,122 @@
+package org.danielge.doorbells.store;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.api.DoorbellsClient;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.StubServer;
+import org.danielge.doorbells.api.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class MessageSyncTest extends TestCase {
+    private static final int NEWEST = MessageSync.PAGE_SIZE * 2 + 20;
+
+    private File file;
+    private MessageStore store;
+    private StubServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("sync-test", ".store");
+        file.delete();
+        store = MessageStore.open(file);
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/api/messages/")) {
+                    int id = Integer.parseInt(path.substring("/api/messages/".length()));
+                    StubServer.sendJson(exchange, 200, StubServer.messageJson(id, "m"));
+                    return;
+                }
+
+                // Newest first, as the server pages
+                int afterId = intParam(exchange, "after_id", 0);
+                int beforeId = intParam(exchange, "before_id", Integer.MAX_VALUE);
+                int limit = intParam(exchange, "limit", 15);
+                StringBuilder page = new StringBuilder("{\"status\":200,\"messages\":[");
+                int count = 0;
+                for (int id = Math.min(NEWEST, beforeId - 1); id > afterId && count < limit; id--) {
+                    page.append((count++ == 0) ? "" : ",").append(StubServer.messageJson(id, "m"));
+                }
+                StubServer.sendJson(exchange, 200, page.append("]}").toString());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        store.close();
+        file.delete();
+    }
+
+    public void testEverythingNewerThanTheStoreIsFetched() throws Exception {
+        store.putMessages(new Message(1, new User("visitor"), "m", 1));
+
+        List<Message> added = sync(new Pushes() {
+            @Override
+            public void send (MessageSync sync) {
+                sync.onPush();
+            }
+        });
+        assertEquals("added", NEWEST - 1, added.size());
+        assertEquals("stored", NEWEST, store.getMessageCount());
+    }
+
+    public void testPushesInAWindowAreFetchedTogether() throws Exception {
+        List<Message> added = sync(new Pushes() {
+            @Override
+            public void send (MessageSync sync) {
+                sync.onPush(7);
+                sync.onPush(7);
+                sync.onPush(8);
+            }
+        });
+        assertEquals("added", 2, added.size());
+        assertEquals("requests", 2, server.getRequests().size());
+    }
+
+    private interface Pushes {
+        void send (MessageSync sync);
+    }
+
+    private List<Message> sync (Pushes pushes) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] outcome = new Object[1];
+        DoorbellsClient client = DoorbellsClient.initialize(server.transport(), "token");
+        MessageSync sync = new MessageSync(client, store, 50, new MessageSync.Listener() {
+            @Override
+            public void onSynced (List<Message> added) {
+                outcome[0] = added;
+                done.countDown();
+            }
+
+            @Override
+            public void onSyncFailed (Exception e) {
+                outcome[0] = e;
+                done.countDown();
+            }
+        });
+        pushes.send(sync);
+
+        assertTrue("synced", done.await(5, TimeUnit.SECONDS));
+        if (outcome[0] instanceof Exception) {
+            throw new AssertionError("sync failed: " + outcome[0]);
+        }
+        @SuppressWarnings("unchecked")
+        List<Message> added = (List<Message>) outcome[0];
+        return added;
+    }
+
+    private static int intParam (HttpExchange exchange, String name, int otherwise)
+            throws IOException {
+        String value = StubServer.param(exchange, name);
+        return (value == null) ? otherwise : Integer.parseInt(value);
+    }
+}
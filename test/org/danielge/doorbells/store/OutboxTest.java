@@ -0,0 +1,241 @@
+package org.danielge.doorbells.store;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.api.DoorbellsClient;
+import org.danielge.doorbells.api.KeepAliveTransport;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.RetryPolicy;
+import org.danielge.doorbells.api.StubServer;
+import org.danielge.doorbells.api.Tag;
+import org.danielge.doorbells.api.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class OutboxTest extends TestCase {
+    private File storeFile;
+    private File outboxFile;
+    private MessageStore store;
+    private Outbox outbox;
+    private StubServer server;
+
+    private final CountDownLatch createArrived = new CountDownLatch(1);
+    private final CountDownLatch createAnswered = new CountDownLatch(1);
+    private volatile String createKey;
+
+    @Override
+    protected void setUp() throws Exception {
+        storeFile = File.createTempFile("outbox-test", ".store");
+        outboxFile = File.createTempFile("outbox-test", ".outbox");
+        storeFile.delete();
+        outboxFile.delete();
+        store = MessageStore.open(storeFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (outbox != null) {
+            outbox.close();
+        }
+        store.close();
+        if (server != null) {
+            server.stop();
+        }
+        storeFile.delete();
+        outboxFile.delete();
+    }
+
+    public void testUpdateToAPendingCreateKeepsItsPlace() throws Exception {
+        openOffline();
+        Tag created = outbox.createTag("Garage");
+        outbox.sendMessage(created.getId(), "hello");
+        outbox.updateTag(created.getId(), "Garage door");
+
+        List<Outbox.Operation> pending = queued();
+        assertEquals("pending", 2, pending.size());
+        assertEquals("first", Outbox.Kind.CREATE_TAG, pending.get(0).getKind());
+        assertEquals("created as it is now", "Garage door", pending.get(0).getValue());
+        assertEquals("second", Outbox.Kind.SEND_MESSAGE, pending.get(1).getKind());
+        assertEquals("stored location", "Garage door",
+                store.getTag(created.getId()).getLocation());
+    }
+
+    public void testRedundantOperationsCollapse() throws Exception {
+        store.putTags(new Tag("t1", "Front", new User("me")));
+        store.putMessages(new Message(7, new User("visitor"), "hi", 100));
+        openOffline();
+
+        outbox.updateTag("t1", "Front 2");
+        outbox.updateTag("t1", "Front 3");
+        outbox.deleteMessage(7);
+        outbox.deleteMessage(7);
+        Tag shed = outbox.createTag("Shed");
+        outbox.destroyTag(shed.getId());
+
+        List<Outbox.Operation> pending = queued();
+        assertEquals("pending", 2, pending.size());
+        assertEquals("move", "Front 3", pending.get(0).getValue());
+        assertEquals("delete", "7", pending.get(1).getTarget());
+        assertNull("never-sent tag", store.getTag(shed.getId()));
+    }
+
+    public void testPendingOperationsSurviveAReopen() throws Exception {
+        openOffline();
+        Tag created = outbox.createTag("Garage");
+        outbox.updateTag(created.getId(), "Garage door");
+        outbox.close();
+        store.close();
+
+        store = MessageStore.open(storeFile);
+        // Nothing is sent on opening, so nothing goes out before the check
+        outbox = Outbox.open(outboxFile, store, offlineClient());
+        List<Outbox.Operation> pending = queued();
+        assertEquals("pending", 1, pending.size());
+        assertEquals("create", "Garage door", pending.get(0).getValue());
+        assertEquals("stored location", "Garage door",
+                store.getTag(created.getId()).getLocation());
+    }
+
+    public void testCreateKeepsItsKeyThroughACollapseAndAReopen() throws Exception {
+        openOffline();
+        Tag created = outbox.createTag("Garage");
+        String key = queued().get(0).getIdempotencyKey();
+        assertNotNull("key", key);
+        outbox.updateTag(created.getId(), "Garage door");
+        assertEquals("key after the move", key, queued().get(0).getIdempotencyKey());
+        outbox.close();
+
+        createAnswered.countDown();
+        outbox = Outbox.open(outboxFile, store, stubServer());
+        outbox.flushSoon();
+        awaitFlushed();
+        assertEquals("key sent", key, createKey);
+        assertEquals("real tag", "Garage door", store.getTag("s1").getLocation());
+    }
+
+    public void testLaterOperationsAreRemappedToTheCreatedTag() throws Exception {
+        outbox = Outbox.open(outboxFile, store, stubServer());
+        Tag created = outbox.createTag("Garage");
+        awaitCreate();
+        // The create is on its way, so these wait for it rather than fold into it
+        outbox.updateTag(created.getId(), "Garage door");
+        outbox.sendMessage(created.getId(), "hello");
+        createAnswered.countDown();
+        awaitFlushed();
+
+        List<String> requests = server.getRequests();
+        assertTrue("moved by its real ID: " + requests, contains(requests, "/tags/update?id=s1"));
+        assertTrue("sent by its real ID: " + requests, contains(requests, "/send?tag=s1"));
+        assertNull("provisional tag", store.getTag(created.getId()));
+        assertEquals("real tag", "Garage door", store.getTag("s1").getLocation());
+        assertEquals("tags", 1, store.getTags().size());
+    }
+
+    public void testDestroyDuringCreateLeavesNoTag() throws Exception {
+        outbox = Outbox.open(outboxFile, store, stubServer());
+        Tag created = outbox.createTag("Garage");
+        awaitCreate();
+        outbox.destroyTag(created.getId());
+        createAnswered.countDown();
+        awaitFlushed();
+
+        assertTrue("destroyed by its real ID",
+                contains(server.getRequests(), "/tags/delete?id=s1"));
+        assertEquals("tags", 0, store.getTags().size());
+    }
+
+    /**
+     * Opens the outbox with a client for a port nothing is listening on, and
+     * waits for it to fail to send a first operation (a delete of message 0).
+     * It doesn't try again for {@link Outbox#MIN_RETRY_MILLIS}, so until then
+     * nothing that is enqueued is on its way, and everything can collapse.
+     */
+    private void openOffline() throws IOException, InterruptedException {
+        outbox = Outbox.open(outboxFile, store, offlineClient());
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        outbox.setListener(new Outbox.Listener() {
+            @Override
+            public void onFlushed (int remaining) {
+                failed.countDown();
+            }
+
+            @Override
+            public void onRejected (Outbox.Operation operation, Exception e) {
+            }
+        });
+        outbox.deleteMessage(0);
+        assertTrue("the first send failed", failed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static DoorbellsClient offlineClient() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return DoorbellsClient.initialize(
+                new KeepAliveTransport("http://127.0.0.1:" + port + "/api"), "token")
+                .withRetryPolicy(RetryPolicy.NONE);
+    }
+
+    /**
+     * @return  What is pending, less the delete from {@link #openOffline()}
+     */
+    private List<Outbox.Operation> queued() {
+        List<Outbox.Operation> pending = outbox.getPending();
+        return pending.subList(1, pending.size());
+    }
+
+    /**
+     * @return  A client for a server that holds up creating a tag until
+     *          {@link #createAnswered}, then gives it the ID {@code s1}
+     */
+    private DoorbellsClient stubServer() throws IOException {
+        server = new StubServer(new StubServer.Handler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/tags/create")) {
+                    createKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+                    String location = StubServer.readBody(exchange).substring("location=".length());
+                    createArrived.countDown();
+                    try {
+                        createAnswered.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    StubServer.sendJson(exchange, 200, StubServer.tagJson("s1", location));
+                } else {
+                    StubServer.sendJson(exchange, 200, "{\"status\":200}");
+                }
+            }
+        });
+        return DoorbellsClient.initialize(server.transport(), "token")
+                .withRetryPolicy(RetryPolicy.NONE);
+    }
+
+    private void awaitCreate() throws InterruptedException {
+        assertTrue("the create was sent", createArrived.await(5, TimeUnit.SECONDS));
+    }
+
+    private void awaitFlushed() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (outbox.getPendingCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("still pending", 0, outbox.getPendingCount());
+    }
+
+    private static boolean contains (List<String> requests, String prefix) {
+        for (String request : requests) {
+            if (request.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package org.danielge.doorbells.store;
+
+import org.danielge.doorbells.TestCase;
+import org.danielge.doorbells.api.Message;
+import org.danielge.doorbells.api.Tag;
+import org.danielge.doorbells.api.User;
+
+import java.util.List;
+
+public class SearchIndexTest extends TestCase {
+    private SearchIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        index = new SearchIndex();
+        index.addMessages(
+                message(1, 10, "Back door, please", "Alice"),
+                message(2, 20, "Backyard gate is open", "Bob"),
+                message(3, 30, "back backpack", "Carol"),
+                message(4, 40, "Front door", "Dave"));
+    }
+
+    public void testPrefixMatchesEveryWordStartingWithIt() {
+        assertEquals("back", "3 2 1", idsOf(index.searchMessages("back")));
+        assertEquals("backy", "2", idsOf(index.searchMessages("BACKY")));
+        assertEquals("door", "4 1", idsOf(index.searchMessages("door")));
+        assertEquals("nothing", "", idsOf(index.searchMessages("side")));
+        assertEquals("no words", "", idsOf(index.searchMessages(" ,. ")));
+    }
+
+    public void testEveryTermMustMatch() {
+        assertEquals("back do", "1", idsOf(index.searchMessages("back do")));
+        assertEquals("sender", "4", idsOf(index.searchMessages("door dave")));
+        assertEquals("one misses", "", idsOf(index.searchMessages("front gate")));
+        assertEquals("order of terms", "1", idsOf(index.searchMessages("pl ba")));
+    }
+
+    public void testRemovedMessagesLeaveNoWordsBehind() {
+        int before = index.wordCount();
+        index.addMessages(message(5, 50, "Parcel left at the porch", null));
+        index.removeMessage(5);
+        assertEquals("words", before, index.wordCount());
+        assertEquals("parcel", "", idsOf(index.searchMessages("parcel")));
+
+        // Replacing a message takes its old words out too
+        index.addMessages(message(4, 40, "Side window", "Dave"));
+        assertEquals("front", "", idsOf(index.searchMessages("front")));
+        assertEquals("door", "1", idsOf(index.searchMessages("door")));
+        assertEquals("side", "4", idsOf(index.searchMessages("side")));
+
+        index.clear();
+        assertEquals("cleared", 0, index.wordCount());
+    }
+
+    public void testTimeRangeAndLimitWhenMostMessagesMatch() {
+        SearchIndex many = new SearchIndex();
+        for (int id = 1; id <= 100; id++) {
+            many.addMessages(message(id, id, "ding dong", null));
+        }
+        assertEquals("range", "29 28 27 26 25",
+                idsOf(many.searchMessages("ding", 20, 30, 5)));
+        assertEquals("range is short", "21 20",
+                idsOf(many.searchMessages("dong", 20, 22, 5)));
+        assertEquals("zero", "", idsOf(many.searchMessages("ding", 0, 200, 0)));
+        assertEquals("backwards", "", idsOf(many.searchMessages("ding", 30, 20, 5)));
+    }
+
+    public void testTimeRangeAndLimitWhenFewMessagesMatch() {
+        SearchIndex few = new SearchIndex();
+        for (int id = 1; id <= 100; id++) {
+            few.addMessages(message(id, 100 - id, (id % 25 == 0) ? "knock knock" : "ding", null));
+        }
+        // Timestamps 75, 50, 25 and 0, so newest first is by ID ascending
+        assertEquals("all", "25 50 75 100", idsOf(few.searchMessages("knock")));
+        assertEquals("limited", "25 50", idsOf(few.searchMessages("knock", 0, 1000, 2)));
+        assertEquals("range", "50 75", idsOf(few.searchMessages("knock", 1, 75, 10)));
+    }
+
+    public void testTagsMatchOnLocation() {
+        index.addTags(new Tag("a", "Front porch", null), new Tag("b", "Back door", null));
+        assertEquals("porch", 1, index.searchTags("por").size());
+        assertEquals("porch", "a", index.searchTags("FRONT p").get(0).getId());
+        index.removeTag("a");
+        assertEquals("removed", 0, index.searchTags("porch").size());
+    }
+
+    private static Message message (int id, int timestamp, String contents, String sender) {
+        return new Message(id, (sender == null) ? null : new User(sender), contents, timestamp);
+    }
+
+    private static String idsOf (List<Message> messages) {
+        StringBuilder ids = new StringBuilder();
+        for (Message message : messages) {
+            ids.append((ids.length() == 0) ? "" : " ").append(message.getId());
+        }
+        return ids.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package org.danielge.doorbells.utils;
+
+import org.danielge.doorbells.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class KeyedRowsTest extends TestCase {
+    private static final class Item {
+        final int id;
+        final String text;
+
+        Item (int id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    private static final class Rows extends KeyedRows<Item, String> {
+        int made;
+
+        @Override
+        protected int idOf (Item item) {
+            return item.id;
+        }
+
+        @Override
+        protected String rowFor (Item item) {
+            made++;
+            return new String(item.text);   // A distinct instance every time
+        }
+
+        @Override
+        protected boolean shows (String row, Item item) {
+            return row.equals(item.text);
+        }
+    }
+
+    public void testNewItemsGetRowsAndTheRestAreKept() {
+        Rows rows = new Rows();
+        assertTrue("first list", rows.set(items(new Item(2, "b"), new Item(1, "a"))));
+        String b = rows.get(0);
+        String a = rows.get(1);
+
+        // A push puts a new item on top
+        assertTrue("changed", rows.set(items(new Item(3, "c"), new Item(2, "b"), new Item(1, "a"))));
+        assertEquals("rows made", 3, rows.made);
+        assertEquals("size", 3, rows.size());
+        assertEquals("new row", "c", rows.get(0));
+        assertTrue("b kept", rows.get(1) == b);
+        assertTrue("a kept", rows.get(2) == a);
+    }
+
+    public void testSameListIsNotAChange() {
+        Rows rows = new Rows();
+        rows.set(items(new Item(2, "b"), new Item(1, "a")));
+        assertFalse("changed", rows.set(items(new Item(2, "b"), new Item(1, "a"))));
+        assertEquals("rows made", 2, rows.made);
+    }
+
+    public void testEditedItemGetsANewRow() {
+        Rows rows = new Rows();
+        rows.set(items(new Item(2, "b"), new Item(1, "a")));
+        String a = rows.get(1);
+
+        assertTrue("changed", rows.set(items(new Item(2, "edited"), new Item(1, "a"))));
+        assertEquals("edited row", "edited", rows.get(0));
+        assertTrue("a kept", rows.get(1) == a);
+        assertEquals("rows made", 3, rows.made);
+    }
+
+    public void testRemovedAndReorderedItemsAreChanges() {
+        Rows rows = new Rows();
+        rows.set(items(new Item(3, "c"), new Item(2, "b"), new Item(1, "a")));
+        String c = rows.get(0);
+
+        assertTrue("removed", rows.set(items(new Item(3, "c"), new Item(1, "a"))));
+        assertTrue("c kept", rows.get(0) == c);
+        assertTrue("reordered", rows.set(items(new Item(1, "a"), new Item(3, "c"))));
+        assertTrue("c kept", rows.get(1) == c);
+        assertEquals("rows made", 3, rows.made);
+
+        // A removed item that comes back is new again
+        rows.set(items(new Item(2, "b"), new Item(1, "a"), new Item(3, "c")));
+        assertEquals("rows made", 4, rows.made);
+    }
+
+    private static List<Item> items (Item... items) {
+        return Arrays.asList(items);
+    }
+}